@@ -0,0 +1,113 @@
+package org.easydarwin.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ParsableBitArray}读完一个SPS大小的缓冲所需的时间。
+ * <p>
+ * nalUnit*直接在带防竞争字节的NAL上读取，unescapeThen*是先去掉防竞争字节再读取的旧做法。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ParsableBitArrayBenchmark {
+
+    @Param({"1", "5", "8", "13", "32"})
+    public int bits;
+
+    @Param({"64", "4096"})
+    public int size;
+
+    private final ParsableBitArray mArray = new ParsableBitArray();
+    private final ParsableNalUnitBitArray mNalUnitArray = new ParsableNalUnitBitArray();
+    private byte[] mData;
+    private byte[] mRbsp;
+
+    @Setup
+    public void setUp() {
+        mData = new byte[size];
+        Random random = new Random(size);
+        random.nextBytes(mData);
+        // 大约每64字节一个防竞争字节
+        for (int i = random.nextInt(64); i + 2 < size; i += 32 + random.nextInt(64)) {
+            mData[i] = 0;
+            mData[i + 1] = 0;
+            mData[i + 2] = 3;
+        }
+        mRbsp = new byte[size];
+    }
+
+    @Benchmark
+    public int readBits() {
+        ParsableBitArray array = mArray;
+        array.reset(mData);
+
+        int sum = 0;
+        while (array.bitsLeft() >= bits) {
+            sum += array.readBits(bits);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int readBit() {
+        ParsableBitArray array = mArray;
+        array.reset(mData);
+
+        int sum = 0;
+        while (array.bitsLeft() > 0) {
+            if (array.readBit()) {
+                sum++;
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int nalUnitReadBits() {
+        ParsableNalUnitBitArray array = mNalUnitArray;
+        array.reset(mData, 0, mData.length);
+
+        int sum = 0;
+        while (array.bitsLeft() >= bits) {
+            sum += array.readBits(bits);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int unescapeThenReadBits() {
+        ParsableBitArray array = mArray;
+        array.reset(mRbsp, unescape(mData, mRbsp));
+
+        int sum = 0;
+        while (array.bitsLeft() >= bits) {
+            sum += array.readBits(bits);
+        }
+        return sum;
+    }
+
+    private static int unescape(byte[] src, byte[] dst) {
+        int zeros = 0;
+        int out = 0;
+        for (byte b : src) {
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            dst[out++] = b;
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return out;
+    }
+}
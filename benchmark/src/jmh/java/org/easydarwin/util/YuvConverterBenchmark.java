@@ -0,0 +1,100 @@
+package org.easydarwin.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 解码器输出的NV12转为交给I420DataCallback的direct缓冲所需的时间。
+ * <p>
+ * copyConvertCopy是以前的做法：Y和UV读入byte[]，JNIUtil.yuvConvert(in, w, h, 4)在数组中拆分UV，再put到direct缓冲。
+ * JNI库只编译了Android的ABI，JVM上无法加载，这里用逐字节拆分的Java代码代替那次native调用，两次复制和原来相同。
+ * converter*是{@link YuvConverter}按行跨度一次转换到direct缓冲，分别强制在调用线程中和按行带并行。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class YuvConverterBenchmark {
+
+    @Param({"1280x720", "1920x1080", "3840x2160"})
+    public String size;
+
+    private int mWidth;
+    private int mHeight;
+    private int mStride;
+    private int mSliceHeight;
+    private ByteBuffer mSrc;
+    private ByteBuffer mDst;
+    private byte[] mYuv;
+    private byte[] mUv;
+
+    private final YuvConverter mSerial = new YuvConverter(Integer.MAX_VALUE);
+    private final YuvConverter mParallel = new YuvConverter(0);
+
+    @Setup
+    public void setUp() {
+        String[] wh = size.split("x");
+        mWidth = Integer.parseInt(wh[0]);
+        mHeight = Integer.parseInt(wh[1]);
+        // 常见硬解码器的对齐：行跨度64字节，高度16行
+        mStride = (mWidth + 63) & ~63;
+        mSliceHeight = (mHeight + 15) & ~15;
+
+        byte[] data = new byte[mStride * mSliceHeight * 3 / 2];
+        new Random(mWidth).nextBytes(data);
+        ByteBuffer src = ByteBuffer.allocateDirect(data.length);
+        src.put(data);
+        src.clear();
+        // MediaCodec的输出缓冲是只读的
+        mSrc = src.asReadOnlyBuffer();
+
+        mDst = ByteBuffer.allocateDirect(YuvConverter.i420Size(mWidth, mHeight));
+        mYuv = new byte[mWidth * mHeight * 3 / 2];
+        mUv = new byte[mWidth * mHeight / 2];
+    }
+
+    @Benchmark
+    public ByteBuffer copyConvertCopy() {
+        int lumaSize = mWidth * mHeight;
+        byte[] yuv = mYuv;
+        // 以前的做法不考虑行跨度
+        mSrc.clear();
+        mSrc.get(yuv, 0, lumaSize);
+        mSrc.clear();
+        mSrc.position(mWidth * mSliceHeight);
+        mSrc.get(yuv, lumaSize, lumaSize / 2);
+
+        // yuvuv_to_yuv
+        int quarter = lumaSize / 4;
+        System.arraycopy(yuv, lumaSize, mUv, 0, lumaSize / 2);
+        for (int i = 0; i < quarter; i++) {
+            yuv[lumaSize + i] = mUv[i * 2];
+            yuv[lumaSize + quarter + i] = mUv[i * 2 + 1];
+        }
+
+        mDst.clear();
+        mDst.put(yuv, 0, lumaSize * 3 / 2);
+        return mDst;
+    }
+
+    @Benchmark
+    public ByteBuffer converterSerial() {
+        mSerial.semiPlanarToI420(mSrc, false, mStride, mSliceHeight, 0, 0, mWidth, mHeight, mDst);
+        return mDst;
+    }
+
+    @Benchmark
+    public ByteBuffer converterParallel() {
+        mParallel.semiPlanarToI420(mSrc, false, mStride, mSliceHeight, 0, 0, mWidth, mHeight, mDst);
+        return mDst;
+    }
+}
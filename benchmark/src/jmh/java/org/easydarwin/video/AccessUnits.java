@@ -0,0 +1,199 @@
+package org.easydarwin.video;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 基准测试用的H.264/H.265访问单元。
+ * <p>
+ * 合成的关键帧由参数集和一个随机内容的IDR slice组成，slice做了防竞争字节处理，0字节的密度接近真实码流。
+ * 来源为{@link #SOURCE_RECORDED}时，从系统属性 benchmark.capture 指定的抓包文件（见{@link CaptureReplaySource}）中读取真实的关键帧，
+ * 这时sliceSize不起作用。build.gradle在给出-Pcapture时把各基准测试的参数source设为recorded。
+ */
+final class AccessUnits {
+
+    static final String CODEC_H264 = "h264";
+    static final String CODEC_H265 = "h265";
+
+    static final String SOURCE_SYNTHETIC = "synthetic";
+    static final String SOURCE_RECORDED = "recorded";
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    // 1280x720 High@3.1
+    private static final byte[] H264_SPS = {0x67, 0x64, 0x00, 0x1f, (byte) 0xac, (byte) 0xd9, 0x40, 0x50, 0x05, (byte) 0xbb, 0x01, 0x10, 0x00, 0x00, 0x03, 0x00, 0x10, 0x00, 0x00, 0x03, 0x03, (byte) 0xc0, (byte) 0xf1, (byte) 0x83, 0x19, 0x60};
+    private static final byte[] H264_PPS = {0x68, (byte) 0xeb, (byte) 0xe3, (byte) 0xcb, 0x22, (byte) 0xc0};
+    private static final byte[] H264_IDR = {0x65, (byte) 0x88, (byte) 0x84};
+
+    // 1920x1080 Main@4.1
+    private static final byte[] H265_VPS = {0x40, 0x01, 0x0c, 0x01, (byte) 0xff, (byte) 0xff, 0x01, 0x60, 0x00, 0x00, 0x03, 0x00, (byte) 0x90, 0x00, 0x00, 0x03, 0x00, 0x00, 0x03, 0x00, 0x7b, (byte) 0x95, (byte) 0x98, 0x09};
+    private static final byte[] H265_SPS = {0x42, 0x01, 0x01, 0x01, 0x60, 0x00, 0x00, 0x03, 0x00, (byte) 0x90, 0x00, 0x00, 0x03, 0x00, 0x00, 0x03, 0x00, 0x7b, (byte) 0xa0, 0x03, (byte) 0xc0, (byte) 0x80, 0x10, (byte) 0xe5, (byte) 0x96, 0x56, 0x69, 0x24, (byte) 0xca, (byte) 0xe0, 0x10, 0x00, 0x00, 0x03, 0x00, 0x10, 0x00, 0x00, 0x03, 0x01, (byte) 0xe0, (byte) 0x80};
+    private static final byte[] H265_PPS = {0x44, 0x01, (byte) 0xc1, 0x72, (byte) 0xb4, 0x62, 0x40};
+    private static final byte[] H265_IDR = {0x26, 0x01, (byte) 0xaf};
+
+    private AccessUnits() {
+    }
+
+    /**
+     * 返回一组访问单元，合成的每个约sliceSize字节；真实的取抓包文件中前若干个关键帧。
+     */
+    static byte[][] load(String source, String codec, int sliceSize) throws IOException {
+        if (SOURCE_RECORDED.equals(source)) {
+            String path = System.getProperty("benchmark.capture");
+            if (path == null || path.isEmpty()) {
+                throw new IllegalStateException("recorded access units need -Pcapture=<file>");
+            }
+            return recorded(new File(path), codec, 64);
+        }
+
+        Random random = new Random(sliceSize);
+        byte[][] units = new byte[16][];
+        for (int i = 0; i < units.length; i++) {
+            units[i] = CODEC_H265.equals(codec) ? h265(random, sliceSize) : h264(random, sliceSize);
+        }
+        return units;
+    }
+
+    static byte[] h264(Random random, int sliceSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(sliceSize + 64);
+        nal(out, H264_SPS);
+        nal(out, H264_PPS);
+        out.write(START_CODE, 0, START_CODE.length);
+        out.write(H264_IDR, 0, H264_IDR.length);
+        slice(out, random, sliceSize);
+        return out.toByteArray();
+    }
+
+    static byte[] h265(Random random, int sliceSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(sliceSize + 128);
+        nal(out, H265_VPS);
+        nal(out, H265_SPS);
+        nal(out, H265_PPS);
+        out.write(START_CODE, 0, START_CODE.length);
+        out.write(H265_IDR, 0, H265_IDR.length);
+        slice(out, random, sliceSize);
+        return out.toByteArray();
+    }
+
+    private static void nal(ByteArrayOutputStream out, byte[] nal) {
+        out.write(START_CODE, 0, START_CODE.length);
+        out.write(nal, 0, nal.length);
+    }
+
+    /**
+     * 随机的slice数据，0字节的概率较高，连续两个0后面如果是0~3则插入0x03。
+     */
+    private static void slice(ByteArrayOutputStream out, Random random, int size) {
+        int zeros = 0;
+        for (int i = 0; i < size; i++) {
+            int b = random.nextInt(8) == 0 ? 0 : random.nextInt(256);
+            if (zeros >= 2 && b <= 3) {
+                out.write(3);
+                zeros = 0;
+            }
+            out.write(b);
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        // slice最后一个字节不能是0
+        out.write(0x80);
+    }
+
+    /**
+     * 从抓包文件中读取最多max个指定编码的关键帧。
+     */
+    static byte[][] recorded(File file, String codec, int max) throws IOException {
+        final int wanted = CODEC_H265.equals(codec) ? EasyPlayerClient.EASY_SDK_VIDEO_CODEC_H265 : EasyPlayerClient.EASY_SDK_VIDEO_CODEC_H264;
+        List<byte[]> units = new ArrayList<>();
+        FrameHeaderView header = new FrameHeaderView();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 256 * 1024));
+        try {
+            byte[] pendingHeader = null;
+            while (units.size() < max) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+
+                if (type == Client.EASY_SDK_VIDEO_FRAME_FLAG && data.length >= FrameHeaderView.SIZE) {
+                    pendingHeader = data;
+                    continue;
+                }
+
+                if (type == CaptureReplaySource.RECORD_PAYLOAD && pendingHeader != null) {
+                    header.wrap(pendingHeader);
+                    if (header.codec() == wanted && header.type() == 1) {
+                        units.add(data);
+                    }
+                }
+                pendingHeader = null;
+            }
+        } catch (EOFException e) {
+            // 最后一条记录不完整
+        } finally {
+            in.close();
+        }
+
+        if (units.isEmpty()) {
+            throw new IllegalStateException("no " + codec + " key frame in " + file);
+        }
+        return units.toArray(new byte[units.size()][]);
+    }
+
+    /**
+     * 开头length个字节中是否包含所有指定类型的NAL。逐字节扫描，只在准备数据时使用。
+     */
+    static boolean containsNalTypes(byte[] data, int length, boolean hevc, int... types) {
+        length = Math.min(length, data.length);
+        int found = 0;
+        for (int i = 0; i + 3 < length; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) {
+                int type = hevc ? (data[i + 3] >> 1) & 0x3f : data[i + 3] & 0x1f;
+                for (int j = 0; j < types.length; j++) {
+                    if (types[j] == type) {
+                        found |= 1 << j;
+                    }
+                }
+            }
+        }
+        return found == (1 << types.length) - 1;
+    }
+
+    /**
+     * 一个合成的48字节帧头，字段与native层的EASY_FRAME_INFO一致。
+     */
+    static byte[] frameHeader(int codec, int type, int length, long stampUs) {
+        byte[] h = new byte[FrameHeaderView.SIZE];
+        putInt(h, FrameHeaderView.OFFSET_CODEC, codec);
+        putInt(h, FrameHeaderView.OFFSET_TYPE, type);
+        h[FrameHeaderView.OFFSET_FPS] = 25;
+        putShort(h, FrameHeaderView.OFFSET_WIDTH, 1920);
+        putShort(h, FrameHeaderView.OFFSET_HEIGHT, 1080);
+        putInt(h, FrameHeaderView.OFFSET_LENGTH, length);
+        putInt(h, FrameHeaderView.OFFSET_TIMESTAMP_USEC, (int) (stampUs % 1000000));
+        putInt(h, FrameHeaderView.OFFSET_TIMESTAMP_SEC, (int) (stampUs / 1000000));
+        return h;
+    }
+
+    private static void putInt(byte[] b, int pos, int v) {
+        b[pos] = (byte) v;
+        b[pos + 1] = (byte) (v >> 8);
+        b[pos + 2] = (byte) (v >> 16);
+        b[pos + 3] = (byte) (v >> 24);
+    }
+
+    private static void putShort(byte[] b, int pos, int v) {
+        b[pos] = (byte) v;
+        b[pos + 1] = (byte) (v >> 8);
+    }
+}
@@ -0,0 +1,102 @@
+package org.easydarwin.video;
+
+import org.easydarwin.util.AnnexBConverter;
+import org.easydarwin.util.NalScanner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AnnexBConverter}把一个访问单元转换为长度前缀格式。
+ * <p>
+ * startCode为4时原地转换，为3时写到复用的缓冲中。原地转换会改写输入，所以每次先把访问单元复制到工作缓冲，
+ * copy是单独复制的耗时，作为对照。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AnnexBConverterBenchmark {
+
+    @Param({AccessUnits.CODEC_H264, AccessUnits.CODEC_H265})
+    public String codec;
+
+    /**
+     * 默认只测合成帧，-Pcapture时由build.gradle改为recorded
+     */
+    @Param({AccessUnits.SOURCE_SYNTHETIC})
+    public String source;
+
+    @Param({"4096", "524288"})
+    public int sliceSize;
+
+    @Param({"4", "3"})
+    public int startCode;
+
+    @Param({"0", "" + AnnexBConverter.STRIP_PARAMETER_SETS})
+    public int strip;
+
+    private byte[][] mUnits;
+    private byte[] mWork;
+    private int mNext;
+    private AnnexBConverter mConverter;
+
+    @Setup
+    public void setUp() throws IOException {
+        boolean hevc = AccessUnits.CODEC_H265.equals(codec);
+        mUnits = AccessUnits.load(source, codec, sliceSize);
+        int max = 0;
+        for (int i = 0; i < mUnits.length; i++) {
+            if (startCode == 3) {
+                mUnits[i] = shortStartCodes(mUnits[i], hevc);
+            }
+            max = Math.max(max, mUnits[i].length);
+        }
+        mWork = new byte[max];
+        mConverter = new AnnexBConverter(hevc, strip);
+    }
+
+    @Benchmark
+    public int convert() {
+        byte[] unit = next();
+        System.arraycopy(unit, 0, mWork, 0, unit.length);
+        return mConverter.convert(mWork, 0, unit.length);
+    }
+
+    @Benchmark
+    public int copy() {
+        byte[] unit = next();
+        System.arraycopy(unit, 0, mWork, 0, unit.length);
+        return unit.length;
+    }
+
+    private byte[] next() {
+        byte[] unit = mUnits[mNext];
+        mNext = (mNext + 1) % mUnits.length;
+        return unit;
+    }
+
+    /**
+     * 把所有起始码改为3字节
+     */
+    private static byte[] shortStartCodes(byte[] unit, boolean hevc) {
+        NalScanner scanner = new NalScanner();
+        int count = scanner.scan(unit, 0, unit.length, hevc);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(unit.length);
+        for (int i = 0; i < count; i++) {
+            out.write(0);
+            out.write(0);
+            out.write(1);
+            out.write(unit, scanner.offset(i), scanner.length(i));
+        }
+        return out.toByteArray();
+    }
+}
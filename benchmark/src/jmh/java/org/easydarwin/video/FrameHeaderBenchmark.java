@@ -0,0 +1,107 @@
+package org.easydarwin.video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * native回调中的帧头解析与派发，即{@link Client}的onSourceCallBack在找到通道之后的部分。
+ * <p>
+ * byteBuffer是原来逐帧用ByteBuffer解码的写法，作为对照。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameHeaderBenchmark {
+
+    @Param({"0", "4096", "65536"})
+    public int payloadSize;
+
+    private byte[] mHeader;
+    private byte[] mPayload;
+    private final FrameHeaderView mView = new FrameHeaderView();
+    private Client.SourceCallBack mCallback;
+
+    @Setup
+    public void setUp() {
+        mHeader = AccessUnits.frameHeader(EasyPlayerClient.EASY_SDK_VIDEO_CODEC_H264, 1, payloadSize, 0x9000000000L);
+        mPayload = new byte[payloadSize];
+        mCallback = new Client.SourceCallBack() {
+            @Override
+            public void onSourceCallBack(int _channelId, int _channelPtr, int _frameType, Client.FrameInfo frameInfo) {
+                if (frameInfo != null) {
+                    frameInfo.recycle();
+                }
+            }
+
+            @Override
+            public void onMediaInfoCallBack(int _channelId, Client.MediaInfo mi) {
+            }
+
+            @Override
+            public void onEvent(int _channelId, int err, int info) {
+            }
+
+            @Override
+            public void sendSeiData(byte[] sei) {
+            }
+        };
+    }
+
+    @Benchmark
+    public long headerView() {
+        long stamp = mView.wrap(mHeader).stamp();
+        mView.clear();
+        return stamp;
+    }
+
+    @Benchmark
+    public long readHeader() {
+        Client.FrameInfo fi = Client.FrameInfo.obtain();
+        fi.readHeader(mHeader);
+        long stamp = fi.stamp;
+        fi.recycle();
+        return stamp;
+    }
+
+    @Benchmark
+    public void dispatch() {
+        FrameDispatcher.dispatch(mCallback, 1, 0, Client.EASY_SDK_VIDEO_FRAME_FLAG, mPayload, mHeader);
+    }
+
+    @Benchmark
+    public void byteBuffer(Blackhole bh) {
+        ByteBuffer buffer = ByteBuffer.wrap(mHeader);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        Client.FrameInfo fi = new Client.FrameInfo();
+        fi.codec = buffer.getInt();
+        fi.type = buffer.getInt();
+        fi.fps = buffer.get();
+        buffer.get();
+        fi.width = buffer.getShort();
+        fi.height = buffer.getShort();
+        buffer.getInt();
+        buffer.getInt();
+        buffer.getShort();
+        fi.sample_rate = buffer.getInt();
+        fi.channels = buffer.getInt();
+        fi.bits_per_sample = buffer.getInt();
+        fi.length = buffer.getInt();
+        fi.timestamp_usec = buffer.getInt() & 0xFFFFFFFFL;
+        fi.timestamp_sec = buffer.getInt() & 0xFFFFFFFFL;
+        fi.stamp = fi.timestamp_sec * 1000000 + fi.timestamp_usec;
+        fi.buffer = mPayload;
+        bh.consume(fi);
+    }
+}
@@ -0,0 +1,71 @@
+package org.easydarwin.video;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EasyPlayerClient.FrameInfoQueue}的生产者/消费者吞吐量。
+ * <p>
+ * 生产者线程模拟native回调：从池中取FrameInfo、分配帧数据、入队；消费者线程模拟解码线程：出队并归还。
+ * 生产者只在队列未满时入队，避免阻塞在满队列上导致迭代无法结束。
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameInfoQueueBenchmark {
+
+    @Param({"1024", "65536"})
+    public int payloadSize;
+
+    private EasyPlayerClient.FrameInfoQueue mQueue;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        mQueue = new EasyPlayerClient.FrameInfoQueue();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        mQueue.clear();
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public boolean put() throws InterruptedException {
+        if (mQueue.video.size() >= EasyPlayerClient.FrameInfoQueue.CAPACITY) {
+            return false;
+        }
+
+        Client.FrameInfo fi = Client.FrameInfo.obtain();
+        fi.allocBuffer(payloadSize);
+        fi.length = payloadSize;
+        mQueue.put(fi);
+        return true;
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public boolean take() throws InterruptedException {
+        Client.FrameInfo fi = mQueue.takeVideoFrame(1);
+        if (fi == null) {
+            return false;
+        }
+
+        fi.recycle();
+        return true;
+    }
+}
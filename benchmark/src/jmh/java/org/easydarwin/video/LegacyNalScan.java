@@ -0,0 +1,135 @@
+package org.easydarwin.video;
+
+/**
+ * 改用{@link org.easydarwin.util.NalScanner}之前逐字节扫描的getXPS和getvps_sps_pps，作为基准测试的对照。
+ * getvps_sps_pps在缺少参数集时不会返回，调用前需要确认数据完整。
+ */
+final class LegacyNalScan {
+
+    private LegacyNalScan() {
+    }
+
+    static int getXPS(byte[] data, int offset, int length, byte[] dataOut, int[] outLen, int type) {
+        int i;
+        int pos0;
+        int pos1;
+        pos0 = -1;
+        length = Math.min(length, data.length);
+        for (i = offset; i < length - 4; i++) {
+            if ((0 == data[i]) && (0 == data[i + 1]) && (1 == data[i + 2]) && (type == (0x0F & data[i + 3]))) {
+                pos0 = i;
+                break;
+            }
+        }
+        if (-1 == pos0) {
+            return -1;
+        }
+        if (pos0 > 0 && data[pos0 - 1] == 0) { // 0 0 0 1
+            pos0 = pos0 - 1;
+        }
+        pos1 = -1;
+        for (i = pos0 + 4; i < length - 4; i++) {
+            if ((0 == data[i]) && (0 == data[i + 1]) && (1 == data[i + 2])) {
+                pos1 = i;
+                break;
+            }
+        }
+        if (-1 == pos1 || pos1 == 0) {
+            return -2;
+        }
+        if (data[pos1 - 1] == 0) {
+            pos1 -= 1;
+        }
+        if (pos1 - pos0 > outLen[0]) {
+            return -3; // 输入缓冲区太小
+        }
+        dataOut[0] = 0;
+        System.arraycopy(data, pos0, dataOut, 0, pos1 - pos0);
+        // memcpy(pXPS+1, pES+pos0, pos1-pos0);
+        // *pMaxXPSLen = pos1-pos0+1;
+        outLen[0] = pos1 - pos0;
+        return pos1;
+    }
+
+    static byte[] getvps_sps_pps(byte[] data, int offset, int length) {
+        int i = 0;
+        int vps = -1, sps = -1, pps = -1;
+        length = Math.min(length, data.length);
+        do {
+            if (vps == -1) {
+                for (i = offset; i < length - 4; i++) {
+                    if ((0x00 == data[i]) && (0x00 == data[i + 1]) && (0x01 == data[i + 2])) {
+                        byte nal_spec = data[i + 3];
+                        int nal_type = (nal_spec >> 1) & 0x03f;
+                        if (nal_type == 32 /* VPS */) {
+                            // vps found.
+                            if (data[i - 1] == 0x00) {  // start with 00 00 00 01
+                                vps = i - 1;
+                            } else {                      // start with 00 00 01
+                                vps = i;
+                            }
+                            break;
+                        }
+                    }
+                }
+            }
+            if (sps == -1) {
+                for (i = vps; i < length - 4; i++) {
+                    if ((0x00 == data[i]) && (0x00 == data[i + 1]) && (0x01 == data[i + 2])) {
+                        byte nal_spec = data[i + 3];
+                        int nal_type = (nal_spec >> 1) & 0x03f;
+                        if (nal_type == 33 /* SPS */) {
+                            // vps found.
+                            if (data[i - 1] == 0x00) {  // start with 00 00 00 01
+                                sps = i - 1;
+                            } else {                      // start with 00 00 01
+                                sps = i;
+                            }
+                            break;
+                        }
+                    }
+                }
+            }
+            if (pps == -1) {
+                for (i = sps; i < length - 4; i++) {
+                    if ((0x00 == data[i]) && (0x00 == data[i + 1]) && (0x01 == data[i + 2])) {
+                        byte nal_spec = data[i + 3];
+                        int nal_type = (nal_spec >> 1) & 0x03f;
+                        if (nal_type == 34 /* PPS */) {
+                            // vps found.
+                            if (data[i - 1] == 0x00) {  // start with 00 00 00 01
+                                pps = i - 1;
+                            } else {                    // start with 00 00 01
+                                pps = i;
+                            }
+                            break;
+                        }
+                    }
+                }
+            }
+        } while (vps == -1 || sps == -1 || pps == -1);
+        if (vps == -1 || sps == -1 || pps == -1) {// 没有获取成功。
+            return null;
+        }
+        // 计算csd buffer的长度。即从vps的开始到pps的结束的一段数据
+        int begin = vps;
+        int end = -1;
+        for (i = pps + 4; i < length - 4; i++) {
+            if ((0x00 == data[i]) && (0x00 == data[i + 1]) && (0x01 == data[i + 2])) {
+                if (data[i - 1] == 0x00) {  // start with 00 00 00 01
+                    end = i - 1;
+                } else {                    // start with 00 00 01
+                    end = i;
+                }
+                break;
+            }
+        }
+        if (end == -1 || end < begin) {
+            return null;
+        }
+        // 拷贝并返回
+        byte[] buf = new byte[end - begin];
+        System.arraycopy(data, begin, buf, 0, buf.length);
+        return buf;
+    }
+}
@@ -0,0 +1,144 @@
+package org.easydarwin.video;
+
+import org.easydarwin.util.CodecSpecificDataUtil;
+import org.easydarwin.util.NalScanner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 关键帧上的Annex-B起始码扫描：{@link NalScanner#scan}、H.264的{@link EasyPlayerClient#getXPS}、
+ * H.265的{@link EasyPlayerClient#getvps_sps_pps}和{@link CodecSpecificDataUtil#splitNalUnits}。
+ * legacy开头的是逐字节扫描的旧实现，作为对照。
+ * <p>
+ * window为0时扫描整个访问单元，否则和播放时一样只扫描开头window个字节。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NalScanBenchmark {
+
+    @State(Scope.Thread)
+    public static class Units {
+        @Param({AccessUnits.CODEC_H264, AccessUnits.CODEC_H265})
+        public String codec;
+
+        /**
+         * 默认只测合成帧，-Pcapture时由build.gradle改为recorded
+         */
+        @Param({AccessUnits.SOURCE_SYNTHETIC})
+        public String source;
+
+        @Param({"4096", "65536", "524288"})
+        public int sliceSize;
+
+        @Param({"256", "0"})
+        public int window;
+
+        byte[][] units;
+        int next;
+
+        @Setup
+        public void setUp() throws IOException {
+            units = AccessUnits.load(source, codec, sliceSize);
+            if (AccessUnits.CODEC_H265.equals(codec)) {
+                // 旧的getvps_sps_pps在缺少参数集时不会返回，先把这样的帧排除掉
+                List<byte[]> complete = new ArrayList<>();
+                for (byte[] unit : units) {
+                    if (AccessUnits.containsNalTypes(unit, length(unit), true, 32, 33, 34)) {
+                        complete.add(unit);
+                    }
+                }
+                if (complete.isEmpty()) {
+                    throw new IllegalStateException("no access unit with VPS/SPS/PPS in the first " + window + " bytes");
+                }
+                units = complete.toArray(new byte[complete.size()][]);
+            }
+        }
+
+        byte[] next() {
+            byte[] unit = units[next];
+            next = (next + 1) % units.length;
+            return unit;
+        }
+
+        int length(byte[] unit) {
+            return window > 0 ? Math.min(window, unit.length) : unit.length;
+        }
+    }
+
+    private final NalScanner mScanner = new NalScanner();
+    private final byte[] mDataOut = new byte[1024];
+    private final int[] mOutLen = new int[1];
+
+    @Benchmark
+    public int getXPS(Units units) {
+        if (!AccessUnits.CODEC_H264.equals(units.codec)) {
+            return 0;
+        }
+
+        byte[] unit = units.next();
+        int length = units.length(unit);
+        mOutLen[0] = mDataOut.length;
+        int sps = EasyPlayerClient.getXPS(mScanner, unit, 0, length, mDataOut, mOutLen, NalScanner.H264_NAL_SPS);
+        mOutLen[0] = mDataOut.length;
+        int pps = EasyPlayerClient.getXPS(mScanner, unit, 0, length, mDataOut, mOutLen, NalScanner.H264_NAL_PPS);
+        return sps + pps;
+    }
+
+    @Benchmark
+    public int legacyGetXPS(Units units) {
+        if (!AccessUnits.CODEC_H264.equals(units.codec)) {
+            return 0;
+        }
+
+        byte[] unit = units.next();
+        int length = units.length(unit);
+        mOutLen[0] = mDataOut.length;
+        int sps = LegacyNalScan.getXPS(unit, 0, length, mDataOut, mOutLen, 7);
+        mOutLen[0] = mDataOut.length;
+        int pps = LegacyNalScan.getXPS(unit, 0, length, mDataOut, mOutLen, 8);
+        return sps + pps;
+    }
+
+    @Benchmark
+    public byte[] getvps_sps_pps(Units units) {
+        if (!AccessUnits.CODEC_H265.equals(units.codec)) {
+            return null;
+        }
+
+        byte[] unit = units.next();
+        return EasyPlayerClient.getvps_sps_pps(mScanner, unit, 0, units.length(unit));
+    }
+
+    @Benchmark
+    public byte[] legacyGetvps_sps_pps(Units units) {
+        if (!AccessUnits.CODEC_H265.equals(units.codec)) {
+            return null;
+        }
+
+        byte[] unit = units.next();
+        return LegacyNalScan.getvps_sps_pps(unit, 0, units.length(unit));
+    }
+
+    @Benchmark
+    public int scan(Units units) {
+        byte[] unit = units.next();
+        return mScanner.scan(unit, 0, units.length(unit), AccessUnits.CODEC_H265.equals(units.codec));
+    }
+
+    @Benchmark
+    public void splitNalUnits(Units units, Blackhole bh) {
+        bh.consume(CodecSpecificDataUtil.splitNalUnits(units.next()));
+    }
+}
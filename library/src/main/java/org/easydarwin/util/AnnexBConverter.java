@@ -0,0 +1,139 @@
+package org.easydarwin.util;
+
+/**
+ * 把Annex-B格式（起始码分隔）的访问单元转换为MP4/FLV使用的长度前缀格式（AVCC/HVCC，4字节长度）。
+ * <p>
+ * 每个NAL的起始码都是4字节时，直接在输入数组中把起始码改写为长度，不复制数据；去掉的NAL和NAL末尾的0
+ * 只会让后面的数据前移，同样可以原地完成。有3字节起始码导致放不下时，才写到实例内复用的缓冲中。
+ * <p>
+ * 可以按需去掉码流中的SPS/PPS（H.265还有VPS）和AUD：长度前缀格式的参数集一般放在avcC/hvcC中。
+ * <p>
+ * 实例不是线程安全的，每个写文件的线程使用自己的实例。
+ */
+public final class AnnexBConverter {
+
+    /**
+     * 去掉SPS、PPS，H.265还包括VPS
+     */
+    public static final int STRIP_PARAMETER_SETS = 1;
+
+    /**
+     * 去掉访问单元分隔符
+     */
+    public static final int STRIP_AUD = 1 << 1;
+
+    private static final int LENGTH_SIZE = 4;
+
+    private final NalScanner mScanner = new NalScanner();
+    private final boolean mHevc;
+    private final int mStrip;
+
+    private byte[] mScratch = new byte[0];
+    private byte[] mOutput;
+    private int mOutputOffset;
+
+    /**
+     * @param strip {@link #STRIP_PARAMETER_SETS}、{@link #STRIP_AUD}的组合，0表示保留所有NAL
+     */
+    public AnnexBConverter(boolean hevc, int strip) {
+        mHevc = hevc;
+        mStrip = strip;
+    }
+
+    /**
+     * 转换data[offset, offset+length)中的一个访问单元。第一个起始码之前的数据会被丢弃。
+     * 原地转换时data的内容会被改写。
+     *
+     * @return 转换后的长度，结果位于{@link #output()}的{@link #outputOffset()}处，直到下一次调用
+     */
+    public int convert(byte[] data, int offset, int length) {
+        final NalScanner scanner = mScanner;
+        final int count = scanner.scan(data, offset, length, mHevc);
+
+        // 先算出输出长度，并检查每个NAL的长度字段是否都能写在它自己的NAL头之前
+        boolean inPlace = true;
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            int nalLength = nalLength(data, i);
+            if (nalLength == 0) {
+                continue;
+            }
+            if (offset + size + LENGTH_SIZE > scanner.offset(i)) {
+                inPlace = false;
+            }
+            size += LENGTH_SIZE + nalLength;
+        }
+
+        byte[] out;
+        int pos;
+        if (inPlace) {
+            out = data;
+            pos = offset;
+        } else {
+            if (mScratch.length < size) {
+                // 按2的幂增长，码率波动时不会反复分配
+                mScratch = new byte[Integer.highestOneBit(size - 1) << 1];
+            }
+            out = mScratch;
+            pos = 0;
+        }
+        mOutput = out;
+        mOutputOffset = pos;
+
+        for (int i = 0; i < count; i++) {
+            int nalLength = nalLength(data, i);
+            if (nalLength == 0) {
+                continue;
+            }
+            int nal = scanner.offset(i);
+            out[pos] = (byte) (nalLength >>> 24);
+            out[pos + 1] = (byte) (nalLength >>> 16);
+            out[pos + 2] = (byte) (nalLength >>> 8);
+            out[pos + 3] = (byte) nalLength;
+            pos += LENGTH_SIZE;
+            if (out != data || pos != nal) {
+                System.arraycopy(data, nal, out, pos, nalLength);
+            }
+            pos += nalLength;
+        }
+        return size;
+    }
+
+    public byte[] output() {
+        return mOutput;
+    }
+
+    public int outputOffset() {
+        return mOutputOffset;
+    }
+
+    /**
+     * 第i个NAL去掉末尾的0之后的长度，需要去掉的NAL返回0。
+     */
+    private int nalLength(byte[] data, int i) {
+        if (shouldStrip(mScanner.type(i))) {
+            return 0;
+        }
+
+        final int nal = mScanner.offset(i);
+        int length = mScanner.length(i);
+        // trailing_zero_8bits，以及4字节起始码之前多出来的0
+        while (length > 0 && data[nal + length - 1] == 0) {
+            length--;
+        }
+        return length;
+    }
+
+    private boolean shouldStrip(int type) {
+        if ((mStrip & STRIP_PARAMETER_SETS) != 0) {
+            if (mHevc ? type == NalScanner.H265_NAL_VPS || type == NalScanner.H265_NAL_SPS || type == NalScanner.H265_NAL_PPS
+                    : type == NalScanner.H264_NAL_SPS || type == NalScanner.H264_NAL_PPS) {
+                return true;
+            }
+        }
+        if ((mStrip & STRIP_AUD) != 0) {
+            return type == (mHevc ? NalScanner.H265_NAL_AUD : NalScanner.H264_NAL_AUD);
+        }
+        return false;
+    }
+}
@@ -218,13 +218,9 @@ public final class CodecSpecificDataUtil {
    * @return The index of the first byte of the found start code, or {@link C#INDEX_UNSET}.
    */
   private static int findNalStartCode(byte[] data, int index) {
-    int endIndex = data.length - NAL_START_CODE.length;
-    for (int i = index; i <= endIndex; i++) {
-      if (isNalStartCode(data, i)) {
-        return i;
-      }
-    }
-    return C.INDEX_UNSET;
+    // The start code must be followed by at least one byte, as in isNalStartCode.
+    int startCode = NalScanner.findStartCode4(data, index, data.length - 1);
+    return startCode < 0 ? C.INDEX_UNSET : startCode;
   }
 
   /**
@@ -248,19 +244,17 @@ public final class CodecSpecificDataUtil {
 
 
   /**
-   * Returns a color format that is supported by the codec and by this test code.  If no
-   * match is found, this throws a test failure -- the set of formats known to the test
-   * should be expanded for new platforms.
+   * Returns a color format that is supported by the codec and by this test code, or 0 if none
+   * of the codec's formats is known.
    */
-  public static int selectColorFormat(MediaCodecInfo codecInfo, String mimeType) {
-    MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(mimeType);
+  public static int selectColorFormat(MediaCodecInfo.CodecCapabilities capabilities) {
     for (int i = 0; i < capabilities.colorFormats.length; i++) {
       int colorFormat = capabilities.colorFormats[i];
       if (isRecognizedFormat(colorFormat)) {
         return colorFormat;
       }
     }
-    return 0;   // not reached
+    return 0;
   }
   /**
    * Returns true if this is a color format that this test code understands (i.e. we know how
@@ -0,0 +1,402 @@
+package org.easydarwin.util;
+
+/**
+ * H.264序列参数集（SPS）解析，见ITU-T H.264 7.3.2.1.1和附录E。
+ * <p>
+ * 在收到第一个关键帧时就能得到裁剪后的图像尺寸、档次级别、DPB大小和帧率，
+ * 用来在配置解码器时给出准确的尺寸和输入缓冲大小，不必等解码器输出INFO_OUTPUT_FORMAT_CHANGED。
+ * <p>
+ * 直接在NAL上读取，防竞争字节由{@link ParsableNalUnitBitArray}跳过，不复制数据。实例会复用读取器，不是线程安全的。
+ */
+public final class H264SpsParser {
+
+    /**
+     * 解析出来的SPS
+     */
+    public static final class Sps {
+        public int profileIdc;
+        /**
+         * constraint_set0_flag ~ constraint_set5_flag 以及保留位，共8位
+         */
+        public int constraintFlags;
+        public int levelIdc;
+        public int seqParameterSetId;
+
+        public int chromaFormatIdc = 1;
+        public boolean separateColourPlane;
+        public int bitDepthLuma = 8;
+        public int bitDepthChroma = 8;
+
+        public int log2MaxFrameNum;
+        public int picOrderCntType;
+        public int log2MaxPicOrderCntLsb;
+        public boolean deltaPicOrderAlwaysZero;
+        public int maxNumRefFrames;
+        public boolean frameMbsOnly;
+
+        /**
+         * 以宏块为单位的图像尺寸
+         */
+        public int picWidthInMbs;
+        public int frameHeightInMbs;
+
+        /**
+         * 裁剪掉的像素数
+         */
+        public int cropLeft;
+        public int cropRight;
+        public int cropTop;
+        public int cropBottom;
+
+        /**
+         * 裁剪后的显示尺寸
+         */
+        public int width;
+        public int height;
+
+        public int sarWidth = 1;
+        public int sarHeight = 1;
+        public boolean videoFullRange;
+        public int colourPrimaries = 2;
+        public int transferCharacteristics = 2;
+        public int matrixCoefficients = 2;
+
+        public boolean timingInfoPresent;
+        public long numUnitsInTick;
+        public long timeScale;
+        public boolean fixedFrameRate;
+
+        public int maxNumReorderFrames = -1;
+        /**
+         * 解码图像缓冲需要的帧数，VUI中没有给出时按级别计算
+         */
+        public int maxDecFrameBuffering;
+
+        public int codedWidth() {
+            return picWidthInMbs * 16;
+        }
+
+        public int codedHeight() {
+            return frameHeightInMbs * 16;
+        }
+
+        /**
+         * 帧率，VUI中没有时间信息时返回0
+         */
+        public float frameRate() {
+            if (!timingInfoPresent || numUnitsInTick == 0) {
+                return 0;
+            }
+            // H.264的时钟以场为单位
+            return timeScale / (2f * numUnitsInTick);
+        }
+
+        /**
+         * 解码器需要的输入缓冲大小。按YUV420原始大小的一半估算，即最小压缩比为2。
+         */
+        public int maxInputSize() {
+            return codedWidth() * codedHeight() * 3 / 4;
+        }
+
+        /**
+         * 按previous配置的解码器能否继续解码这个SPS，即图像尺寸、档次、色度格式、位深都没变，
+         * 需要的解码图像缓冲也没有变大。码率、VUI等其他参数变化时返回true。
+         */
+        public boolean isFormatCompatible(Sps previous) {
+            return profileIdc == previous.profileIdc
+                    && chromaFormatIdc == previous.chromaFormatIdc
+                    && separateColourPlane == previous.separateColourPlane
+                    && bitDepthLuma == previous.bitDepthLuma
+                    && bitDepthChroma == previous.bitDepthChroma
+                    && frameMbsOnly == previous.frameMbsOnly
+                    && picWidthInMbs == previous.picWidthInMbs
+                    && frameHeightInMbs == previous.frameHeightInMbs
+                    && width == previous.width
+                    && height == previous.height
+                    && maxDecFrameBuffering <= previous.maxDecFrameBuffering;
+        }
+
+        @Override
+        public String toString() {
+            return "Sps{profile=" + profileIdc + ", level=" + levelIdc + ", id=" + seqParameterSetId
+                    + ", " + width + "x" + height + ", coded=" + codedWidth() + "x" + codedHeight()
+                    + ", dpb=" + maxDecFrameBuffering + ", fps=" + frameRate() + "}";
+        }
+    }
+
+    private final ParsableNalUnitBitArray mBits = new ParsableNalUnitBitArray();
+
+    /**
+     * 解析一个SPS NAL。
+     *
+     * @param offset NAL头的位置，不含起始码
+     * @param length NAL的长度
+     * @return 数据不完整或不合法时返回null
+     */
+    public Sps parse(byte[] data, int offset, int length) {
+        if (length < 4 || (data[offset] & 0x1F) != NalScanner.H264_NAL_SPS) {
+            return null;
+        }
+
+        // 跳过NAL头
+        ParsableNalUnitBitArray bits = mBits;
+        bits.reset(data, offset + 1, offset + length);
+
+        try {
+            Sps sps = parse(bits);
+            if (bits.bitsLeft() < 0 || sps.width <= 0 || sps.height <= 0) {
+                return null;
+            }
+            return sps;
+        } catch (RuntimeException e) {
+            // 数据被截断或者不合法
+            return null;
+        }
+    }
+
+    private static Sps parse(ParsableNalUnitBitArray bits) {
+        Sps sps = new Sps();
+        sps.profileIdc = bits.readBits(8);
+        sps.constraintFlags = bits.readBits(8);
+        sps.levelIdc = bits.readBits(8);
+        sps.seqParameterSetId = bits.readUnsignedExpGolombCodedInt();
+
+        int profile = sps.profileIdc;
+        if (profile == 100 || profile == 110 || profile == 122 || profile == 244 || profile == 44
+                || profile == 83 || profile == 86 || profile == 118 || profile == 128 || profile == 138
+                || profile == 139 || profile == 134 || profile == 135) {
+            sps.chromaFormatIdc = bits.readUnsignedExpGolombCodedInt();
+            if (sps.chromaFormatIdc == 3) {
+                sps.separateColourPlane = bits.readBit();
+            }
+            sps.bitDepthLuma = bits.readUnsignedExpGolombCodedInt() + 8;
+            sps.bitDepthChroma = bits.readUnsignedExpGolombCodedInt() + 8;
+            bits.skipBits(1); // qpprime_y_zero_transform_bypass_flag
+            boolean seqScalingMatrixPresent = bits.readBit();
+            if (seqScalingMatrixPresent) {
+                int count = sps.chromaFormatIdc != 3 ? 8 : 12;
+                for (int i = 0; i < count; i++) {
+                    if (bits.readBit()) {
+                        skipScalingList(bits, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+
+        sps.log2MaxFrameNum = bits.readUnsignedExpGolombCodedInt() + 4;
+        sps.picOrderCntType = bits.readUnsignedExpGolombCodedInt();
+        if (sps.picOrderCntType == 0) {
+            sps.log2MaxPicOrderCntLsb = bits.readUnsignedExpGolombCodedInt() + 4;
+        } else if (sps.picOrderCntType == 1) {
+            sps.deltaPicOrderAlwaysZero = bits.readBit();
+            bits.readSignedExpGolombCodedInt(); // offset_for_non_ref_pic
+            bits.readSignedExpGolombCodedInt(); // offset_for_top_to_bottom_field
+            int numRefFramesInPicOrderCntCycle = bits.readUnsignedExpGolombCodedInt();
+            for (int i = 0; i < numRefFramesInPicOrderCntCycle; i++) {
+                bits.readSignedExpGolombCodedInt(); // offset_for_ref_frame[i]
+            }
+        }
+
+        sps.maxNumRefFrames = bits.readUnsignedExpGolombCodedInt();
+        bits.skipBits(1); // gaps_in_frame_num_value_allowed_flag
+
+        sps.picWidthInMbs = bits.readUnsignedExpGolombCodedInt() + 1;
+        int picHeightInMapUnits = bits.readUnsignedExpGolombCodedInt() + 1;
+        sps.frameMbsOnly = bits.readBit();
+        sps.frameHeightInMbs = (sps.frameMbsOnly ? 1 : 2) * picHeightInMapUnits;
+        if (!sps.frameMbsOnly) {
+            bits.skipBits(1); // mb_adaptive_frame_field_flag
+        }
+        bits.skipBits(1); // direct_8x8_inference_flag
+
+        if (bits.readBit()) {
+            // frame_cropping_flag
+            int chromaArrayType = sps.separateColourPlane ? 0 : sps.chromaFormatIdc;
+            int cropUnitX;
+            int cropUnitY;
+            if (chromaArrayType == 0) {
+                cropUnitX = 1;
+                cropUnitY = sps.frameMbsOnly ? 1 : 2;
+            } else {
+                int subWidthC = chromaArrayType == 3 ? 1 : 2;
+                int subHeightC = chromaArrayType == 1 ? 2 : 1;
+                cropUnitX = subWidthC;
+                cropUnitY = subHeightC * (sps.frameMbsOnly ? 1 : 2);
+            }
+            sps.cropLeft = bits.readUnsignedExpGolombCodedInt() * cropUnitX;
+            sps.cropRight = bits.readUnsignedExpGolombCodedInt() * cropUnitX;
+            sps.cropTop = bits.readUnsignedExpGolombCodedInt() * cropUnitY;
+            sps.cropBottom = bits.readUnsignedExpGolombCodedInt() * cropUnitY;
+        }
+        sps.width = sps.codedWidth() - sps.cropLeft - sps.cropRight;
+        sps.height = sps.codedHeight() - sps.cropTop - sps.cropBottom;
+
+        if (bits.readBit()) {
+            // vui_parameters_present_flag
+            parseVui(bits, sps);
+        }
+
+        if (sps.maxDecFrameBuffering <= 0) {
+            sps.maxDecFrameBuffering = maxDpbFrames(sps);
+        }
+        return sps;
+    }
+
+    /**
+     * VUI，见附录E.1.1
+     */
+    private static void parseVui(ParsableNalUnitBitArray bits, Sps sps) {
+        if (bits.readBit()) {
+            // aspect_ratio_info_present_flag
+            int aspectRatioIdc = bits.readBits(8);
+            if (aspectRatioIdc == 255) {
+                // Extended_SAR
+                sps.sarWidth = bits.readBits(16);
+                sps.sarHeight = bits.readBits(16);
+            } else if (aspectRatioIdc > 0 && aspectRatioIdc < ASPECT_RATIO_IDC_SAR.length) {
+                sps.sarWidth = ASPECT_RATIO_IDC_SAR[aspectRatioIdc][0];
+                sps.sarHeight = ASPECT_RATIO_IDC_SAR[aspectRatioIdc][1];
+            }
+        }
+        if (bits.readBit()) {
+            // overscan_info_present_flag
+            bits.skipBits(1); // overscan_appropriate_flag
+        }
+        if (bits.readBit()) {
+            // video_signal_type_present_flag
+            bits.skipBits(3); // video_format
+            sps.videoFullRange = bits.readBit();
+            if (bits.readBit()) {
+                // colour_description_present_flag
+                sps.colourPrimaries = bits.readBits(8);
+                sps.transferCharacteristics = bits.readBits(8);
+                sps.matrixCoefficients = bits.readBits(8);
+            }
+        }
+        if (bits.readBit()) {
+            // chroma_loc_info_present_flag
+            bits.readUnsignedExpGolombCodedInt(); // chroma_sample_loc_type_top_field
+            bits.readUnsignedExpGolombCodedInt(); // chroma_sample_loc_type_bottom_field
+        }
+        sps.timingInfoPresent = bits.readBit();
+        if (sps.timingInfoPresent) {
+            sps.numUnitsInTick = bits.readBits(32) & 0xFFFFFFFFL;
+            sps.timeScale = bits.readBits(32) & 0xFFFFFFFFL;
+            sps.fixedFrameRate = bits.readBit();
+        }
+        boolean nalHrd = bits.readBit();
+        if (nalHrd) {
+            skipHrdParameters(bits);
+        }
+        boolean vclHrd = bits.readBit();
+        if (vclHrd) {
+            skipHrdParameters(bits);
+        }
+        if (nalHrd || vclHrd) {
+            bits.skipBits(1); // low_delay_hrd_flag
+        }
+        bits.skipBits(1); // pic_struct_present_flag
+        if (bits.readBit()) {
+            // bitstream_restriction_flag
+            bits.skipBits(1); // motion_vectors_over_pic_boundaries_flag
+            bits.readUnsignedExpGolombCodedInt(); // max_bytes_per_pic_denom
+            bits.readUnsignedExpGolombCodedInt(); // max_bits_per_mb_denom
+            bits.readUnsignedExpGolombCodedInt(); // log2_max_mv_length_horizontal
+            bits.readUnsignedExpGolombCodedInt(); // log2_max_mv_length_vertical
+            sps.maxNumReorderFrames = bits.readUnsignedExpGolombCodedInt();
+            sps.maxDecFrameBuffering = bits.readUnsignedExpGolombCodedInt();
+        }
+    }
+
+    /**
+     * hrd_parameters，见E.1.2
+     */
+    private static void skipHrdParameters(ParsableNalUnitBitArray bits) {
+        int cpbCnt = bits.readUnsignedExpGolombCodedInt() + 1;
+        bits.skipBits(8); // bit_rate_scale, cpb_size_scale
+        for (int i = 0; i < cpbCnt; i++) {
+            bits.readUnsignedExpGolombCodedInt(); // bit_rate_value_minus1
+            bits.readUnsignedExpGolombCodedInt(); // cpb_size_value_minus1
+            bits.skipBits(1); // cbr_flag
+        }
+        // initial_cpb_removal_delay_length_minus1, cpb_removal_delay_length_minus1,
+        // dpb_output_delay_length_minus1, time_offset_length
+        bits.skipBits(20);
+    }
+
+    private static void skipScalingList(ParsableNalUnitBitArray bits, int size) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int i = 0; i < size; i++) {
+            if (nextScale != 0) {
+                int deltaScale = bits.readSignedExpGolombCodedInt();
+                nextScale = (lastScale + deltaScale + 256) % 256;
+            }
+            lastScale = (nextScale == 0) ? lastScale : nextScale;
+        }
+    }
+
+    /**
+     * 按表A-1的MaxDpbMbs计算DPB能容纳的帧数
+     */
+    private static int maxDpbFrames(Sps sps) {
+        int maxDpbMbs;
+        switch (sps.levelIdc) {
+            case 9:
+            case 10:
+                maxDpbMbs = 396;
+                break;
+            case 11:
+                // level 1b 在Baseline/Main/Extended中用 level_idc=11 + constraint_set3_flag 表示
+                boolean level1b = (sps.constraintFlags & 0x10) != 0
+                        && (sps.profileIdc == 66 || sps.profileIdc == 77 || sps.profileIdc == 88);
+                maxDpbMbs = level1b ? 396 : 900;
+                break;
+            case 12:
+            case 13:
+            case 20:
+                maxDpbMbs = 2376;
+                break;
+            case 21:
+                maxDpbMbs = 4752;
+                break;
+            case 22:
+            case 30:
+                maxDpbMbs = 8100;
+                break;
+            case 31:
+                maxDpbMbs = 18000;
+                break;
+            case 32:
+                maxDpbMbs = 20480;
+                break;
+            case 40:
+            case 41:
+                maxDpbMbs = 32768;
+                break;
+            case 42:
+                maxDpbMbs = 34816;
+                break;
+            case 50:
+                maxDpbMbs = 110400;
+                break;
+            case 51:
+            case 52:
+                maxDpbMbs = 184320;
+                break;
+            default:
+                maxDpbMbs = 696320;
+                break;
+        }
+        int frameMbs = sps.picWidthInMbs * sps.frameHeightInMbs;
+        return Math.max(1, Math.min(maxDpbMbs / frameMbs, 16));
+    }
+
+    /**
+     * 表E-1，aspect_ratio_idc 对应的样本宽高比
+     */
+    private static final int[][] ASPECT_RATIO_IDC_SAR = {
+            {0, 0}, {1, 1}, {12, 11}, {10, 11}, {16, 11}, {40, 33}, {24, 11}, {20, 11}, {32, 11},
+            {80, 33}, {18, 11}, {15, 11}, {64, 33}, {160, 99}, {4, 3}, {3, 2}, {2, 1}
+    };
+}
@@ -0,0 +1,265 @@
+package org.easydarwin.util;
+
+/**
+ * H.265参数集（SPS/PPS）解析，见ITU-T H.265 7.3.2和7.3.3。
+ * <p>
+ * 用于在配置解码器之前得到档次、层级、级别、图像尺寸、位深和色度格式，以及解析条带头需要的PPS字段。
+ * SPS只解析到sub_layer_ordering_info为止，之后的字段目前用不到。
+ * <p>
+ * 直接在NAL上读取，防竞争字节由{@link ParsableNalUnitBitArray}跳过，不复制数据。实例会复用读取器，不是线程安全的。
+ */
+public final class H265ParameterSetParser {
+
+    /**
+     * profile_tier_level()中的general部分
+     */
+    public static final class ProfileTierLevel {
+        public int profileSpace;
+        public boolean tierFlag;
+        public int profileIdc;
+        public int profileCompatibilityFlags;
+        /**
+         * general_progressive_source_flag 开始的48位
+         */
+        public long constraintIndicatorFlags;
+        /**
+         * 级别乘以30，例如4.1为123
+         */
+        public int levelIdc;
+
+        @Override
+        public String toString() {
+            return "profile=" + profileIdc + ", tier=" + (tierFlag ? "high" : "main") + ", level=" + levelIdc;
+        }
+    }
+
+    public static final class Sps {
+        public int vpsId;
+        public int maxSubLayers;
+        public boolean temporalIdNesting;
+        public final ProfileTierLevel profileTierLevel = new ProfileTierLevel();
+        public int spsId;
+
+        public int chromaFormatIdc;
+        public boolean separateColourPlane;
+
+        /**
+         * 解码的图像尺寸
+         */
+        public int picWidth;
+        public int picHeight;
+
+        /**
+         * 一致性窗口裁剪掉的像素数
+         */
+        public int confWinLeft;
+        public int confWinRight;
+        public int confWinTop;
+        public int confWinBottom;
+
+        /**
+         * 裁剪后的显示尺寸
+         */
+        public int width;
+        public int height;
+
+        public int bitDepthLuma;
+        public int bitDepthChroma;
+        public int log2MaxPicOrderCntLsb;
+
+        /**
+         * 最高时域层的sps_max_dec_pic_buffering_minus1 + 1
+         */
+        public int maxDecPicBuffering;
+        public int maxNumReorderPics;
+
+        /**
+         * 解码器需要的输入缓冲大小，按最小压缩比4估算。
+         */
+        public int maxInputSize() {
+            return picWidth * picHeight * 3 / 8;
+        }
+
+        /**
+         * 按previous配置的解码器能否继续解码这个SPS，即图像尺寸、档次、色度格式、位深都没变，
+         * 需要的解码图像缓冲也没有变大。
+         */
+        public boolean isFormatCompatible(Sps previous) {
+            return profileTierLevel.profileIdc == previous.profileTierLevel.profileIdc
+                    && chromaFormatIdc == previous.chromaFormatIdc
+                    && separateColourPlane == previous.separateColourPlane
+                    && bitDepthLuma == previous.bitDepthLuma
+                    && bitDepthChroma == previous.bitDepthChroma
+                    && picWidth == previous.picWidth
+                    && picHeight == previous.picHeight
+                    && width == previous.width
+                    && height == previous.height
+                    && maxDecPicBuffering <= previous.maxDecPicBuffering;
+        }
+
+        @Override
+        public String toString() {
+            return "Sps{" + profileTierLevel + ", id=" + spsId + ", " + width + "x" + height
+                    + ", chroma=" + chromaFormatIdc + ", depth=" + bitDepthLuma + "/" + bitDepthChroma
+                    + ", dpb=" + maxDecPicBuffering + "}";
+        }
+    }
+
+    public static final class Pps {
+        public int ppsId;
+        public int spsId;
+        public boolean dependentSliceSegmentsEnabled;
+        public boolean outputFlagPresent;
+        public int numExtraSliceHeaderBits;
+        public boolean signDataHiding;
+        public boolean cabacInitPresent;
+        public int numRefIdxL0DefaultActive;
+        public int numRefIdxL1DefaultActive;
+        public int initQp;
+        public boolean tilesEnabled;
+        public boolean entropyCodingSyncEnabled;
+    }
+
+    private final ParsableNalUnitBitArray mBits = new ParsableNalUnitBitArray();
+
+    /**
+     * @param offset NAL头的位置，不含起始码
+     * @return 不是SPS或者数据不合法时返回null
+     */
+    public Sps parseSps(byte[] data, int offset, int length) {
+        ParsableNalUnitBitArray bits = rbsp(data, offset, length, NalScanner.H265_NAL_SPS);
+        if (bits == null) {
+            return null;
+        }
+
+        try {
+            Sps sps = new Sps();
+            sps.vpsId = bits.readBits(4);
+            sps.maxSubLayers = bits.readBits(3) + 1;
+            sps.temporalIdNesting = bits.readBit();
+            parseProfileTierLevel(bits, sps.profileTierLevel, sps.maxSubLayers - 1);
+            sps.spsId = bits.readUnsignedExpGolombCodedInt();
+
+            sps.chromaFormatIdc = bits.readUnsignedExpGolombCodedInt();
+            if (sps.chromaFormatIdc == 3) {
+                sps.separateColourPlane = bits.readBit();
+            }
+            sps.picWidth = bits.readUnsignedExpGolombCodedInt();
+            sps.picHeight = bits.readUnsignedExpGolombCodedInt();
+            if (bits.readBit()) {
+                // conformance_window_flag，偏移以色度样本为单位，见表6-1
+                int chromaArrayType = sps.separateColourPlane ? 0 : sps.chromaFormatIdc;
+                int subWidthC = chromaArrayType == 1 || chromaArrayType == 2 ? 2 : 1;
+                int subHeightC = chromaArrayType == 1 ? 2 : 1;
+                sps.confWinLeft = bits.readUnsignedExpGolombCodedInt() * subWidthC;
+                sps.confWinRight = bits.readUnsignedExpGolombCodedInt() * subWidthC;
+                sps.confWinTop = bits.readUnsignedExpGolombCodedInt() * subHeightC;
+                sps.confWinBottom = bits.readUnsignedExpGolombCodedInt() * subHeightC;
+            }
+            sps.width = sps.picWidth - sps.confWinLeft - sps.confWinRight;
+            sps.height = sps.picHeight - sps.confWinTop - sps.confWinBottom;
+
+            sps.bitDepthLuma = bits.readUnsignedExpGolombCodedInt() + 8;
+            sps.bitDepthChroma = bits.readUnsignedExpGolombCodedInt() + 8;
+            sps.log2MaxPicOrderCntLsb = bits.readUnsignedExpGolombCodedInt() + 4;
+
+            boolean subLayerOrderingInfoPresent = bits.readBit();
+            for (int i = subLayerOrderingInfoPresent ? 0 : sps.maxSubLayers - 1; i < sps.maxSubLayers; i++) {
+                // 只保留最高时域层的值
+                sps.maxDecPicBuffering = bits.readUnsignedExpGolombCodedInt() + 1;
+                sps.maxNumReorderPics = bits.readUnsignedExpGolombCodedInt();
+                bits.readUnsignedExpGolombCodedInt(); // sps_max_latency_increase_plus1
+            }
+
+            if (bits.bitsLeft() < 0 || sps.width <= 0 || sps.height <= 0) {
+                return null;
+            }
+            return sps;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param offset NAL头的位置，不含起始码
+     * @return 不是PPS或者数据不合法时返回null
+     */
+    public Pps parsePps(byte[] data, int offset, int length) {
+        ParsableNalUnitBitArray bits = rbsp(data, offset, length, NalScanner.H265_NAL_PPS);
+        if (bits == null) {
+            return null;
+        }
+
+        try {
+            Pps pps = new Pps();
+            pps.ppsId = bits.readUnsignedExpGolombCodedInt();
+            pps.spsId = bits.readUnsignedExpGolombCodedInt();
+            pps.dependentSliceSegmentsEnabled = bits.readBit();
+            pps.outputFlagPresent = bits.readBit();
+            pps.numExtraSliceHeaderBits = bits.readBits(3);
+            pps.signDataHiding = bits.readBit();
+            pps.cabacInitPresent = bits.readBit();
+            pps.numRefIdxL0DefaultActive = bits.readUnsignedExpGolombCodedInt() + 1;
+            pps.numRefIdxL1DefaultActive = bits.readUnsignedExpGolombCodedInt() + 1;
+            pps.initQp = 26 + bits.readSignedExpGolombCodedInt();
+            bits.skipBits(2); // constrained_intra_pred_flag, transform_skip_enabled_flag
+            if (bits.readBit()) {
+                // cu_qp_delta_enabled_flag
+                bits.readUnsignedExpGolombCodedInt(); // diff_cu_qp_delta_depth
+            }
+            bits.readSignedExpGolombCodedInt(); // pps_cb_qp_offset
+            bits.readSignedExpGolombCodedInt(); // pps_cr_qp_offset
+            // pps_slice_chroma_qp_offsets_present_flag, weighted_pred_flag, weighted_bipred_flag,
+            // transquant_bypass_enabled_flag
+            bits.skipBits(4);
+            pps.tilesEnabled = bits.readBit();
+            pps.entropyCodingSyncEnabled = bits.readBit();
+            return bits.bitsLeft() < 0 ? null : pps;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * profile_tier_level(1, maxNumSubLayersMinus1)，见7.3.3。只保留general部分。
+     */
+    private static void parseProfileTierLevel(ParsableNalUnitBitArray bits, ProfileTierLevel ptl, int maxNumSubLayersMinus1) {
+        ptl.profileSpace = bits.readBits(2);
+        ptl.tierFlag = bits.readBit();
+        ptl.profileIdc = bits.readBits(5);
+        ptl.profileCompatibilityFlags = bits.readBits(32);
+        ptl.constraintIndicatorFlags = ((long) bits.readBits(16) << 32) | (bits.readBits(32) & 0xFFFFFFFFL);
+        ptl.levelIdc = bits.readBits(8);
+
+        // sub_layer_profile_present_flag和sub_layer_level_present_flag，每层一位
+        int subLayerProfilePresent = 0;
+        int subLayerLevelPresent = 0;
+        for (int i = 0; i < maxNumSubLayersMinus1; i++) {
+            subLayerProfilePresent |= (bits.readBit() ? 1 : 0) << i;
+            subLayerLevelPresent |= (bits.readBit() ? 1 : 0) << i;
+        }
+        if (maxNumSubLayersMinus1 > 0) {
+            bits.skipBits(2 * (8 - maxNumSubLayersMinus1)); // reserved_zero_2bits
+        }
+        for (int i = 0; i < maxNumSubLayersMinus1; i++) {
+            if ((subLayerProfilePresent & (1 << i)) != 0) {
+                bits.skipBits(88);
+            }
+            if ((subLayerLevelPresent & (1 << i)) != 0) {
+                bits.skipBits(8);
+            }
+        }
+    }
+
+    /**
+     * 检查NAL类型，跳过2字节的NAL头。
+     */
+    private ParsableNalUnitBitArray rbsp(byte[] data, int offset, int length, int type) {
+        if (length < 3 || ((data[offset] >> 1) & 0x3F) != type) {
+            return null;
+        }
+
+        mBits.reset(data, offset + 2, offset + length);
+        return mBits;
+    }
+}
@@ -0,0 +1,188 @@
+package org.easydarwin.util;
+
+/**
+ * Annex-B码流的起始码扫描。
+ * <p>
+ * 每次看候选起始码的第3个字节，大于1时一步跳过3个字节，只在遇到0或1时回头确认。压缩后的slice数据中0和1很少，
+ * 大部分数据只需要读取三分之一的字节。没有采用每次拼8个字节再判断是否含0字节的做法：Java中从byte[]拼出long需要8次读取，
+ * 实测比逐字节扫描还慢。
+ * <p>
+ * {@link #scan}把找到的NAL写入一个可重复使用的int数组，之后通过下标查询起始码位置、NAL位置、长度和类型。
+ * 实例不是线程安全的，每个扫描线程使用自己的实例。
+ */
+public final class NalScanner {
+
+    public static final int H264_NAL_IDR = 5;
+    public static final int H264_NAL_SEI = 6;
+    public static final int H264_NAL_SPS = 7;
+    public static final int H264_NAL_PPS = 8;
+    public static final int H264_NAL_AUD = 9;
+
+    public static final int H265_NAL_VPS = 32;
+    public static final int H265_NAL_SPS = 33;
+    public static final int H265_NAL_PPS = 34;
+    public static final int H265_NAL_AUD = 35;
+    public static final int H265_NAL_PREFIX_SEI = 39;
+    public static final int H265_NAL_SUFFIX_SEI = 40;
+
+    // 每个NAL占4个int：起始码位置、NAL头位置、NAL长度（不含起始码）、NAL类型
+    private static final int STRIDE = 4;
+    private static final int START = 0;
+    private static final int OFFSET = 1;
+    private static final int LENGTH = 2;
+    private static final int TYPE = 3;
+
+    private int[] mNals = new int[16 * STRIDE];
+    private int mCount;
+
+    /**
+     * 扫描data[offset, offset+length)中的所有NAL。
+     *
+     * @param hevc true时按H.265解析NAL类型，否则按H.264
+     * @return NAL的个数
+     */
+    public int scan(byte[] data, int offset, int length, boolean hevc) {
+        final int limit = Math.min(offset + length, data.length);
+        mCount = 0;
+
+        int p = findStartCode(data, offset, limit);
+        while (p >= 0) {
+            final int nal = p + 3;
+            if (nal >= limit) {
+                break;
+            }
+
+            int next = findStartCode(data, nal, limit);
+            int end = next < 0 ? limit : startOf(data, offset, next);
+            int header = data[nal] & 0xFF;
+            add(startOf(data, offset, p), nal, end - nal, hevc ? (header >> 1) & 0x3F : header & 0x1F);
+            p = next;
+        }
+        return mCount;
+    }
+
+    /**
+     * 上一次{@link #scan}找到的NAL个数
+     */
+    public int count() {
+        return mCount;
+    }
+
+    /**
+     * 第i个NAL的起始码位置，4字节起始码时指向第一个0
+     */
+    public int start(int i) {
+        return mNals[i * STRIDE + START];
+    }
+
+    /**
+     * 第i个NAL的NAL头位置
+     */
+    public int offset(int i) {
+        return mNals[i * STRIDE + OFFSET];
+    }
+
+    /**
+     * 第i个NAL的长度，不含起始码
+     */
+    public int length(int i) {
+        return mNals[i * STRIDE + LENGTH];
+    }
+
+    /**
+     * 第i个NAL的结束位置，即下一个起始码的位置或者扫描范围的末尾
+     */
+    public int end(int i) {
+        return offset(i) + length(i);
+    }
+
+    public int type(int i) {
+        return mNals[i * STRIDE + TYPE];
+    }
+
+    /**
+     * 从第from个NAL开始查找type类型的NAL。
+     *
+     * @return 下标，没有找到时返回-1
+     */
+    public int indexOf(int type, int from) {
+        for (int i = from; i < mCount; i++) {
+            if (mNals[i * STRIDE + TYPE] == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int indexOf(int type) {
+        return indexOf(type, 0);
+    }
+
+    private void add(int start, int offset, int length, int type) {
+        int pos = mCount * STRIDE;
+        if (pos + STRIDE > mNals.length) {
+            int[] nals = new int[mNals.length * 2];
+            System.arraycopy(mNals, 0, nals, 0, pos);
+            mNals = nals;
+        }
+
+        mNals[pos + START] = start;
+        mNals[pos + OFFSET] = offset;
+        mNals[pos + LENGTH] = length;
+        mNals[pos + TYPE] = type;
+        mCount++;
+    }
+
+    /**
+     * 3字节起始码p前面还有一个0时，返回4字节起始码的位置。
+     */
+    private static int startOf(byte[] data, int lowerBound, int p) {
+        return p > lowerBound && data[p - 1] == 0 ? p - 1 : p;
+    }
+
+    /**
+     * 查找data[from, limit)中下一个 00 00 01 的位置。
+     *
+     * @return 起始码第一个字节的位置，没有找到时返回-1
+     */
+    public static int findStartCode(byte[] data, int from, int limit) {
+        limit = Math.min(limit, data.length);
+        // i是候选起始码中01所在的位置
+        int i = from + 2;
+
+        while (i < limit) {
+            final int b = data[i];
+            if ((b & 0xFE) != 0) {
+                // 大于1，以i-2、i-1、i开始的都不可能是起始码
+                i += 3;
+            } else if (b == 0) {
+                i++;
+            } else {
+                if (data[i - 1] == 0 && data[i - 2] == 0) {
+                    return i - 2;
+                }
+                i += 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 查找data[from, limit)中下一个4字节起始码 00 00 00 01 的位置。
+     *
+     * @return 起始码第一个字节的位置，没有找到时返回-1
+     */
+    public static int findStartCode4(byte[] data, int from, int limit) {
+        int i = from;
+        while (true) {
+            int p = findStartCode(data, i + 1, limit);
+            if (p < 0) {
+                return -1;
+            }
+            if (data[p - 1] == 0) {
+                return p - 1;
+            }
+            i = p;
+        }
+    }
+}
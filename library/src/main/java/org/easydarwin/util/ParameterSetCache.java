@@ -0,0 +1,314 @@
+package org.easydarwin.util;
+
+import java.util.Arrays;
+
+/**
+ * 按id缓存码流中的参数集（H.264的SPS/PPS，H.265的VPS/SPS/PPS），判断关键帧带来的参数集有没有变化。
+ * <p>
+ * 很多编码器每个IDR都重发参数集，内容和之前完全一样；切换码率档位时也可能只改PPS，或者只改SPS中的VUI。
+ * {@link #update}先按内容哈希和已缓存的参数集比较，相同时不再解析。有变化时解析SPS并比较图像尺寸等和解码器配置有关的字段，
+ * 区分需要重新配置解码器的变化和只需要把新参数集送入解码器的变化。
+ * <p>
+ * 实例不是线程安全的，只在生产者线程使用。
+ */
+public final class ParameterSetCache {
+
+    /**
+     * 参数集没有变化
+     */
+    public static final int UNCHANGED = 0;
+
+    /**
+     * PPS、VPS或者SPS中和解码器配置无关的字段有变化，把新的参数集作为codec config送入解码器即可
+     */
+    public static final int CONFIG_CHANGED = 1;
+
+    /**
+     * 第一次收到SPS，或者图像格式有变化，需要重新配置解码器
+     */
+    public static final int FORMAT_CHANGED = 2;
+
+    private static final class Entry {
+        int hash;
+        byte[] data;
+        int length;
+        H264SpsParser.Sps avcSps;
+        H265ParameterSetParser.Sps hevcSps;
+        H265ParameterSetParser.Pps hevcPps;
+
+        boolean matches(int hash, byte[] src, int offset, int length) {
+            if (this.hash != hash || this.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (data[i] != src[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void set(int hash, byte[] src, int offset, int length) {
+            if (data == null || data.length < length) {
+                data = new byte[length];
+            }
+            System.arraycopy(src, offset, data, 0, length);
+            this.hash = hash;
+            this.length = length;
+        }
+    }
+
+    // 按id索引，大小为各参数集id的上限
+    private final Entry[] mVps = new Entry[16];
+    private final Entry[] mSps = new Entry[32];
+    private final Entry[] mPps = new Entry[256];
+
+    private final H264SpsParser mAvcParser = new H264SpsParser();
+    private final H265ParameterSetParser mHevcParser = new H265ParameterSetParser();
+    private final ParsableNalUnitBitArray mBits = new ParsableNalUnitBitArray();
+
+    private boolean mHevc;
+    private H264SpsParser.Sps mAvcSps;
+    private H265ParameterSetParser.Sps mHevcSps;
+
+    /**
+     * 用scanner最近一次扫描到的参数集更新缓存。
+     *
+     * @param data scanner扫描的数据
+     * @param hevc scanner是否按H.265扫描
+     * @return {@link #UNCHANGED}、{@link #CONFIG_CHANGED}或{@link #FORMAT_CHANGED}，有多个参数集时取变化最大的
+     */
+    public int update(byte[] data, NalScanner scanner, boolean hevc) {
+        if (hevc != mHevc) {
+            clear();
+            mHevc = hevc;
+        }
+
+        int result = UNCHANGED;
+        for (int i = 0; i < scanner.count(); i++) {
+            int type = scanner.type(i);
+            Entry[] table = tableOf(type);
+            if (table == null) {
+                continue;
+            }
+
+            int offset = scanner.offset(i);
+            int length = scanner.length(i);
+            int hash = hash(data, offset, length);
+            int id = readId(type, data, offset, length);
+            if (id >= table.length) {
+                continue;
+            }
+
+            Entry entry = id >= 0 ? table[id] : find(table, hash, data, offset, length);
+            if (entry != null && entry.matches(hash, data, offset, length)) {
+                continue;
+            }
+
+            int change = isSps(type) ? putSps(hash, data, offset, length) : putOther(table, type, id, hash, data, offset, length);
+            result = Math.max(result, change);
+        }
+        return result;
+    }
+
+    /**
+     * 最近一次更新的H.264 SPS
+     */
+    public H264SpsParser.Sps avcSps() {
+        return mAvcSps;
+    }
+
+    /**
+     * 最近一次更新的H.265 SPS
+     */
+    public H265ParameterSetParser.Sps hevcSps() {
+        return mHevcSps;
+    }
+
+    /**
+     * id对应的H.265 PPS，没有收到或者解析失败时返回null
+     */
+    public H265ParameterSetParser.Pps hevcPps(int id) {
+        if (!mHevc || id < 0 || id >= mPps.length || mPps[id] == null) {
+            return null;
+        }
+        return mPps[id].hevcPps;
+    }
+
+    public void clear() {
+        Arrays.fill(mVps, null);
+        Arrays.fill(mSps, null);
+        Arrays.fill(mPps, null);
+        mAvcSps = null;
+        mHevcSps = null;
+    }
+
+    /**
+     * 把scanner最近一次扫描到的参数集按顺序拼成带4字节起始码的Annex-B数据，用作codec config。
+     *
+     * @return 没有参数集时返回null
+     */
+    public static byte[] toAnnexB(byte[] data, NalScanner scanner, boolean hevc) {
+        int size = 0;
+        for (int i = 0; i < scanner.count(); i++) {
+            if (isParameterSet(scanner.type(i), hevc)) {
+                size += 4 + scanner.length(i);
+            }
+        }
+        if (size == 0) {
+            return null;
+        }
+
+        byte[] out = new byte[size];
+        int pos = 0;
+        for (int i = 0; i < scanner.count(); i++) {
+            if (isParameterSet(scanner.type(i), hevc)) {
+                out[pos + 3] = 1;
+                System.arraycopy(data, scanner.offset(i), out, pos + 4, scanner.length(i));
+                pos += 4 + scanner.length(i);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * type是否为参数集：H.264的SPS、PPS，H.265的VPS、SPS、PPS
+     */
+    public static boolean isParameterSet(int type, boolean hevc) {
+        if (hevc) {
+            return type == NalScanner.H265_NAL_VPS || type == NalScanner.H265_NAL_SPS || type == NalScanner.H265_NAL_PPS;
+        }
+        return type == NalScanner.H264_NAL_SPS || type == NalScanner.H264_NAL_PPS;
+    }
+
+    private int putSps(int hash, byte[] data, int offset, int length) {
+        final int id;
+        final boolean compatible;
+        if (mHevc) {
+            H265ParameterSetParser.Sps sps = mHevcParser.parseSps(data, offset, length);
+            if (sps == null || sps.spsId >= mSps.length) {
+                return UNCHANGED;
+            }
+            id = sps.spsId;
+            Entry previous = mSps[id];
+            H265ParameterSetParser.Sps old = previous != null ? previous.hevcSps : mHevcSps;
+            compatible = old != null && sps.isFormatCompatible(old);
+            entry(mSps, id).hevcSps = sps;
+            mHevcSps = sps;
+        } else {
+            H264SpsParser.Sps sps = mAvcParser.parse(data, offset, length);
+            if (sps == null || sps.seqParameterSetId >= mSps.length) {
+                return UNCHANGED;
+            }
+            id = sps.seqParameterSetId;
+            Entry previous = mSps[id];
+            H264SpsParser.Sps old = previous != null ? previous.avcSps : mAvcSps;
+            compatible = old != null && sps.isFormatCompatible(old);
+            entry(mSps, id).avcSps = sps;
+            mAvcSps = sps;
+        }
+        mSps[id].set(hash, data, offset, length);
+        return compatible ? CONFIG_CHANGED : FORMAT_CHANGED;
+    }
+
+    private int putOther(Entry[] table, int type, int id, int hash, byte[] data, int offset, int length) {
+        if (id < 0) {
+            return UNCHANGED;
+        }
+        Entry entry = entry(table, id);
+        entry.set(hash, data, offset, length);
+        if (mHevc && type == NalScanner.H265_NAL_PPS) {
+            // 解析slice头时需要
+            entry.hevcPps = mHevcParser.parsePps(data, offset, length);
+        }
+        return CONFIG_CHANGED;
+    }
+
+    private static Entry entry(Entry[] table, int id) {
+        Entry entry = table[id];
+        if (entry == null) {
+            entry = new Entry();
+            table[id] = entry;
+        }
+        return entry;
+    }
+
+    private static Entry find(Entry[] table, int hash, byte[] data, int offset, int length) {
+        for (Entry entry : table) {
+            if (entry != null && entry.matches(hash, data, offset, length)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private Entry[] tableOf(int type) {
+        if (mHevc) {
+            switch (type) {
+                case NalScanner.H265_NAL_VPS:
+                    return mVps;
+                case NalScanner.H265_NAL_SPS:
+                    return mSps;
+                case NalScanner.H265_NAL_PPS:
+                    return mPps;
+                default:
+                    return null;
+            }
+        }
+        switch (type) {
+            case NalScanner.H264_NAL_SPS:
+                return mSps;
+            case NalScanner.H264_NAL_PPS:
+                return mPps;
+            default:
+                return null;
+        }
+    }
+
+    private boolean isSps(int type) {
+        return type == (mHevc ? NalScanner.H265_NAL_SPS : NalScanner.H264_NAL_SPS);
+    }
+
+    /**
+     * 读出参数集的id。
+     *
+     * @return H.265的SPS id在profile_tier_level之后，需要完整解析，返回-1；数据不合法时返回Integer.MAX_VALUE
+     */
+    private int readId(int type, byte[] data, int offset, int length) {
+        final int header = mHevc ? 2 : 1;
+        if (length <= header) {
+            return Integer.MAX_VALUE;
+        }
+
+        ParsableNalUnitBitArray bits = mBits;
+        bits.reset(data, offset + header, offset + length);
+        try {
+            if (mHevc) {
+                switch (type) {
+                    case NalScanner.H265_NAL_VPS:
+                        return bits.readBits(4);
+                    case NalScanner.H265_NAL_PPS:
+                        return bits.readUnsignedExpGolombCodedInt();
+                    default:
+                        return -1;
+                }
+            }
+            if (type == NalScanner.H264_NAL_SPS) {
+                // profile_idc、constraint_set、level_idc
+                bits.skipBits(24);
+            }
+            return bits.readUnsignedExpGolombCodedInt();
+        } catch (RuntimeException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private static int hash(byte[] data, int offset, int length) {
+        int h = 1;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            h = 31 * h + data[i];
+        }
+        return h;
+    }
+}
@@ -177,6 +177,32 @@ public final class ParsableBitArray {
     return returnValue;
   }
 
+  /**
+   * Reads an unsigned Exp-Golomb-coded format integer, ue(v).
+   *
+   * @return The value of the parsed Exp-Golomb-coded integer.
+   */
+  public int readUnsignedExpGolombCodedInt() {
+    int leadingZeros = 0;
+    while (!readBit()) {
+      leadingZeros++;
+      if (leadingZeros > 31) {
+        throw new IllegalStateException("Invalid Exp-Golomb code");
+      }
+    }
+    return (1 << leadingZeros) - 1 + (leadingZeros > 0 ? readBits(leadingZeros) : 0);
+  }
+
+  /**
+   * Reads an signed Exp-Golomb-coded format integer, se(v).
+   *
+   * @return The value of the parsed Exp-Golomb-coded integer.
+   */
+  public int readSignedExpGolombCodedInt() {
+    int codeNum = readUnsignedExpGolombCodedInt();
+    return ((codeNum % 2) == 0 ? -1 : 1) * ((codeNum + 1) / 2);
+  }
+
   private void assertValidOffset() {
     // It is fine for position to be at the end of the array, but no further.
   }
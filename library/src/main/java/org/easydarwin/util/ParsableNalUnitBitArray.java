@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.easydarwin.util;
+
+/**
+ * Wraps a byte array, providing methods that allow it to be read as a NAL unit bitstream.
+ * <p>
+ * The reading methods mirror {@link ParsableBitArray}, but emulation prevention bytes (the 0x03 in
+ * 0x000003) are skipped transparently as they are reached, so the RBSP is read in place without
+ * making an unescaped copy of the NAL unit.
+ * <p>
+ * Reading past the limit does not throw: bits past the limit read as zero, an Exp-Golomb code that
+ * runs past the limit reads as zero, and {@link #bitsLeft()} becomes negative. Callers check
+ * {@link #bitsLeft()} after reading a field or structure. The only exception is an Exp-Golomb code
+ * with more than 31 leading zeros inside the data, which is corrupt, and that throws {@link
+ * IllegalStateException}.
+ */
+public final class ParsableNalUnitBitArray {
+
+  private byte[] data;
+  private int byteStart;
+  private int byteLimit;
+
+  // The current byte offset within data, and the bit offset within that byte (from 0 to 7).
+  private int byteOffset;
+  private int bitOffset;
+
+  /**
+   * Creates a new instance that initially has no backing data.
+   */
+  public ParsableNalUnitBitArray() {}
+
+  /**
+   * @param data The data to wrap.
+   * @param offset The byte offset in {@code data} to start reading from.
+   * @param limit The byte offset of the end of the bitstream in {@code data}.
+   */
+  public ParsableNalUnitBitArray(byte[] data, int offset, int limit) {
+    reset(data, offset, limit);
+  }
+
+  /**
+   * Resets the wrapped data, limit and offset.
+   *
+   * @param data The data to wrap.
+   * @param offset The byte offset in {@code data} to start reading from.
+   * @param limit The byte offset of the end of the bitstream in {@code data}.
+   */
+  public void reset(byte[] data, int offset, int limit) {
+    this.data = data;
+    byteStart = offset;
+    byteOffset = offset;
+    byteLimit = limit;
+    bitOffset = 0;
+  }
+
+  /**
+   * Returns the number of bits before the limit. Emulation prevention bytes that have not been
+   * reached yet are counted, so this is only exact for detecting a read past the limit, in which
+   * case it is negative.
+   */
+  public int bitsLeft() {
+    return (byteLimit - byteOffset) * 8 - bitOffset;
+  }
+
+  /**
+   * Returns whether the current position is at the start of a byte.
+   */
+  public boolean isByteAligned() {
+    return bitOffset == 0;
+  }
+
+  /**
+   * Skips to the start of the next byte, if not already byte aligned.
+   */
+  public void byteAlign() {
+    if (bitOffset != 0) {
+      bitOffset = 0;
+      advanceByte();
+    }
+  }
+
+  /**
+   * Returns the byte offset in the wrapped array of the current position.
+   */
+  public int getBytePosition() {
+    return byteOffset;
+  }
+
+  /**
+   * Skips a single bit.
+   */
+  public void skipBit() {
+    if (++bitOffset == 8) {
+      bitOffset = 0;
+      advanceByte();
+    }
+  }
+
+  /**
+   * Skips bits and moves current reading position forward.
+   *
+   * @param numBits The number of bits to skip.
+   */
+  public void skipBits(int numBits) {
+    bitOffset += numBits;
+    while (bitOffset >= 8) {
+      bitOffset -= 8;
+      advanceByte();
+    }
+  }
+
+  /**
+   * Reads a single bit.
+   *
+   * @return Whether the bit is set.
+   */
+  public boolean readBit() {
+    boolean returnValue = (byteAt(byteOffset) & (0x80 >> bitOffset)) != 0;
+    skipBit();
+    return returnValue;
+  }
+
+  /**
+   * Reads up to 32 bits.
+   *
+   * @param numBits The number of bits to read.
+   * @return An integer whose bottom n bits hold the read data.
+   */
+  public int readBits(int numBits) {
+    if (numBits == 0) {
+      return 0;
+    }
+
+    int returnValue = 0;
+    bitOffset += numBits;
+    while (bitOffset > 8) {
+      bitOffset -= 8;
+      returnValue |= byteAt(byteOffset) << bitOffset;
+      advanceByte();
+    }
+    returnValue |= byteAt(byteOffset) >> (8 - bitOffset);
+    returnValue &= 0xFFFFFFFF >>> (32 - numBits);
+    if (bitOffset == 8) {
+      bitOffset = 0;
+      advanceByte();
+    }
+    return returnValue;
+  }
+
+  /**
+   * Reads an unsigned Exp-Golomb-coded format integer, ue(v).
+   *
+   * @return The value of the parsed Exp-Golomb-coded integer, or zero if the code runs past the
+   *     limit, in which case {@link #bitsLeft()} is negative.
+   * @throws IllegalStateException If the code has more than 31 leading zeros inside the data.
+   */
+  public int readUnsignedExpGolombCodedInt() {
+    int leadingZeros = 0;
+    while (!readBit()) {
+      if (bitsLeft() < 0) {
+        return 0;
+      }
+      leadingZeros++;
+      if (leadingZeros > 31) {
+        throw new IllegalStateException("Invalid Exp-Golomb code");
+      }
+    }
+    return (1 << leadingZeros) - 1 + (leadingZeros > 0 ? readBits(leadingZeros) : 0);
+  }
+
+  /**
+   * Reads an signed Exp-Golomb-coded format integer, se(v).
+   *
+   * @return The value of the parsed Exp-Golomb-coded integer, or zero if the code runs past the
+   *     limit.
+   * @throws IllegalStateException If the code has more than 31 leading zeros inside the data.
+   */
+  public int readSignedExpGolombCodedInt() {
+    int codeNum = readUnsignedExpGolombCodedInt();
+    return ((codeNum % 2) == 0 ? -1 : 1) * ((codeNum + 1) / 2);
+  }
+
+  /**
+   * Returns the byte at {@code offset}, or zero past the limit so that an overrun is reported by
+   * {@link #bitsLeft()} instead of an exception.
+   */
+  private int byteAt(int offset) {
+    return offset < byteLimit ? data[offset] & 0xFF : 0;
+  }
+
+  private void advanceByte() {
+    byteOffset += shouldSkipByte(byteOffset + 1) ? 2 : 1;
+  }
+
+  private boolean shouldSkipByte(int offset) {
+    return byteStart + 2 <= offset && offset < byteLimit && data[offset] == 0x03
+        && data[offset - 2] == 0x00 && data[offset - 1] == 0x00;
+  }
+
+}
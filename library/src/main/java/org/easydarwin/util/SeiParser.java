@@ -0,0 +1,196 @@
+package org.easydarwin.util;
+
+/**
+ * SEI解析，见ITU-T H.264 7.3.2.3和H.265 7.3.5。
+ * <p>
+ * 依次读出每个sei_message的payloadType和payloadSize，payload以原数组中的偏移和长度交给回调，不复制。
+ * 只有payload中含有防竞争字节时，才去掉防竞争字节后放到内部复用的缓冲中。
+ * <p>
+ * 输入可以带起始码和NAL头，也可以只有sei_rbsp，由调用者通过nalHeader说明。sei_rbsp的第一个字节（payloadType）可能恰好像一个SEI的NAL头，
+ * 所以不根据内容猜测。
+ * 实例不是线程安全的。
+ */
+public final class SeiParser {
+
+    public static final int PAYLOAD_TYPE_USER_DATA_UNREGISTERED = 5;
+
+    /**
+     * 输入只有sei_rbsp，没有NAL头
+     */
+    public static final int NAL_HEADER_NONE = 0;
+
+    /**
+     * 输入带有1字节的H.264 NAL头
+     */
+    public static final int NAL_HEADER_H264 = 1;
+
+    /**
+     * 输入带有2字节的H.265 NAL头
+     */
+    public static final int NAL_HEADER_H265 = 2;
+
+    /**
+     * user_data_unregistered开头的uuid_iso_iec_11578长度
+     */
+    public static final int UUID_LENGTH = 16;
+
+    public interface Listener {
+        /**
+         * 每个sei_message回调一次。
+         *
+         * @param data payload所在的数组，可能是输入数组，也可能是内部缓冲，只在回调期间有效
+         */
+        void onSeiMessage(int payloadType, byte[] data, int offset, int length);
+    }
+
+    private byte[] mData;
+    private int mPos;
+    private int mLimit;
+    // 已经连续读到的0的个数，用来识别防竞争字节
+    private int mZeros;
+
+    private byte[] mScratch = new byte[256];
+    private byte[] mPayload;
+    private int mPayloadOffset;
+
+    /**
+     * @param nalHeader {@link #NAL_HEADER_NONE}、{@link #NAL_HEADER_H264}或{@link #NAL_HEADER_H265}，
+     *                  NAL头之前的起始码总是会被跳过
+     * @return 回调的sei_message个数。数据被截断时，之前完整的消息仍然会回调
+     */
+    public int parse(byte[] data, int offset, int length, int nalHeader, Listener listener) {
+        mData = data;
+        mLimit = Math.min(offset + length, data.length);
+        mPos = Math.min(skipStartCode(data, offset, mLimit) + nalHeader, mLimit);
+        mZeros = 0;
+
+        int count = 0;
+        try {
+            while (moreRbspData()) {
+                int payloadType = readValue();
+                int payloadSize = readValue();
+                if (payloadType < 0 || payloadSize < 0 || !readPayload(payloadSize)) {
+                    break;
+                }
+                listener.onSeiMessage(payloadType, mPayload, mPayloadOffset, payloadSize);
+                count++;
+            }
+        } finally {
+            mData = null;
+            mPayload = null;
+        }
+        return count;
+    }
+
+    /**
+     * 有起始码时跳过它。sei_rbsp中不会出现00 00 01，所以不会误判。
+     */
+    static int skipStartCode(byte[] data, int offset, int limit) {
+        int p = offset;
+        if (limit - p >= 4 && data[p] == 0 && data[p + 1] == 0 && data[p + 2] == 0 && data[p + 3] == 1) {
+            p += 4;
+        } else if (limit - p >= 3 && data[p] == 0 && data[p + 1] == 0 && data[p + 2] == 1) {
+            p += 3;
+        }
+        return p;
+    }
+
+    /**
+     * data[offset, limit)是否以起始码开头
+     */
+    public static boolean hasStartCode(byte[] data, int offset, int limit) {
+        return skipStartCode(data, offset, limit) != offset;
+    }
+
+    /**
+     * 后面是否还有sei_message，只剩rbsp_trailing_bits时返回false。
+     */
+    private boolean moreRbspData() {
+        if (mPos >= mLimit) {
+            return false;
+        }
+        if ((mData[mPos] & 0xFF) != 0x80) {
+            return true;
+        }
+        for (int i = mPos + 1; i < mLimit; i++) {
+            if (mData[i] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 读一个RBSP字节，跳过防竞争字节。
+     *
+     * @return 没有数据时返回-1
+     */
+    private int readByte() {
+        if (mPos >= mLimit) {
+            return -1;
+        }
+        int b = mData[mPos++] & 0xFF;
+        if (mZeros >= 2 && b == 3) {
+            mZeros = 0;
+            if (mPos >= mLimit) {
+                return -1;
+            }
+            b = mData[mPos++] & 0xFF;
+        }
+        mZeros = b == 0 ? mZeros + 1 : 0;
+        return b;
+    }
+
+    /**
+     * 读payloadType或payloadSize：若干个0xFF再加一个字节。
+     */
+    private int readValue() {
+        int value = 0;
+        int b;
+        while ((b = readByte()) == 0xFF) {
+            value += 255;
+        }
+        return b < 0 ? -1 : value + b;
+    }
+
+    private boolean readPayload(int size) {
+        final int start = mPos;
+        final int end = start + size;
+        // 原始数据不会比RBSP短
+        if (end > mLimit) {
+            return false;
+        }
+
+        int zeros = mZeros;
+        int i = start;
+        for (; i < end; i++) {
+            int b = mData[i];
+            if (zeros >= 2 && b == 3) {
+                break;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        if (i == end) {
+            mPos = end;
+            mZeros = zeros;
+            mPayload = mData;
+            mPayloadOffset = start;
+            return true;
+        }
+
+        // 含有防竞争字节，去掉后放到复用的缓冲中
+        if (mScratch.length < size) {
+            mScratch = new byte[size];
+        }
+        for (int n = 0; n < size; n++) {
+            int b = readByte();
+            if (b < 0) {
+                return false;
+            }
+            mScratch[n] = (byte) b;
+        }
+        mPayload = mScratch;
+        mPayloadOffset = 0;
+        return true;
+    }
+}
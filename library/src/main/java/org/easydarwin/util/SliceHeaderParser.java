@@ -0,0 +1,186 @@
+package org.easydarwin.util;
+
+/**
+ * 解析访问单元中第一个slice头的开头部分，见ITU-T H.264 7.3.3和H.265 7.3.6.1。
+ * <p>
+ * 只读到判断能否丢帧所需的字段：是否被参考、时域层、slice类型、frame_num和是否IDR，
+ * 只看访问单元开头到第一个slice的数据，不扫描整帧。
+ * <p>
+ * 实例会复用返回的{@link SliceHeader}，不是线程安全的。
+ */
+public final class SliceHeaderParser {
+
+    public static final int SLICE_TYPE_UNKNOWN = -1;
+    public static final int SLICE_TYPE_P = 0;
+    public static final int SLICE_TYPE_B = 1;
+    public static final int SLICE_TYPE_I = 2;
+
+    /**
+     * slice头中需要读取的字段都在开头这些字节内
+     */
+    private static final int MAX_HEADER_BYTES = 64;
+
+    public static final class SliceHeader {
+        public int nalType;
+        public boolean idr;
+
+        /**
+         * H.264的nal_ref_idc，H.265中不使用
+         */
+        public int nalRefIdc;
+
+        /**
+         * H.265的TemporalId，H.264为0
+         */
+        public int temporalId;
+
+        /**
+         * 是否可能被同一时域层中后续的帧参考。H.264为nal_ref_idc不为0，H.265为不是子层非参考图像
+         */
+        public boolean reference;
+
+        /**
+         * {@link #SLICE_TYPE_P}、{@link #SLICE_TYPE_B}、{@link #SLICE_TYPE_I}，读不到时为{@link #SLICE_TYPE_UNKNOWN}，
+         * 包括H.265引用的PPS还没有收到
+         */
+        public int sliceType;
+
+        /**
+         * H.264的frame_num，没有SPS时和H.265一样为-1
+         */
+        public int frameNum;
+
+        public int ppsId;
+
+        @Override
+        public String toString() {
+            return "SliceHeader{nal=" + nalType + ", idr=" + idr + ", ref=" + reference + ", tid=" + temporalId
+                    + ", type=" + sliceType + ", frameNum=" + frameNum + "}";
+        }
+    }
+
+    private final SliceHeader mHeader = new SliceHeader();
+    private final ParsableNalUnitBitArray mBits = new ParsableNalUnitBitArray();
+
+    /**
+     * 查找data[offset, offset+length)中的第一个slice并解析它的头。
+     *
+     * @param paramSets 已收到的参数集，用来读取H.264的frame_num和跳过H.265 PPS中的额外slice头位，可以为null
+     * @return 没有找到slice或者数据不合法时返回null。返回的对象在下一次调用时复用
+     */
+    public SliceHeader parse(byte[] data, int offset, int length, boolean hevc, ParameterSetCache paramSets) {
+        final int limit = Math.min(offset + length, data.length);
+        int p = NalScanner.findStartCode(data, offset, limit);
+        while (p >= 0) {
+            final int nal = p + 3;
+            if (nal >= limit) {
+                return null;
+            }
+
+            int type = hevc ? (data[nal] >> 1) & 0x3F : data[nal] & 0x1F;
+            if (hevc ? type <= 31 : type >= 1 && type <= 5) {
+                int end = Math.min(limit, nal + MAX_HEADER_BYTES);
+                try {
+                    boolean valid = hevc ? parseHevc(data, nal, end, type, paramSets) : parseAvc(data, nal, end, type, paramSets);
+                    return valid ? mHeader : null;
+                } catch (RuntimeException e) {
+                    return null;
+                }
+            }
+            p = NalScanner.findStartCode(data, nal, limit);
+        }
+        return null;
+    }
+
+    private boolean parseAvc(byte[] data, int nal, int end, int type, ParameterSetCache paramSets) {
+        SliceHeader h = mHeader;
+        h.nalType = type;
+        h.idr = type == NalScanner.H264_NAL_IDR;
+        h.nalRefIdc = (data[nal] >> 5) & 0x03;
+        h.temporalId = 0;
+        h.reference = h.nalRefIdc != 0;
+
+        ParsableNalUnitBitArray bits = mBits;
+        bits.reset(data, nal + 1, end);
+        bits.readUnsignedExpGolombCodedInt(); // first_mb_in_slice
+        int sliceType = bits.readUnsignedExpGolombCodedInt();
+        if (sliceType > 9) {
+            return false;
+        }
+        // 5~9表示整帧都是同一类型，SP按P、SI按I处理
+        switch (sliceType % 5) {
+            case 0:
+            case 3:
+                h.sliceType = SLICE_TYPE_P;
+                break;
+            case 1:
+                h.sliceType = SLICE_TYPE_B;
+                break;
+            default:
+                h.sliceType = SLICE_TYPE_I;
+                break;
+        }
+        h.ppsId = bits.readUnsignedExpGolombCodedInt();
+
+        H264SpsParser.Sps sps = paramSets != null ? paramSets.avcSps() : null;
+        if (sps != null) {
+            if (sps.separateColourPlane) {
+                bits.skipBits(2); // colour_plane_id
+            }
+            h.frameNum = bits.readBits(sps.log2MaxFrameNum);
+        } else {
+            h.frameNum = -1;
+        }
+        return bits.bitsLeft() >= 0;
+    }
+
+    private boolean parseHevc(byte[] data, int nal, int end, int type, ParameterSetCache paramSets) {
+        if (end - nal < 3) {
+            return false;
+        }
+
+        SliceHeader h = mHeader;
+        h.nalType = type;
+        h.idr = type == 19 || type == 20; // IDR_W_RADL, IDR_N_LP
+        h.nalRefIdc = 0;
+        h.temporalId = (data[nal + 1] & 0x07) - 1;
+        // TRAIL_N、TSA_N、STSA_N、RADL_N、RASL_N以及保留的RSV_VCL_N10/12/14
+        h.reference = type > 14 || (type & 1) != 0;
+        h.frameNum = -1;
+
+        ParsableNalUnitBitArray bits = mBits;
+        bits.reset(data, nal + 2, end);
+        boolean firstSliceSegmentInPic = bits.readBit();
+        if (type >= 16 && type <= 23) {
+            bits.skipBit(); // no_output_of_prior_pics_flag
+        }
+        h.ppsId = bits.readUnsignedExpGolombCodedInt();
+        if (!firstSliceSegmentInPic) {
+            // 后面是slice_segment_address，长度取决于图像尺寸，不再往下读
+            h.sliceType = SLICE_TYPE_UNKNOWN;
+            return bits.bitsLeft() >= 0;
+        }
+
+        H265ParameterSetParser.Pps pps = paramSets != null ? paramSets.hevcPps(h.ppsId) : null;
+        if (pps == null) {
+            // 不知道slice_reserved_flag有几位，slice_type的位置不确定
+            h.sliceType = SLICE_TYPE_UNKNOWN;
+            return bits.bitsLeft() >= 0;
+        }
+        bits.skipBits(pps.numExtraSliceHeaderBits); // slice_reserved_flag
+        switch (bits.readUnsignedExpGolombCodedInt()) {
+            case 0:
+                h.sliceType = SLICE_TYPE_B;
+                break;
+            case 1:
+                h.sliceType = SLICE_TYPE_P;
+                break;
+            case 2:
+                h.sliceType = SLICE_TYPE_I;
+                break;
+            default:
+                return false;
+        }
+        return bits.bitsLeft() >= 0;
+    }
+}
@@ -0,0 +1,186 @@
+package org.easydarwin.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 解码器输出的半平面YUV（NV12/NV21）转为I420。
+ * <p>
+ * 源数据按行跨度rowStride和切片高度sliceHeight排列，UV平面从rowStride * sliceHeight开始；只转换裁剪区域内的像素，
+ * 结果直接写入目标缓冲。每行先批量读入一个复用的数组，在数组中拆分UV后再批量写出，不逐字节访问ByteBuffer。
+ * <p>
+ * 像素数不少于{@link #DEFAULT_PARALLEL_PIXELS}（大约4K的一半）时，按行带拆分到一个小的ForkJoinPool中并行转换，
+ * 调用线程等待全部完成。实例没有可变状态，可以在多个线程中同时使用。
+ */
+public final class YuvConverter {
+
+    public static final int DEFAULT_PARALLEL_PIXELS = 3840 * 2160 / 2;
+
+    /**
+     * 并行转换最多使用的线程数
+     */
+    private static final int MAX_THREADS = 4;
+
+    private static final class PoolHolder {
+        static final ForkJoinPool POOL = new ForkJoinPool(Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors())));
+    }
+
+    /**
+     * 每个线程的行缓冲：[0, 2cw)读入的一行，[2cw, 3cw)是U，[3cw, 4cw)是V，cw为色度宽度
+     */
+    private static final ThreadLocal<byte[]> sRow = new ThreadLocal<>();
+
+    private final int mParallelPixels;
+
+    public YuvConverter() {
+        this(DEFAULT_PARALLEL_PIXELS);
+    }
+
+    /**
+     * @param parallelPixels 像素数不少于它时并行转换，Integer.MAX_VALUE表示总是在调用线程中转换
+     */
+    public YuvConverter(int parallelPixels) {
+        mParallelPixels = parallelPixels;
+    }
+
+    /**
+     * width x height的I420数据大小，宽高为奇数时色度向上取整
+     */
+    public static int i420Size(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * 把src中裁剪区域(left, top, width, height)的像素转为I420写入dst[0, i420Size)，不改变src和dst的position和limit。
+     *
+     * @param nv21        UV的排列为VU（NV21）时为true，否则为UV（NV12）
+     * @param rowStride   源数据每行的字节数，不小于left + width
+     * @param sliceHeight Y平面的行数，不小于top + height
+     * @param left        裁剪区域的左边，奇数时向下取偶数
+     * @param top         裁剪区域的上边，奇数时向下取偶数
+     */
+    public void semiPlanarToI420(ByteBuffer src, boolean nv21, int rowStride, int sliceHeight,
+                                 int left, int top, int width, int height, ByteBuffer dst) {
+        left &= ~1;
+        top &= ~1;
+        if (width <= 0 || height <= 0 || rowStride < left + width || sliceHeight < top + height) {
+            throw new IllegalArgumentException(String.format("crop %d,%d %dx%d out of stride %d slice height %d",
+                    left, top, width, height, rowStride, sliceHeight));
+        }
+        if (dst.capacity() < i420Size(width, height)) {
+            throw new IllegalArgumentException("dst capacity " + dst.capacity() + " < " + i420Size(width, height));
+        }
+
+        Band band = new Band(src, nv21, rowStride, sliceHeight, left, top, width, height, dst, 0, height);
+        int threads = PoolHolder.POOL.getParallelism();
+        if ((long) width * height < mParallelPixels || threads < 2) {
+            band.convert();
+            return;
+        }
+        // 每个线程两个行带，行数取偶数，保证每个行带的色度行完整
+        int rows = (height + threads * 2 - 1) / (threads * 2);
+        band.mBandRows = Math.max(2, (rows + 1) & ~1);
+        PoolHolder.POOL.invoke(band);
+    }
+
+    private static final class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer mSrc;
+        private final boolean mNv21;
+        private final int mRowStride;
+        private final int mSliceHeight;
+        private final int mLeft;
+        private final int mTop;
+        private final int mWidth;
+        private final int mHeight;
+        private final ByteBuffer mDst;
+        // 负责的亮度行[mFrom, mTo)，mFrom为偶数
+        private final int mFrom;
+        private final int mTo;
+        private int mBandRows;
+
+        Band(ByteBuffer src, boolean nv21, int rowStride, int sliceHeight, int left, int top, int width, int height,
+             ByteBuffer dst, int from, int to) {
+            mSrc = src;
+            mNv21 = nv21;
+            mRowStride = rowStride;
+            mSliceHeight = sliceHeight;
+            mLeft = left;
+            mTop = top;
+            mWidth = width;
+            mHeight = height;
+            mDst = dst;
+            mFrom = from;
+            mTo = to;
+        }
+
+        private Band split(int from, int to) {
+            Band band = new Band(mSrc, mNv21, mRowStride, mSliceHeight, mLeft, mTop, mWidth, mHeight, mDst, from, to);
+            band.mBandRows = mBandRows;
+            return band;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= mBandRows) {
+                convert();
+                return;
+            }
+            int middle = (mFrom + (mTo - mFrom) / 2 + 1) & ~1;
+            invokeAll(split(mFrom, middle), split(middle, mTo));
+        }
+
+        void convert() {
+            int width = mWidth;
+            int chromaWidth = (width + 1) / 2;
+            int chromaHeight = (mHeight + 1) / 2;
+            byte[] row = sRow.get();
+            if (row == null || row.length < chromaWidth * 4) {
+                row = new byte[chromaWidth * 4];
+                sRow.set(row);
+            }
+
+            // 各行带使用自己的视图，互不影响position和limit
+            ByteBuffer src = mSrc.duplicate();
+            ByteBuffer dst = mDst.duplicate();
+            src.clear();
+            dst.clear();
+
+            for (int y = mFrom; y < mTo; y++) {
+                int offset = (mTop + y) * mRowStride + mLeft;
+                src.limit(offset + width);
+                src.position(offset);
+                src.get(row, 0, width);
+                dst.position(y * width);
+                dst.put(row, 0, width);
+            }
+
+            int uvBase = mRowStride * mSliceHeight;
+            int uOffset = width * mHeight;
+            int vOffset = uOffset + chromaWidth * chromaHeight;
+            int u = mNv21 ? 1 : 0;
+            int v = 1 - u;
+            int uStart = chromaWidth * 2;
+            int vStart = chromaWidth * 3;
+            int end = mTo == mHeight ? chromaHeight : mTo / 2;
+            for (int y = mFrom / 2; y < end; y++) {
+                int offset = uvBase + (mTop / 2 + y) * mRowStride + mLeft;
+                // 奇数宽度时最后一对UV可能超出缓冲，按实际能读到的长度
+                int length = Math.min(chromaWidth * 2, src.capacity() - offset);
+                src.limit(offset + length);
+                src.position(offset);
+                src.get(row, 0, length);
+                for (int i = 0, j = 0; j + 1 < length; i++, j += 2) {
+                    row[uStart + i] = row[j + u];
+                    row[vStart + i] = row[j + v];
+                }
+                dst.position(uOffset + y * chromaWidth);
+                dst.put(row, uStart, chromaWidth);
+                dst.position(vOffset + y * chromaWidth);
+                dst.put(row, vStart, chromaWidth);
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.easydarwin.video;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MediaCodec异步模式的调度逻辑：有空闲的输入缓冲并且有帧时送入，输出缓冲按显示时刻释放。
+ * <p>
+ * 不直接依赖MediaCodec和Handler，解码器和线程都通过{@link Codec}、{@link Host}接入，
+ * 可以在JVM上用假的解码器测试。所有方法都必须在同一个线程（解码线程）中调用。
+ */
+final class AsyncDecoder {
+
+    /**
+     * 用到的MediaCodec方法
+     */
+    interface Codec {
+        ByteBuffer getInputBuffer(int index);
+
+        void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+        void releaseOutputBuffer(int index, boolean render);
+
+        void releaseOutputBuffer(int index, long renderTimeNs);
+    }
+
+    interface Host {
+        /**
+         * 取下一帧，没有时立即返回null。新帧到达时由Host调用{@link #onFrameAvailable()}
+         */
+        Client.FrameInfo pollFrame();
+
+        /**
+         * 帧送入解码器之前调用，用于录像等。
+         *
+         * @return false表示需要重新配置解码器，帧交给Host处理，之后不再送入任何数据
+         */
+        boolean onFrame(Client.FrameInfo frameInfo);
+
+        /**
+         * @return 还要等待多久才把这一帧交给系统，微秒，小于等于0表示应该立即交出
+         */
+        long waitUs(long presentationTimeUs);
+
+        /**
+         * 等待结束后调用，给出交给系统的显示时刻
+         *
+         * @return 传给releaseOutputBuffer的显示时刻（System.nanoTime），小于0表示丢弃这一帧
+         */
+        long renderTimeNs(long presentationTimeUs);
+
+        /**
+         * delayUs之后调用{@link #onTimer()}，之前安排而未触发的定时取消
+         */
+        void scheduleTimer(long delayUs);
+
+        void onRendered(long presentationTimeUs);
+    }
+
+    private final Codec mCodec;
+    private final Host mHost;
+
+    /**
+     * 空闲的输入缓冲，按到达顺序使用
+     */
+    private int[] mInputs = new int[16];
+    private int mInputHead;
+    private int mInputCount;
+
+    /**
+     * 已经解码、等待显示的输出缓冲
+     */
+    private int[] mOutputs = new int[16];
+    private long[] mOutputStamps = new long[16];
+    private int mOutputHead;
+    private int mOutputCount;
+
+    /**
+     * 已经取出但还没有送入的帧：先送参数集时，帧本身要等下一个输入缓冲
+     */
+    private Client.FrameInfo mPending;
+    private boolean mHalted;
+
+    AsyncDecoder(Codec codec, Host host) {
+        mCodec = codec;
+        mHost = host;
+    }
+
+    void onInputBufferAvailable(int index) {
+        if (mInputCount == mInputs.length) {
+            mInputs = grow(mInputs, mInputHead, mInputCount);
+            mInputHead = 0;
+        }
+        mInputs[(mInputHead + mInputCount) % mInputs.length] = index;
+        mInputCount++;
+        feedInput();
+    }
+
+    void onFrameAvailable() {
+        feedInput();
+    }
+
+    void onOutputBufferAvailable(int index, long presentationTimeUs, int flags) {
+        if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            mCodec.releaseOutputBuffer(index, false);
+            return;
+        }
+
+        if (mOutputCount == mOutputs.length) {
+            long[] stamps = new long[mOutputStamps.length * 2];
+            for (int i = 0; i < mOutputCount; i++) {
+                stamps[i] = mOutputStamps[(mOutputHead + i) % mOutputStamps.length];
+            }
+            mOutputStamps = stamps;
+            mOutputs = grow(mOutputs, mOutputHead, mOutputCount);
+            mOutputHead = 0;
+        }
+        int tail = (mOutputHead + mOutputCount) % mOutputs.length;
+        mOutputs[tail] = index;
+        mOutputStamps[tail] = presentationTimeUs;
+        mOutputCount++;
+        // 前面还有帧在等待时，定时已经安排好了
+        if (mOutputCount == 1) {
+            drainOutput();
+        }
+    }
+
+    void onTimer() {
+        drainOutput();
+    }
+
+    /**
+     * 停止送入数据，等待中的帧归还。解码器释放之前调用。
+     */
+    void halt() {
+        mHalted = true;
+        if (mPending != null) {
+            mPending.recycle();
+            mPending = null;
+        }
+        mInputCount = 0;
+        mOutputCount = 0;
+    }
+
+    int pendingInputCount() {
+        return mInputCount;
+    }
+
+    int pendingOutputCount() {
+        return mOutputCount;
+    }
+
+    private void feedInput() {
+        while (!mHalted && mInputCount > 0) {
+            Client.FrameInfo frameInfo = mPending;
+            if (frameInfo == null) {
+                frameInfo = mHost.pollFrame();
+                if (frameInfo == null) {
+                    return;
+                }
+                if (!mHost.onFrame(frameInfo)) {
+                    mHalted = true;
+                    return;
+                }
+            }
+            mPending = null;
+
+            int index = mInputs[mInputHead];
+            mInputHead = (mInputHead + 1) % mInputs.length;
+            mInputCount--;
+
+            ByteBuffer buffer = mCodec.getInputBuffer(index);
+            buffer.clear();
+            ByteBuffer config = frameInfo.codecConfig;
+            if (config != null) {
+                // 先送入新的参数集，帧本身等下一个输入缓冲
+                frameInfo.codecConfig = null;
+                config.clear();
+                buffer.put(config);
+                mCodec.queueInputBuffer(index, 0, buffer.position(), frameInfo.stamp, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+                mPending = frameInfo;
+                continue;
+            }
+
+            if (frameInfo.length > buffer.remaining()) {
+                mCodec.queueInputBuffer(index, 0, 0, frameInfo.stamp, 0);
+            } else {
+                buffer.put(frameInfo.buffer, frameInfo.offset, frameInfo.length);
+                mCodec.queueInputBuffer(index, 0, buffer.position(), frameInfo.stamp, 0);
+            }
+            frameInfo.recycle();
+        }
+    }
+
+    private void drainOutput() {
+        while (!mHalted && mOutputCount > 0) {
+            long stamp = mOutputStamps[mOutputHead];
+            long waitUs = mHost.waitUs(stamp);
+            if (waitUs > 0) {
+                mHost.scheduleTimer(waitUs);
+                return;
+            }
+
+            int index = mOutputs[mOutputHead];
+            mOutputHead = (mOutputHead + 1) % mOutputs.length;
+            mOutputCount--;
+            long renderTimeNs = mHost.renderTimeNs(stamp);
+            if (renderTimeNs < 0) {
+                mCodec.releaseOutputBuffer(index, false);
+                continue;
+            }
+            mCodec.releaseOutputBuffer(index, renderTimeNs);
+            mHost.onRendered(stamp);
+        }
+    }
+
+    private static int[] grow(int[] ring, int head, int count) {
+        int[] copy = new int[ring.length * 2];
+        for (int i = 0; i < count; i++) {
+            copy[i] = ring[(head + i) % ring.length];
+        }
+        return copy;
+    }
+}
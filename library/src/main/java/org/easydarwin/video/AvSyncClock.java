@@ -0,0 +1,190 @@
+package org.easydarwin.video;
+
+import org.easydarwin.util.C;
+
+/**
+ * 以音频为主的音视频同步时钟。
+ * <p>
+ * 音频线程每写入一段PCM调用{@link #onAudioWritten(long, int)}，记下这一段在输出中的起始帧和它的时间戳；
+ * 视频线程通过{@link AudioSink}读取音频输出当前播放到的帧，换算成正在播放的音频时间戳，从而得到视频帧按音频应该显示的时刻。
+ * <p>
+ * 视频帧的显示时刻以抖动缓冲给出的墙上时钟为基准，再加上一个修正量。修正量每次计算最多变化{@link #MAX_STEP_US}，
+ * 逐渐靠近音频时钟要求的值，音频时钟的抖动不会让画面忽快忽慢；差距超过{@link #RESYNC_US}（刚开始播放或者时间戳跳变）时直接对齐。
+ * 音频被关闭或者停止后修正量以同样的速度回到0，即退回墙上时钟；音频开启但暂时读不到播放位置时保持当前修正量。
+ */
+final class AvSyncClock {
+
+    /**
+     * 音频输出的播放位置
+     */
+    interface AudioSink {
+        /**
+         * @param out out[0]为已经播放的帧数，out[1]为播放到这一帧时的单调时钟（微秒）
+         * @return 读不到播放位置时返回false
+         */
+        boolean getPlaybackPosition(long[] out);
+    }
+
+    /**
+     * 每次计算修正量的最大变化
+     */
+    static final long MAX_STEP_US = 2000;
+
+    static final long RESYNC_US = 500000;
+
+    /**
+     * 记录的写入段数，要覆盖音频输出缓冲中的全部数据
+     */
+    private static final int MAX_SEGMENTS = 128;
+
+    // 以下由锁保护
+    private final long[] mSegmentFrames = new long[MAX_SEGMENTS];
+    private final long[] mSegmentStamps = new long[MAX_SEGMENTS];
+    private int mSegmentHead;
+    private int mSegmentCount;
+    private long mWrittenFrames;
+    private int mStreamSampleRate;
+    private int mOutputSampleRate;
+    private boolean mAudioEnabled = true;
+
+    private volatile AudioSink mSink;
+
+    // 以下仅视频线程访问
+    private final long[] mPosition = new long[2];
+    private long mCorrectionUs;
+    private boolean mLocked;
+
+    /**
+     * 重新开始，在每次开始播放时调用
+     */
+    void reset() {
+        mCorrectionUs = 0;
+        mLocked = false;
+    }
+
+    /**
+     * 音频输出开始。
+     *
+     * @param streamSampleRate 码流的采样率，用于把帧数换算成时间戳
+     * @param outputSampleRate 音频输出实际的采样率，用于推算两次读取之间播放的帧数
+     */
+    synchronized void onAudioStarted(AudioSink sink, int streamSampleRate, int outputSampleRate) {
+        mStreamSampleRate = streamSampleRate;
+        mOutputSampleRate = outputSampleRate;
+        resetSegments();
+        mSink = sink;
+    }
+
+    synchronized void onAudioStopped() {
+        mSink = null;
+        resetSegments();
+    }
+
+    /**
+     * 音频输出被清空，播放位置从0重新开始
+     */
+    synchronized void onAudioFlushed() {
+        resetSegments();
+    }
+
+    synchronized void setAudioEnabled(boolean enabled) {
+        mAudioEnabled = enabled;
+    }
+
+    /**
+     * 写入了frames帧PCM，第一帧的时间戳为stampUs。只能在音频线程调用。
+     */
+    synchronized void onAudioWritten(long stampUs, int frames) {
+        if (frames <= 0) {
+            return;
+        }
+        int index = (mSegmentHead + mSegmentCount) % MAX_SEGMENTS;
+        if (mSegmentCount == MAX_SEGMENTS) {
+            mSegmentHead = (mSegmentHead + 1) % MAX_SEGMENTS;
+        } else {
+            mSegmentCount++;
+        }
+        mSegmentFrames[index] = mWrittenFrames;
+        mSegmentStamps[index] = stampUs;
+        mWrittenFrames += frames;
+    }
+
+    /**
+     * 当前正在播放的音频时间戳，没有可用的音频时钟时返回{@link C#TIME_UNSET}。只能在视频线程调用。
+     */
+    long audioTimeUs(long nowUs) {
+        AudioSink sink = mSink;
+        // 在锁外读取，读取时会持有AudioTrack的锁
+        if (sink == null || !sink.getPlaybackPosition(mPosition)) {
+            return C.TIME_UNSET;
+        }
+        return audioTimeUs(mPosition[0], mPosition[1], nowUs);
+    }
+
+    private synchronized long audioTimeUs(long framePosition, long positionTimeUs, long nowUs) {
+        if (!mAudioEnabled || mSegmentCount == 0 || mOutputSampleRate <= 0 || mStreamSampleRate <= 0) {
+            return C.TIME_UNSET;
+        }
+
+        long frame = framePosition + Math.max(0, nowUs - positionTimeUs) * mOutputSampleRate / 1000000;
+        // 输出欠载时播放位置停在已写入的末尾，不能继续推算
+        frame = Math.min(frame, mWrittenFrames);
+
+        int first = mSegmentHead;
+        if (frame < mSegmentFrames[first]) {
+            return C.TIME_UNSET;
+        }
+        for (int i = mSegmentCount - 1; i >= 0; i--) {
+            int index = (first + i) % MAX_SEGMENTS;
+            if (mSegmentFrames[index] <= frame) {
+                return mSegmentStamps[index] + (frame - mSegmentFrames[index]) * 1000000 / mStreamSampleRate;
+            }
+        }
+        return C.TIME_UNSET;
+    }
+
+    /**
+     * 视频帧的显示时刻。只能在视频线程调用。
+     *
+     * @param stampUs         帧时间戳
+     * @param wallDeadlineUs  按墙上时钟（抖动缓冲）的显示时刻
+     * @param nowUs           当前的单调时钟
+     */
+    long deadlineUs(long stampUs, long wallDeadlineUs, long nowUs) {
+        long audioUs = audioTimeUs(nowUs);
+        long targetUs;
+        if (audioUs != C.TIME_UNSET) {
+            targetUs = nowUs + (stampUs - audioUs) - wallDeadlineUs;
+            if (!mLocked || Math.abs(targetUs - mCorrectionUs) > RESYNC_US) {
+                mLocked = true;
+                mCorrectionUs = targetUs;
+            }
+        } else if (mSink == null || !isAudioEnabled()) {
+            mLocked = false;
+            targetUs = 0;
+        } else {
+            targetUs = mCorrectionUs;
+        }
+
+        long diff = targetUs - mCorrectionUs;
+        mCorrectionUs += Math.max(-MAX_STEP_US, Math.min(diff, MAX_STEP_US));
+        return wallDeadlineUs + mCorrectionUs;
+    }
+
+    /**
+     * 当前对墙上时钟的修正量
+     */
+    long getCorrectionUs() {
+        return mCorrectionUs;
+    }
+
+    private synchronized boolean isAudioEnabled() {
+        return mAudioEnabled;
+    }
+
+    private void resetSegments() {
+        mSegmentHead = 0;
+        mSegmentCount = 0;
+        mWrittenFrames = 0;
+    }
+}
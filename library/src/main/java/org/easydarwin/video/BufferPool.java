@@ -0,0 +1,125 @@
+package org.easydarwin.video;
+
+/**
+ * 按大小分级的byte[]缓存池，用于帧数据的复用。
+ * <p>
+ * 每一级的长度是2的幂，从{@link #MIN_SIZE}到{@link #MAX_SIZE}。超出范围的请求直接new，不进池。
+ * 每一级保留的数组个数有上限，避免长时间播放后池本身占用过多内存。
+ */
+final class BufferPool {
+
+    static final int MIN_SHIFT = 8;
+    static final int MAX_SHIFT = 22;
+
+    /**
+     * 最小的一级，256字节。
+     */
+    static final int MIN_SIZE = 1 << MIN_SHIFT;
+
+    /**
+     * 最大的一级，4MB。
+     */
+    static final int MAX_SIZE = 1 << MAX_SHIFT;
+
+    /**
+     * 每一级最多保留的字节数。
+     */
+    private static final int MAX_BYTES_PER_CLASS = 8 * 1024 * 1024;
+
+    /**
+     * 每一级最多保留的数组个数，与队列容量相当即可。
+     */
+    private static final int MAX_COUNT_PER_CLASS = 512;
+
+    private static final class SizeClass {
+        final byte[][] free;
+        int count;
+
+        SizeClass(int capacity) {
+            free = new byte[capacity][];
+        }
+    }
+
+    private final SizeClass[] mClasses = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+
+    BufferPool() {
+        for (int i = 0; i < mClasses.length; i++) {
+            int size = 1 << (MIN_SHIFT + i);
+            int capacity = Math.min(MAX_COUNT_PER_CLASS, Math.max(4, MAX_BYTES_PER_CLASS / size));
+            mClasses[i] = new SizeClass(capacity);
+        }
+    }
+
+    /**
+     * 返回能容纳length字节的最小级别，超出范围返回-1。
+     */
+    static int classOf(int length) {
+        if (length <= MIN_SIZE) {
+            return 0;
+        }
+
+        if (length > MAX_SIZE) {
+            return -1;
+        }
+
+        // 向上取整到2的幂
+        int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+        return shift - MIN_SHIFT;
+    }
+
+    /**
+     * 取得一个长度不小于length的数组，内容不做清零。
+     */
+    byte[] acquire(int length) {
+        int idx = classOf(length);
+        if (idx < 0) {
+            return new byte[length];
+        }
+
+        SizeClass sc = mClasses[idx];
+        synchronized (sc) {
+            if (sc.count > 0) {
+                byte[] buf = sc.free[--sc.count];
+                sc.free[sc.count] = null;
+                return buf;
+            }
+        }
+
+        return new byte[1 << (MIN_SHIFT + idx)];
+    }
+
+    /**
+     * 归还数组。不是由本池分配的长度（非2的幂或超出范围）会被直接丢弃。
+     */
+    void release(byte[] buf) {
+        if (buf == null) {
+            return;
+        }
+
+        int length = buf.length;
+        if (length < MIN_SIZE || length > MAX_SIZE || (length & (length - 1)) != 0) {
+            return;
+        }
+
+        SizeClass sc = mClasses[classOf(length)];
+        synchronized (sc) {
+            if (sc.count < sc.free.length) {
+                sc.free[sc.count++] = buf;
+            }
+        }
+    }
+
+    /**
+     * 释放池中缓存的所有数组。
+     */
+    void trim() {
+        for (SizeClass sc : mClasses) {
+            synchronized (sc) {
+                for (int i = 0; i < sc.count; i++) {
+                    sc.free[i] = null;
+                }
+                sc.count = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package org.easydarwin.video;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.easydarwin.video.Client.EASY_SDK_AUDIO_FRAME_FLAG;
+import static org.easydarwin.video.Client.EASY_SDK_MEDIA_INFO_FLAG;
+import static org.easydarwin.video.Client.EASY_SDK_SEI_FRAME_FLAG;
+import static org.easydarwin.video.Client.EASY_SDK_VIDEO_FRAME_FLAG;
+
+/**
+ * 回放{@link BuildConfig#MEDIA_DEBUG}打开时抓取的数据，驱动{@link Client.SourceCallBack}（通常是{@link EasyPlayerClient}），
+ * 用来在没有摄像机和网络的情况下复现现场问题。
+ * <p>
+ * 读取、按时间戳等待和帧的解析派发只依赖{@link FrameDispatcher}，不会加载native库，可以在JVM上配合自己实现的SourceCallBack运行；
+ * 交给EasyPlayerClient时，入队之后的解码和录像要用到MediaCodec等Android接口，只能在设备上运行。
+ * <p>
+ * 文件由一条条记录组成，每条记录是：1字节帧类型 + 4字节长度（大端） + 数据。
+ * 媒体信息记录的数据是EASY_MEDIA_INFO_T；音视频帧记录的数据是帧头，紧跟着一条类型为{@link #RECORD_PAYLOAD}的记录存放帧数据。
+ * 较早的抓包文件没有帧数据记录，回放时帧数据为空。
+ * <p>
+ * 类型字节只有8位，SEI（0x100）在文件中记为0。
+ */
+public class CaptureReplaySource implements Closeable {
+
+    public static final String DEFAULT_PATH = "/sdcard/media_degbu.data";
+
+    /**
+     * 帧数据记录的类型，紧跟在帧头记录之后
+     */
+    static final int RECORD_PAYLOAD = 0xFF;
+
+    /**
+     * 按录制时的速度回放
+     */
+    public static final float SPEED_REALTIME = 1.0f;
+
+    /**
+     * 不做等待，尽快回放
+     */
+    public static final float SPEED_UNLIMITED = 0f;
+
+    private final DataInputStream mInput;
+    private final Client.SourceCallBack mCallback;
+    private final int mChannel;
+    private volatile float mSpeed = SPEED_REALTIME;
+    private volatile boolean mCanceled;
+
+    /**
+     * 预读的下一条记录的类型，-1表示没有
+     */
+    private int mPendingType = -1;
+    private byte[] mPendingData;
+
+    private final FrameHeaderView mHeaderView = new FrameHeaderView();
+    private long mFirstStampUs = -1;
+    private long mStartNanos;
+    private float mPacedSpeed;
+
+    public CaptureReplaySource(File file, Client.SourceCallBack callback, int channel) throws IOException {
+        this(new FileInputStream(file), callback, channel);
+    }
+
+    public CaptureReplaySource(InputStream in, Client.SourceCallBack callback, int channel) {
+        if (callback == null) {
+            throw new NullPointerException("callback is null");
+        }
+
+        mInput = new DataInputStream(new BufferedInputStream(in, 256 * 1024));
+        mCallback = callback;
+        mChannel = channel;
+    }
+
+    /**
+     * 设置回放速度。1表示按录制速度，N表示N倍速，{@link #SPEED_UNLIMITED}表示不等待。
+     */
+    public void setSpeed(float speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("speed should not be negative:" + speed);
+        }
+
+        mSpeed = speed;
+    }
+
+    /**
+     * 停止回放，{@link #replay()}会在当前帧处理完后返回。
+     */
+    public void cancel() {
+        mCanceled = true;
+    }
+
+    /**
+     * 在当前线程中回放整个文件，直到结束或者被取消。
+     *
+     * @return 回放的音视频帧数
+     */
+    public int replay() throws IOException, InterruptedException {
+        int frames = 0;
+
+        while (!mCanceled) {
+            int type = readRecord();
+            if (type < 0) {
+                break;
+            }
+
+            byte[] data = mPendingData;
+            mPendingType = -1;
+            mPendingData = null;
+
+            if (type == RECORD_PAYLOAD) {
+                // 孤立的帧数据记录，忽略
+                continue;
+            }
+
+            if (type == EASY_SDK_MEDIA_INFO_FLAG) {
+                FrameDispatcher.dispatch(mCallback, mChannel, 0, type, data, null);
+                continue;
+            }
+
+            byte[] payload = null;
+            if (readRecord() == RECORD_PAYLOAD) {
+                payload = mPendingData;
+                mPendingType = -1;
+                mPendingData = null;
+            }
+
+            if (type == 0) {
+                // SEI，类型在文件中被截断成了0
+                FrameDispatcher.dispatch(mCallback, mChannel, 0, EASY_SDK_SEI_FRAME_FLAG, payload != null ? payload : data, null);
+                continue;
+            }
+
+            if (data.length < FrameHeaderView.SIZE) {
+                continue;
+            }
+
+            if (type == EASY_SDK_VIDEO_FRAME_FLAG || type == EASY_SDK_AUDIO_FRAME_FLAG) {
+                pace(data);
+                frames++;
+            }
+
+            FrameDispatcher.dispatch(mCallback, mChannel, 0, type, payload != null ? payload : FrameDispatcher.EMPTY_PAYLOAD, data);
+        }
+
+        return frames;
+    }
+
+    /**
+     * 读取下一条记录到mPendingType/mPendingData，已经预读过时直接返回。
+     *
+     * @return 记录类型，文件结束时返回-1
+     */
+    private int readRecord() throws IOException {
+        if (mPendingType >= 0) {
+            return mPendingType;
+        }
+
+        int type = mInput.read();
+        if (type < 0) {
+            return -1;
+        }
+
+        try {
+            int length = mInput.readInt();
+            if (length < 0) {
+                throw new IOException("invalid record length:" + length);
+            }
+
+            byte[] data = new byte[length];
+            mInput.readFully(data);
+            mPendingType = type;
+            mPendingData = data;
+            return type;
+        } catch (EOFException e) {
+            // 最后一条记录不完整
+            return -1;
+        }
+    }
+
+    /**
+     * 按帧时间戳等待到该帧的回放时刻。
+     */
+    private void pace(byte[] header) throws InterruptedException {
+        float speed = mSpeed;
+        long stamp = mHeaderView.wrap(header).stamp();
+        mHeaderView.clear();
+
+        if (mFirstStampUs < 0 || speed != mPacedSpeed || stamp < mFirstStampUs) {
+            // 第一帧、速度改变或时间戳回绕时，以当前帧重新计时
+            mFirstStampUs = stamp;
+            mStartNanos = System.nanoTime();
+            mPacedSpeed = speed;
+            return;
+        }
+
+        if (speed <= 0) {
+            return;
+        }
+
+        long elapsedUs = (long) ((stamp - mFirstStampUs) / speed);
+        long waitNanos = mStartNanos + elapsedUs * 1000 - System.nanoTime();
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mCanceled = true;
+        mInput.close();
+    }
+}
@@ -0,0 +1,298 @@
+package org.easydarwin.video;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * 异步写抓包文件。
+ * <p>
+ * native回调线程把记录拷贝进一个有界的内存环形缓冲后立即返回，后台线程把缓冲中的数据成批写入同一个{@link FileChannel}。
+ * 缓冲满时按{@link #OVERFLOW_DROP}或{@link #OVERFLOW_BLOCK}处理。文件超过大小上限时在记录边界处轮转，
+ * 旧文件依次改名为 path.1、path.2 ...，每个文件都可以单独用{@link CaptureReplaySource}回放。
+ * <p>
+ * 记录格式与{@link CaptureReplaySource}一致：1字节类型 + 4字节长度（大端） + 数据。
+ */
+final class CaptureWriter implements Closeable {
+
+    /**
+     * 缓冲满时丢弃新的记录，不阻塞调用线程
+     */
+    static final int OVERFLOW_DROP = 0;
+
+    /**
+     * 缓冲满时阻塞调用线程，直到后台线程写出足够的空间
+     */
+    static final int OVERFLOW_BLOCK = 1;
+
+    static final int DEFAULT_BUFFER_SIZE = 8 * 1024 * 1024;
+    static final long DEFAULT_MAX_FILE_SIZE = 256L * 1024 * 1024;
+    static final int DEFAULT_MAX_FILES = 4;
+
+    private static final int RECORD_HEADER_SIZE = 5;
+
+    private final File mFile;
+    private final byte[] mRing;
+    private final long mMaxFileSize;
+    private final int mMaxFiles;
+    private final int mOverflowPolicy;
+    private final Thread mThread;
+
+    private final Object mLock = new Object();
+
+    // 以下受mLock保护。位置都是单调递增的逻辑位置，下标为 pos % mRing.length
+    private long mHead;
+    private long mTail;
+    private long mFileBytesQueued;
+    private final ArrayDeque<Long> mRotations = new ArrayDeque<>();
+    private boolean mClosed;
+    private long mDropped;
+
+    private FileChannel mChannel;
+
+    CaptureWriter(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES, OVERFLOW_DROP);
+    }
+
+    CaptureWriter(File file, int bufferSize, long maxFileSize, int maxFiles, int overflowPolicy) throws IOException {
+        if (bufferSize <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("buffer size too small:" + bufferSize);
+        }
+        if (maxFileSize <= 0 || maxFiles <= 0) {
+            throw new IllegalArgumentException("invalid rotation:" + maxFileSize + "," + maxFiles);
+        }
+        if (overflowPolicy != OVERFLOW_DROP && overflowPolicy != OVERFLOW_BLOCK) {
+            throw new IllegalArgumentException("unknown overflow policy:" + overflowPolicy);
+        }
+
+        mFile = file;
+        mRing = new byte[bufferSize];
+        mMaxFileSize = maxFileSize;
+        mMaxFiles = maxFiles;
+        mOverflowPolicy = overflowPolicy;
+
+        mChannel = new FileOutputStream(file, true).getChannel();
+        mFileBytesQueued = mChannel.size();
+
+        mThread = new Thread("CAPTURE_WRITER") {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * 写一条记录。
+     *
+     * @return 记录被丢弃时返回false
+     */
+    boolean write(int type, byte[] data) {
+        return write(type, data, -1, null);
+    }
+
+    /**
+     * 原子地写两条相邻的记录（例如帧头和帧数据），保证二者在同一个文件中。
+     *
+     * @param type2 第二条记录的类型，小于0时只写第一条
+     * @return 记录被丢弃时返回false
+     */
+    boolean write(int type1, byte[] data1, int type2, byte[] data2) {
+        final int size = RECORD_HEADER_SIZE + data1.length + (type2 < 0 ? 0 : RECORD_HEADER_SIZE + data2.length);
+
+        synchronized (mLock) {
+            if (mClosed || size > mRing.length) {
+                mDropped++;
+                return false;
+            }
+
+            while (mRing.length - (mTail - mHead) < size) {
+                if (mOverflowPolicy == OVERFLOW_DROP) {
+                    mDropped++;
+                    return false;
+                }
+
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mDropped++;
+                    return false;
+                }
+
+                if (mClosed) {
+                    mDropped++;
+                    return false;
+                }
+            }
+
+            if (mFileBytesQueued > 0 && mFileBytesQueued + size > mMaxFileSize) {
+                mRotations.add(mTail);
+                mFileBytesQueued = 0;
+            }
+
+            putRecord(type1, data1);
+            if (type2 >= 0) {
+                putRecord(type2, data2);
+            }
+            mFileBytesQueued += size;
+            mLock.notifyAll();
+        }
+
+        return true;
+    }
+
+    /**
+     * 因缓冲满或已关闭而丢弃的记录数
+     */
+    long droppedRecords() {
+        synchronized (mLock) {
+            return mDropped;
+        }
+    }
+
+    private void putRecord(int type, byte[] data) {
+        final int length = data.length;
+        putByte(type);
+        putByte(length >>> 24);
+        putByte(length >>> 16);
+        putByte(length >>> 8);
+        putByte(length);
+        putBytes(data, length);
+    }
+
+    private void putByte(int b) {
+        mRing[(int) (mTail % mRing.length)] = (byte) b;
+        mTail++;
+    }
+
+    private void putBytes(byte[] src, int length) {
+        int index = (int) (mTail % mRing.length);
+        int first = Math.min(length, mRing.length - index);
+        System.arraycopy(src, 0, mRing, index, first);
+        if (first < length) {
+            System.arraycopy(src, first, mRing, 0, length - first);
+        }
+        mTail += length;
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                long head;
+                long end;
+                boolean rotate = false;
+
+                synchronized (mLock) {
+                    while (mHead == mTail && !mClosed) {
+                        mLock.wait();
+                    }
+
+                    if (mHead == mTail) {
+                        // closed and drained
+                        break;
+                    }
+
+                    head = mHead;
+                    end = mTail;
+                    Long rotation = mRotations.peek();
+                    if (rotation != null) {
+                        if (rotation == head) {
+                            mRotations.poll();
+                            rotate = true;
+                            rotation = mRotations.peek();
+                        }
+                        if (rotation != null && rotation < end) {
+                            end = rotation;
+                        }
+                    }
+                }
+
+                if (rotate) {
+                    rotate();
+                }
+
+                // 环形缓冲最多分两段写出
+                int index = (int) (head % mRing.length);
+                int length = (int) (end - head);
+                int first = Math.min(length, mRing.length - index);
+                if (first < length) {
+                    ByteBuffer[] bufs = {ByteBuffer.wrap(mRing, index, first), ByteBuffer.wrap(mRing, 0, length - first)};
+                    // 聚集写也可能只写出一部分，写完两段才能前移mHead，否则文件中的记录会错位
+                    while (bufs[1].hasRemaining()) {
+                        mChannel.write(bufs);
+                    }
+                } else {
+                    ByteBuffer bb = ByteBuffer.wrap(mRing, index, first);
+                    while (bb.hasRemaining()) {
+                        mChannel.write(bb);
+                    }
+                }
+
+                synchronized (mLock) {
+                    mHead = end;
+                    mLock.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            // exit
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            synchronized (mLock) {
+                mClosed = true;
+                mHead = mTail;
+                mLock.notifyAll();
+            }
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void rotate() throws IOException {
+        mChannel.close();
+
+        String path = mFile.getPath();
+        new File(path + "." + (mMaxFiles - 1)).delete();
+        for (int i = mMaxFiles - 2; i >= 1; i--) {
+            File f = new File(path + "." + i);
+            if (f.exists()) {
+                f.renameTo(new File(path + "." + (i + 1)));
+            }
+        }
+        if (mMaxFiles > 1) {
+            mFile.renameTo(new File(path + ".1"));
+        } else {
+            mFile.delete();
+        }
+
+        mChannel = new FileOutputStream(mFile, false).getChannel();
+    }
+
+    /**
+     * 写出缓冲中剩余的数据后关闭文件。
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.easydarwin.video;
+
+/**
+ * 以通道号为下标的回调表，读无锁，写时复制。
+ * <p>
+ * native回调线程每一帧都要查一次通道对应的回调和暂停状态，这里把二者放在同一个不可变的{@link Entry}里，
+ * 通过一个volatile数组发布，读的时候只有一次volatile读和一次数组下标访问。
+ * 注册、注销、暂停、恢复都很少发生，在锁内复制整个数组后再发布。
+ * <p>
+ * 通道号的低16位是数组下标，高位是代数。下标会复用，代数不同可以避免已注销通道迟到的回调被派发给新注册的对象。
+ */
+final class ChannelTable<T> {
+
+    private static final int INDEX_BITS = 16;
+    private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+    private static final int MAX_GENERATION = 0x7FFF;
+
+    static final class Entry<T> {
+        final int id;
+        final T callback;
+        final boolean paused;
+
+        Entry(int id, T callback, boolean paused) {
+            this.id = id;
+            this.callback = callback;
+            this.paused = paused;
+        }
+    }
+
+    private volatile Entry<T>[] mEntries = newArray(8);
+    private int mGeneration = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> Entry<T>[] newArray(int length) {
+        return (Entry<T>[]) new Entry[length];
+    }
+
+    /**
+     * 无锁查询。
+     *
+     * @return 通道不存在或已注销时返回null。
+     */
+    Entry<T> get(int id) {
+        final Entry<T>[] entries = mEntries;
+        final int index = id & INDEX_MASK;
+        if (index >= entries.length) {
+            return null;
+        }
+
+        Entry<T> e = entries[index];
+        if (e == null || e.id != id) {
+            return null;
+        }
+
+        return e;
+    }
+
+    T getCallback(int id) {
+        Entry<T> e = get(id);
+        return e == null ? null : e.callback;
+    }
+
+    synchronized int register(T callback) {
+        Entry<T>[] entries = mEntries;
+        int index = 0;
+        while (index < entries.length && entries[index] != null) {
+            index++;
+        }
+
+        if (index > INDEX_MASK) {
+            throw new IllegalStateException("too many channels");
+        }
+
+        Entry<T>[] copy = newArray(index < entries.length ? entries.length : entries.length * 2);
+        System.arraycopy(entries, 0, copy, 0, entries.length);
+
+        mGeneration = mGeneration % MAX_GENERATION + 1;
+        int id = (mGeneration << INDEX_BITS) | index;
+        copy[index] = new Entry<>(id, callback, false);
+        mEntries = copy;
+        return id;
+    }
+
+    synchronized void unregister(T callback) {
+        Entry<T>[] entries = mEntries;
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] != null && entries[i].callback == callback) {
+                Entry<T>[] copy = entries.clone();
+                copy[i] = null;
+                mEntries = copy;
+                return;
+            }
+        }
+    }
+
+    synchronized void setPaused(int id, boolean paused) {
+        Entry<T> e = get(id);
+        if (e == null || e.paused == paused) {
+            return;
+        }
+
+        Entry<T>[] copy = mEntries.clone();
+        copy[id & INDEX_MASK] = new Entry<>(e.id, e.callback, paused);
+        mEntries = copy;
+    }
+}
@@ -8,28 +8,22 @@ import android.os.Handler;
 import android.os.Looper;
 import androidx.core.content.ContextCompat;
 import android.util.Log;
-import android.util.SparseArray;
 
 import java.io.Closeable;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
-import java.util.HashSet;
-import java.util.Set;
 
 /**
  * Created by John on 2016/3/12.
  */
 public class Client implements Closeable {
 
-    private static int sKey;
     private static Context mContext;
     private volatile int paused = 0;
     private static final Handler h = new Handler(Looper.getMainLooper());
-    private static Set<Integer> _channelPause = new HashSet<>();
     private final Runnable closeTask = new Runnable() {
         @Override
         public void run() {
@@ -76,6 +70,135 @@ public class Client implements Closeable {
         public byte[] buffer;
         public int offset = 0;
         public boolean audio;
+
+        /**
+         * 参数集有变化但不需要重新配置解码器时，在这一帧之前以BUFFER_FLAG_CODEC_CONFIG送入解码器的新参数集
+         */
+        ByteBuffer codecConfig;
+
+        /**
+         * 这一帧的SPS改变了图像格式，解码器需要重新配置
+         */
+        boolean formatChanged;
+
+        private static final Object sPoolSync = new Object();
+        private static final int MAX_POOL_SIZE = 1024;
+        private static FrameInfo sPool;
+        private static int sPoolSize = 0;
+
+        /**
+         * 帧数据的缓存池，buffer由此分配时recycle会一并归还。
+         */
+        static final BufferPool sPayloadPool = new BufferPool();
+
+        /**
+         * 读取native帧头用的视图，随FrameInfo一起复用，只在{@link #readHeader(byte[])}期间绑定帧头。
+         */
+        final FrameHeaderView header = new FrameHeaderView();
+
+        private FrameInfo next;
+        private boolean pooledBuffer;
+        private boolean inUse;
+
+        /**
+         * 从对象池中取一个FrameInfo，用完后调用{@link #recycle()}归还。
+         */
+        static FrameInfo obtain() {
+            FrameInfo fi = null;
+            synchronized (sPoolSync) {
+                if (sPool != null) {
+                    fi = sPool;
+                    sPool = fi.next;
+                    fi.next = null;
+                    sPoolSize--;
+                }
+            }
+
+            if (fi == null) {
+                fi = new FrameInfo();
+            }
+
+            fi.inUse = true;
+            return fi;
+        }
+
+        /**
+         * 从帧头视图中填充各字段。
+         * <p>
+         * 字段仍然要复制一遍：FrameInfo是SourceCallBack的公开参数，调用者直接读写这些字段，
+         * 播放器也会在入队之后修改length、offset（去掉参数集）等，视图只能反映native帧头原来的值。
+         * 复制完就解除绑定，排队中的帧不会一直引用JNI给的帧头数组。
+         */
+        void readHeader(byte[] frameBuffer) {
+            FrameHeaderView h = header.wrap(frameBuffer);
+            codec = h.codec();
+            type = h.type();
+            fps = h.fps();
+            width = h.width();
+            height = h.height();
+            sample_rate = h.sampleRate();
+            channels = h.channels();
+            bits_per_sample = h.bitsPerSample();
+            length = h.length();
+            timestamp_usec = h.timestampUsec();
+            timestamp_sec = h.timestampSec();
+            stamp = h.stamp();
+            h.clear();
+        }
+
+        /**
+         * 从缓存池中分配至少length字节的buffer，recycle时归还。
+         */
+        void allocBuffer(int length) {
+            buffer = sPayloadPool.acquire(length);
+            pooledBuffer = true;
+        }
+
+        /**
+         * 帧已经送入MediaCodec/软解/录像之后调用，归还帧数据和FrameInfo本身。调用后不能再访问该对象。
+         */
+        void recycle() {
+            if (!inUse) {
+                return;
+            }
+
+            if (pooledBuffer) {
+                sPayloadPool.release(buffer);
+            }
+
+            codec = 0;
+            type = 0;
+            fps = 0;
+            width = 0;
+            height = 0;
+            reserved1 = 0;
+            reserved2 = 0;
+            sample_rate = 0;
+            channels = 0;
+            bits_per_sample = 0;
+            length = 0;
+            timestamp_usec = 0;
+            timestamp_sec = 0;
+            stamp = 0;
+            bitrate = 0;
+            losspacket = 0;
+            buffer = null;
+            offset = 0;
+            audio = false;
+            codecConfig = null;
+            formatChanged = false;
+            header.clear();
+            pooledBuffer = false;
+            inUse = false;
+
+            synchronized (sPoolSync) {
+                if (sPoolSize < MAX_POOL_SIZE) {
+                    next = sPool;
+                    sPool = this;
+                    sPoolSize++;
+                }
+            }
+        }
     }
 
     public static final class MediaInfo {
@@ -103,6 +226,30 @@ public class Client implements Closeable {
         byte[] sps;
         byte[] pps;
 
+        /**
+         * 解析native层的EASY_MEDIA_INFO_T结构
+         */
+        static MediaInfo parse(byte[] pBuf) {
+            MediaInfo mi = new MediaInfo();
+
+            ByteBuffer buffer = ByteBuffer.wrap(pBuf);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            mi.videoCodec = buffer.getInt();
+            mi.fps = buffer.getInt();
+            mi.audioCodec = buffer.getInt();
+            mi.sample = buffer.getInt();
+            mi.channel = buffer.getInt();
+            mi.bitPerSample = buffer.getInt();
+            mi.spsLen = buffer.getInt();
+            mi.ppsLen = buffer.getInt();
+            mi.sps = new byte[128];
+            mi.pps = new byte[36];
+
+            buffer.get(mi.sps);
+            buffer.get(mi.pps);
+            return mi;
+        }
+
         @Override
         public String toString() {
             return "MediaInfo{" + "videoCodec=" + videoCodec + ", fps=" + fps + ", audioCodec=" + audioCodec + ", sample=" + sample + ", channel=" + channel + ", bitPerSample=" + bitPerSample + ", spsLen=" + spsLen + ", ppsLen=" + ppsLen + '}';
@@ -141,7 +288,7 @@ public class Client implements Closeable {
     }
 
     private long mCtx;
-    private static final SparseArray<SourceCallBack> sCallbacks = new SparseArray<>();
+    private static final ChannelTable<SourceCallBack> sChannels = new ChannelTable<>();
 
     Client(Context context) {
         if (context == null) {
@@ -153,19 +300,11 @@ public class Client implements Closeable {
     }
 
     int registerCallback(SourceCallBack cb) {
-        synchronized (sCallbacks) {
-            sCallbacks.put(++sKey, cb);
-            return sKey;
-        }
+        return sChannels.register(cb);
     }
 
     void unrigisterCallback(SourceCallBack cb) {
-        synchronized (sCallbacks) {
-            int idx = sCallbacks.indexOfValue(cb);
-            if (idx != -1) {
-                sCallbacks.removeAt(idx);
-            }
-        }
+        sChannels.unregister(cb);
     }
 
     public int getLastErrorCode() {
@@ -217,137 +356,64 @@ public class Client implements Closeable {
 
     private native void closeStream(long context);
 
-    private static void save2path(byte[] buffer, int offset, int length, String path, boolean append) {
-        FileOutputStream fos = null;
-
-        try {
-            fos = new FileOutputStream(path, append);
-            fos.write(buffer, offset, length);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (fos != null) {
+    /**
+     * 抓包文件的写入器，第一次抓到数据且有存储权限时创建，之后在整个进程中共用
+     */
+    private static volatile CaptureWriter sCaptureWriter;
+
+    private static CaptureWriter captureWriter() {
+        CaptureWriter writer = sCaptureWriter;
+        if (writer != null || mContext == null) {
+            return writer;
+        }
+
+        synchronized (Client.class) {
+            if (sCaptureWriter == null) {
+                int permissionCheck = ContextCompat.checkSelfPermission(mContext, Manifest.permission.WRITE_EXTERNAL_STORAGE);
+                if (permissionCheck != PackageManager.PERMISSION_GRANTED) {
+                    return null;
+                }
+
                 try {
-                    fos.close();
+                    sCaptureWriter = new CaptureWriter(new File(CaptureReplaySource.DEFAULT_PATH));
                 } catch (IOException e) {
                     e.printStackTrace();
+                    return null;
                 }
             }
+            return sCaptureWriter;
         }
     }
 
     private static void onSourceCallBack(int _channelId, int _channelPtr, int _frameType, byte[] pBuf, byte[] frameBuffer) {
 
         if (BuildConfig.MEDIA_DEBUG) {
-            int permissionCheck = ContextCompat.checkSelfPermission(mContext, Manifest.permission.WRITE_EXTERNAL_STORAGE);
-            if (permissionCheck == PackageManager.PERMISSION_GRANTED) {
+            CaptureWriter writer = captureWriter();
+            if (writer != null && _frameType != 0) {
                 // frameType + size + buffer
-                if (_frameType != 0) {
-                    ByteBuffer bf = ByteBuffer.allocate(5);
-                    bf.put((byte) _frameType);
-                    if (_frameType == EASY_SDK_MEDIA_INFO_FLAG) {
-                        bf.putInt(pBuf.length);
-                        save2path(bf.array(), 0, 5, "/sdcard/media_degbu.data", true);
-                        save2path(pBuf, 0, pBuf.length, "/sdcard/media_degbu.data", true);
-                    } else {
-                        bf.putInt(frameBuffer.length);
-                        save2path(bf.array(), 0, 5, "/sdcard/media_degbu.data", true);
-                        save2path(frameBuffer, 0, frameBuffer.length, "/sdcard/media_degbu.data", true);
+                if (_frameType == EASY_SDK_MEDIA_INFO_FLAG || frameBuffer == null) {
+                    if (pBuf != null) {
+                        writer.write(_frameType, pBuf);
                     }
+                } else if (pBuf != null) {
+                    // 帧数据紧跟在帧头之后，回放时使用。见CaptureReplaySource。
+                    writer.write(_frameType, frameBuffer, CaptureReplaySource.RECORD_PAYLOAD, pBuf);
+                } else {
+                    writer.write(_frameType, frameBuffer);
                 }
             }
         }
 
-
-        final SourceCallBack callBack;
-        synchronized (sCallbacks) {
-            callBack = sCallbacks.get(_channelId);
-        }
-
-
-        if (_frameType == EASY_SDK_SEI_FRAME_FLAG) {
-            callBack.sendSeiData(pBuf);
-            return;
-        }
-
-        if (_frameType == 0) {
-            if (callBack != null) {
-                callBack.onSourceCallBack(_channelId, _channelPtr, _frameType, null);
-            }
-            return;
-        }
-
-        if (_frameType == EASY_SDK_MEDIA_INFO_FLAG) {
-            if (callBack != null) {
-                MediaInfo mi = new MediaInfo();
-
-                ByteBuffer buffer = ByteBuffer.wrap(pBuf);
-                buffer.order(ByteOrder.LITTLE_ENDIAN);
-                mi.videoCodec = buffer.getInt();
-                mi.fps = buffer.getInt();
-                mi.audioCodec = buffer.getInt();
-                mi.sample = buffer.getInt();
-                mi.channel = buffer.getInt();
-                mi.bitPerSample = buffer.getInt();
-                mi.spsLen = buffer.getInt();
-                mi.ppsLen = buffer.getInt();
-                mi.sps = new byte[128];
-                mi.pps = new byte[36];
-
-                buffer.get(mi.sps);
-                buffer.get(mi.pps);
-//                    int videoCodec;int fps;
-//                    int audioCodec;int sample;int channel;int bitPerSample;
-//                    int spsLen;
-//                    int ppsLen;
-//                    byte[]sps;
-//                    byte[]pps;
-
-                callBack.onMediaInfoCallBack(_channelId, mi);
-            }
+        final ChannelTable.Entry<SourceCallBack> channel = sChannels.get(_channelId);
+        if (channel == null) {
             return;
         }
 
-        ByteBuffer buffer = ByteBuffer.wrap(frameBuffer);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        FrameInfo fi = new FrameInfo();
-        fi.codec = buffer.getInt();
-        fi.type = buffer.getInt();
-        fi.fps = buffer.get();
-        buffer.get();
-        fi.width = buffer.getShort();
-        fi.height = buffer.getShort();
-        buffer.getInt();
-        buffer.getInt();
-        buffer.getShort();
-        fi.sample_rate = buffer.getInt();
-        fi.channels = buffer.getInt();
-        fi.bits_per_sample = buffer.getInt();
-        fi.length = buffer.getInt();
-        fi.timestamp_usec = buffer.getInt();
-        fi.timestamp_sec = buffer.getInt();
-
-        long sec = fi.timestamp_sec < 0 ? Integer.MAX_VALUE - Integer.MIN_VALUE + 1 + fi.timestamp_sec : fi.timestamp_sec;
-        long usec = fi.timestamp_usec < 0 ? Integer.MAX_VALUE - Integer.MIN_VALUE + 1 + fi.timestamp_usec : fi.timestamp_usec;
-        fi.stamp = sec * 1000000 + usec;
-
-//        long differ = fi.stamp - mPreviewStamp;
-//        Log.d(TAG, String.format("%s:%d,%d,%d, %d", EASY_SDK_VIDEO_FRAME_FLAG == _frameType ? "视频" : "音频", fi.stamp, fi.timestamp_sec, fi.timestamp_usec, differ));
-        fi.buffer = pBuf;
-
-        boolean paused = false;
-        synchronized (_channelPause) {
-            paused = _channelPause.contains(_channelId);
+        if (channel.paused && (_frameType == EASY_SDK_VIDEO_FRAME_FLAG || _frameType == EASY_SDK_AUDIO_FRAME_FLAG)) {
+            Log.i(TAG, "channel_" + _channelId + " is paused!");
         }
 
-        if (callBack != null) {
-            if (paused) {
-                Log.i(TAG, "channel_" + _channelId + " is paused!");
-            }
-            callBack.onSourceCallBack(_channelId, _channelPtr, _frameType, fi);
-        }
+        FrameDispatcher.dispatch(channel.callback, _channelId, _channelPtr, _frameType, pBuf, frameBuffer);
     }
 
 
@@ -357,11 +423,9 @@ public class Client implements Closeable {
         // err的含义：http请求的返回码（200，400，401等等）
         Log.e(TAG, String.format("__RTSPClientCallBack onEvent: err=%d, state=%d", err, state));
 
-        synchronized (sCallbacks) {
-            final SourceCallBack callBack = sCallbacks.get(channel);
-            if (callBack != null) {
-                callBack.onEvent(channel, err, state);
-            }
+        final SourceCallBack callBack = sChannels.getCallback(channel);
+        if (callBack != null) {
+            callBack.onEvent(channel, err, state);
         }
     }
 
@@ -370,9 +434,7 @@ public class Client implements Closeable {
             throw new IllegalThreadStateException("please call pause in Main thread!");
         }
 
-        synchronized (_channelPause) {
-            _channelPause.add(_channel);
-        }
+        sChannels.setPaused(_channel, true);
 
         paused = 1;
         Log.i(TAG, "pause:=" + 1);
@@ -384,9 +446,7 @@ public class Client implements Closeable {
             throw new IllegalThreadStateException("call resume in Main thread!");
         }
 
-        synchronized (_channelPause) {
-            _channelPause.remove(_channel);
-        }
+        sChannels.setPaused(_channel, false);
 
         h.removeCallbacks(closeTask);
 
@@ -402,7 +462,7 @@ public class Client implements Closeable {
     @Override
     public void close() throws IOException {
         h.removeCallbacks(closeTask);
-        _channelPause.remove(_channel);
+        sChannels.setPaused(_channel, false);
 
         if (mCtx == 0) throw new IOException("not opened or already closed");
 
@@ -0,0 +1,309 @@
+package org.easydarwin.video;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.easydarwin.util.CodecSpecificDataUtil;
+import org.easydarwin.util.H264SpsParser;
+import org.easydarwin.util.H265ParameterSetParser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 进程内共享的视频解码器能力索引。
+ * <p>
+ * 枚举MediaCodecList并逐个查询能力要几十毫秒，以前每次开始播放都要做一遍。这里只在第一次用到时建立一次，
+ * 按mime保存每个解码器支持的尺寸、档次级别、颜色格式、是否硬解以及是否支持自适应播放，之后选择解码器不再访问MediaCodecList。
+ * <p>
+ * {@link #prefetch()}在后台线程中建立索引；解码线程用到时如果还没有建好，会等待它完成。
+ */
+final class DecoderCapabilityIndex {
+
+    private static final String TAG = "DecoderIndex";
+
+    static final class Decoder {
+        final String name;
+        final String mime;
+        final boolean hardware;
+
+        /**
+         * 支持的颜色格式中第一个能转换为I420的，没有时为0
+         */
+        final int colorFormat;
+        final MediaCodecInfo.CodecProfileLevel[] profileLevels;
+        final MediaCodecInfo.VideoCapabilities videoCapabilities;
+
+        /**
+         * 支持不重新配置就切换分辨率，{@link DecoderPool}只复用这样的解码器
+         */
+        final boolean adaptivePlayback;
+
+        Decoder(String name, String mime, boolean hardware, MediaCodecInfo.CodecCapabilities capabilities) {
+            this.name = name;
+            this.mime = mime;
+            this.hardware = hardware;
+            this.colorFormat = CodecSpecificDataUtil.selectColorFormat(capabilities);
+            this.profileLevels = capabilities.profileLevels != null ? capabilities.profileLevels : new MediaCodecInfo.CodecProfileLevel[0];
+            this.videoCapabilities = capabilities.getVideoCapabilities();
+            this.adaptivePlayback = capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_AdaptivePlayback);
+        }
+
+        boolean isSizeSupported(int width, int height) {
+            if (videoCapabilities == null || width <= 0 || height <= 0) {
+                return true;
+            }
+            if (videoCapabilities.isSizeSupported(width, height)) {
+                return true;
+            }
+            // 有的解码器对齐要求声明得过严，宽高分别在范围内的也可以尝试
+            return videoCapabilities.getSupportedWidths().contains(width) && videoCapabilities.getSupportedHeights().contains(height);
+        }
+
+        /**
+         * 是否声明支持该档次级别。profile为0（未知）或者解码器没有声明任何档次级别时认为支持，交给configure判断。
+         */
+        boolean isProfileLevelSupported(int profile, int level) {
+            if (profile == 0 || profileLevels.length == 0) {
+                return true;
+            }
+            for (MediaCodecInfo.CodecProfileLevel pl : profileLevels) {
+                if (isProfileCompatible(pl.profile, profile) && pl.level >= level) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isProfileCompatible(int declared, int required) {
+            if (declared == required) {
+                return true;
+            }
+            if ("video/hevc".equals(mime)) {
+                // Main10的解码器也能解Main
+                return required == MediaCodecInfo.CodecProfileLevel.HEVCProfileMain
+                        && declared == MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10;
+            }
+            // High兼容Main，Main和High兼容Baseline（实际码流几乎都是Constrained Baseline）
+            if (required == MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline) {
+                return declared == MediaCodecInfo.CodecProfileLevel.AVCProfileMain
+                        || declared == MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+            }
+            return required == MediaCodecInfo.CodecProfileLevel.AVCProfileMain
+                    && declared == MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+        }
+
+        @Override
+        public String toString() {
+            return name + (hardware ? "(hw)" : "(sw)");
+        }
+    }
+
+    /**
+     * level_idc，依次对应 AVCLevel1、AVCLevel1b、AVCLevel11 ~ AVCLevel62
+     */
+    private static final int[] AVC_LEVEL_IDC = {10, 9, 11, 12, 13, 20, 21, 22, 30, 31, 32, 40, 41, 42, 50, 51, 52, 60, 61, 62};
+
+    /**
+     * general_level_idc，依次对应 HEVCMainTierLevel1 ~ HEVCMainTierLevel62
+     */
+    private static final int[] HEVC_LEVEL_IDC = {30, 60, 63, 90, 93, 120, 123, 150, 153, 156, 180, 183, 186};
+
+    private static final AtomicBoolean sPrefetched = new AtomicBoolean();
+
+    private static final class Holder {
+        static final Map<String, List<Decoder>> INDEX = build();
+    }
+
+    private DecoderCapabilityIndex() {
+    }
+
+    /**
+     * 在后台线程中建立索引，已经建立时什么也不做
+     */
+    static void prefetch() {
+        if (!sPrefetched.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread("DECODER_INDEX") {
+            @Override
+            public void run() {
+                decoders("video/avc");
+            }
+        }.start();
+    }
+
+    /**
+     * 支持该mime的所有解码器，按MediaCodecList中的顺序。第一次调用时可能阻塞，不要在主线程调用。
+     */
+    static List<Decoder> decoders(String mime) {
+        List<Decoder> decoders = Holder.INDEX.get(mime.toLowerCase(Locale.US));
+        return decoders != null ? decoders : Collections.<Decoder>emptyList();
+    }
+
+    /**
+     * 选择解码器：只考虑支持该尺寸的，依次优先声明支持该档次级别的、硬解的、需要YUV输出时有可转换颜色格式的，
+     * 其余相同时按MediaCodecList中的顺序。
+     *
+     * @param profile   MediaCodecInfo.CodecProfileLevel中的档次，未知为0
+     * @param level     MediaCodecInfo.CodecProfileLevel中的级别，未知为0
+     * @param yuvOutput 是否需要从ByteBuffer读取YUV数据
+     * @return 没有合适的解码器时返回null
+     */
+    static Decoder select(String mime, int width, int height, int profile, int level, boolean yuvOutput) {
+        Decoder best = null;
+        int bestScore = -1;
+        for (Decoder decoder : decoders(mime)) {
+            if (!decoder.isSizeSupported(width, height)) {
+                continue;
+            }
+
+            int score = 0;
+            if (decoder.isProfileLevelSupported(profile, level)) {
+                score += 4;
+            }
+            if (decoder.hardware) {
+                score += 2;
+            }
+            if (yuvOutput && decoder.colorFormat != 0) {
+                score += 1;
+            }
+            if (score > bestScore) {
+                best = decoder;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * H.264 SPS对应的MediaCodecInfo.CodecProfileLevel档次和级别，未知的为0
+     */
+    static int[] avcProfileLevel(H264SpsParser.Sps sps) {
+        int profile;
+        switch (sps.profileIdc) {
+            case 66:
+                profile = MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+                break;
+            case 77:
+                profile = MediaCodecInfo.CodecProfileLevel.AVCProfileMain;
+                break;
+            case 88:
+                profile = MediaCodecInfo.CodecProfileLevel.AVCProfileExtended;
+                break;
+            case 100:
+                profile = MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+                break;
+            case 110:
+                profile = MediaCodecInfo.CodecProfileLevel.AVCProfileHigh10;
+                break;
+            case 122:
+                profile = MediaCodecInfo.CodecProfileLevel.AVCProfileHigh422;
+                break;
+            case 244:
+                profile = MediaCodecInfo.CodecProfileLevel.AVCProfileHigh444;
+                break;
+            default:
+                return new int[]{0, 0};
+        }
+
+        int level = 0;
+        for (int i = 0; i < AVC_LEVEL_IDC.length; i++) {
+            if (AVC_LEVEL_IDC[i] == sps.levelIdc) {
+                level = 1 << i;
+                break;
+            }
+        }
+        return new int[]{profile, level};
+    }
+
+    /**
+     * H.265 SPS对应的MediaCodecInfo.CodecProfileLevel档次和级别，未知的为0
+     */
+    static int[] hevcProfileLevel(H265ParameterSetParser.Sps sps) {
+        H265ParameterSetParser.ProfileTierLevel ptl = sps.profileTierLevel;
+        int profile;
+        if (ptl.profileIdc == 1 || (ptl.profileCompatibilityFlags & (1 << 30)) != 0) {
+            profile = MediaCodecInfo.CodecProfileLevel.HEVCProfileMain;
+        } else if (ptl.profileIdc == 2 || (ptl.profileCompatibilityFlags & (1 << 29)) != 0) {
+            profile = MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10;
+        } else {
+            return new int[]{0, 0};
+        }
+
+        // HEVCMainTierLevel1 = 0x1, HEVCHighTierLevel1 = 0x2, HEVCMainTierLevel2 = 0x4 ...
+        int level = 0;
+        for (int i = 0; i < HEVC_LEVEL_IDC.length; i++) {
+            if (HEVC_LEVEL_IDC[i] == ptl.levelIdc) {
+                level = 1 << (i * 2 + (ptl.tierFlag ? 1 : 0));
+                break;
+            }
+        }
+        return new int[]{level != 0 ? profile : 0, level};
+    }
+
+    private static Map<String, List<Decoder>> build() {
+        long begin = SystemClock.elapsedRealtime();
+        Map<String, List<Decoder>> index = new HashMap<>();
+        MediaCodecInfo[] infos;
+        try {
+            infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "list codecs error", e);
+            return index;
+        }
+
+        for (MediaCodecInfo info : infos) {
+            if (info.isEncoder()) {
+                continue;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && info.isAlias()) {
+                continue;
+            }
+
+            boolean hardware = !isSoftwareOnly(info);
+            for (String type : info.getSupportedTypes()) {
+                String mime = type.toLowerCase(Locale.US);
+                if (!mime.startsWith("video/")) {
+                    continue;
+                }
+                try {
+                    Decoder decoder = new Decoder(info.getName(), mime, hardware, info.getCapabilitiesForType(type));
+                    List<Decoder> decoders = index.get(mime);
+                    if (decoders == null) {
+                        decoders = new ArrayList<>();
+                        index.put(mime, decoders);
+                    }
+                    decoders.add(decoder);
+                } catch (RuntimeException e) {
+                    // 个别厂商的解码器查询能力时会抛异常，忽略它
+                    Log.w(TAG, "query " + info.getName() + " " + type + " error", e);
+                }
+            }
+        }
+
+        for (Map.Entry<String, List<Decoder>> entry : index.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        Log.i(TAG, String.format("indexed %d decoders in %dms: %s", infos.length, SystemClock.elapsedRealtime() - begin, index.get("video/avc")));
+        return index;
+    }
+
+    private static boolean isSoftwareOnly(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isSoftwareOnly();
+        }
+        String name = info.getName().toLowerCase(Locale.US);
+        return name.startsWith("omx.google.") || name.startsWith("omx.ffmpeg.") || name.startsWith("c2.android.")
+                || name.startsWith("c2.google.") || (name.startsWith("omx.sec.") && name.contains(".sw."))
+                || name.endsWith(".sw") || name.contains(".sw.dec");
+    }
+}
@@ -0,0 +1,260 @@
+package org.easydarwin.video;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * 进程内共享的空闲硬解码器池，按解码器、mime和分辨率档位区分。
+ * <p>
+ * 在多路视频之间切换时，创建、配置、启动MediaCodec占了切换时间的大部分。停止播放时把仍然可用的解码器flush后放回池中，
+ * 输出改到一个占位的Surface上；下一次播放同一档位的视频时取出，改回新的Surface，再送入新的参数集即可继续解码。
+ * <p>
+ * 只复用输出到Surface、支持自适应播放（配置时按档位的最大尺寸）的同步模式解码器，需要Android 6.0的setOutputSurface。
+ * 池中最多保留{@link #MAX_IDLE}个解码器，空闲超过{@link #IDLE_TIMEOUT_MS}或者系统内存不足时全部释放。
+ */
+@TargetApi(Build.VERSION_CODES.M)
+final class DecoderPool implements ComponentCallbacks2 {
+
+    private static final String TAG = "DecoderPool";
+
+    static final int MAX_IDLE = 4;
+    static final long IDLE_TIMEOUT_MS = 60000;
+
+    /**
+     * 分辨率档位，按横屏的宽高给出，竖屏的视频交换宽高比较
+     */
+    private static final int[][] RESOLUTION_CLASSES = {{848, 480}, {1280, 720}, {1920, 1088}, {4096, 2304}};
+
+    private static final class Entry {
+        final String key;
+        final MediaCodec codec;
+        final long idleSinceMs;
+
+        Entry(String key, MediaCodec codec, long idleSinceMs) {
+            this.key = key;
+            this.codec = codec;
+            this.idleSinceMs = idleSinceMs;
+        }
+    }
+
+    private static DecoderPool sInstance;
+
+    /**
+     * 空闲的解码器，越靠后越新
+     */
+    private final LinkedList<Entry> mIdle = new LinkedList<>();
+
+    /**
+     * 可以放回池中的解码器和它的key，包括正在使用的
+     */
+    private final Map<MediaCodec, String> mKeys = new WeakHashMap<>();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Surface mPlaceholder;
+
+    private final Runnable mExpire = new Runnable() {
+        @Override
+        public void run() {
+            evict(SystemClock.elapsedRealtime() - IDLE_TIMEOUT_MS);
+        }
+    };
+
+    private DecoderPool() {
+    }
+
+    static synchronized DecoderPool get(Context context) {
+        if (sInstance == null) {
+            sInstance = new DecoderPool();
+            context.getApplicationContext().registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * 视频尺寸所在的档位，返回档位的宽高，超出所有档位时返回null
+     */
+    static int[] resolutionClass(int width, int height) {
+        boolean portrait = height > width;
+        int w = portrait ? height : width;
+        int h = portrait ? width : height;
+        for (int[] size : RESOLUTION_CLASSES) {
+            if (w <= size[0] && h <= size[1]) {
+                return portrait ? new int[]{size[1], size[0]} : size;
+            }
+        }
+        return null;
+    }
+
+    static String key(String codecName, String mime, int[] resolutionClass) {
+        return codecName + '/' + mime + '/' + resolutionClass[0] + 'x' + resolutionClass[1];
+    }
+
+    /**
+     * 取出一个空闲的解码器并输出到surface。取出的解码器处于flush之后的状态，需要先送入参数集。
+     *
+     * @return 没有可用的解码器时返回null
+     */
+    MediaCodec acquire(String key, Surface surface) {
+        while (true) {
+            Entry entry = null;
+            synchronized (this) {
+                Iterator<Entry> it = mIdle.descendingIterator();
+                while (it.hasNext()) {
+                    Entry e = it.next();
+                    if (e.key.equals(key)) {
+                        it.remove();
+                        entry = e;
+                        break;
+                    }
+                }
+            }
+            if (entry == null) {
+                return null;
+            }
+
+            try {
+                entry.codec.setOutputSurface(surface);
+                entry.codec.setVideoScalingMode(MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT);
+                Log.i(TAG, "reuse " + key);
+                return entry.codec;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "reuse " + key + " error", e);
+                release(entry.codec);
+            }
+        }
+    }
+
+    /**
+     * 登记一个按档位配置的解码器，之后可以通过{@link #recycle(MediaCodec)}放回池中
+     */
+    synchronized void register(MediaCodec codec, String key) {
+        mKeys.put(codec, key);
+    }
+
+    /**
+     * 停止使用解码器：登记过的flush后放回池中，否则直接释放
+     */
+    void recycle(MediaCodec codec) {
+        String key;
+        synchronized (this) {
+            key = mKeys.get(codec);
+        }
+        if (key == null) {
+            codec.release();
+            return;
+        }
+
+        try {
+            codec.flush();
+            // 不再占用调用者的Surface，调用者随后可能释放它
+            codec.setOutputSurface(placeholder());
+        } catch (RuntimeException e) {
+            Log.w(TAG, "recycle " + key + " error", e);
+            release(codec);
+            return;
+        }
+
+        List<MediaCodec> evicted = new ArrayList<>();
+        synchronized (this) {
+            mIdle.addLast(new Entry(key, codec, SystemClock.elapsedRealtime()));
+            while (mIdle.size() > MAX_IDLE) {
+                evicted.add(mIdle.removeFirst().codec);
+            }
+        }
+        for (MediaCodec c : evicted) {
+            release(c);
+        }
+        mHandler.removeCallbacks(mExpire);
+        mHandler.postDelayed(mExpire, IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * 释放所有空闲的解码器
+     */
+    void clear() {
+        evict(Long.MAX_VALUE);
+    }
+
+    /**
+     * 释放空闲开始时间早于idleBeforeMs的解码器
+     */
+    private void evict(long idleBeforeMs) {
+        List<MediaCodec> evicted = new ArrayList<>();
+        boolean remaining;
+        synchronized (this) {
+            Iterator<Entry> it = mIdle.iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (e.idleSinceMs < idleBeforeMs) {
+                    it.remove();
+                    evicted.add(e.codec);
+                }
+            }
+            remaining = !mIdle.isEmpty();
+        }
+        for (MediaCodec c : evicted) {
+            release(c);
+        }
+        if (!evicted.isEmpty()) {
+            Log.i(TAG, String.format("evict %d idle decoders", evicted.size()));
+        }
+        if (remaining) {
+            mHandler.removeCallbacks(mExpire);
+            mHandler.postDelayed(mExpire, IDLE_TIMEOUT_MS);
+        }
+    }
+
+    private void release(MediaCodec codec) {
+        synchronized (this) {
+            mKeys.remove(codec);
+        }
+        try {
+            codec.release();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 空闲解码器的输出目标。SurfaceTexture不需要GL上下文就能接收数据，空闲时也不会有数据写入
+     */
+    private synchronized Surface placeholder() {
+        if (mPlaceholder == null) {
+            mPlaceholder = new Surface(new SurfaceTexture(0));
+        }
+        return mPlaceholder;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            clear();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
@@ -8,13 +8,16 @@ import androidx.lifecycle.OnLifecycleEvent;
 import android.content.Context;
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
+import android.media.Image;
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
 import android.os.Process;
 import android.os.ResultReceiver;
 import android.os.SystemClock;
@@ -27,20 +30,21 @@ import android.view.TextureView;
 import org.easydarwin.audio.AudioCodec;
 import org.easydarwin.audio.EasyAACMuxer;
 import org.easydarwin.sw.JNIUtil;
-import org.easydarwin.util.CodecSpecificDataUtil;
+import org.easydarwin.util.H264SpsParser;
+import org.easydarwin.util.H265ParameterSetParser;
+import org.easydarwin.util.NalScanner;
+import org.easydarwin.util.ParameterSetCache;
+import org.easydarwin.util.SliceHeaderParser;
 import org.easydarwin.util.TextureLifecycler;
+import org.easydarwin.util.YuvConverter;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.PriorityQueue;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static android.media.AudioManager.AUDIOFOCUS_REQUEST_GRANTED;
 import static android.media.MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
@@ -100,6 +104,34 @@ public class EasyPlayerClient implements Client.SourceCallBack {
      */
     public static final int RESULT_FRAME_RECVED = 9;
 
+    /**
+     * 低延时策略：不做处理，缓冲满时native线程阻塞等待
+     */
+    public static final int LATENCY_POLICY_NONE = 0;
+
+    /**
+     * 低延时策略：缓冲超过阈值后，收到下一个关键帧时丢弃之前所有未解码的视频帧，从该关键帧继续
+     */
+    public static final int LATENCY_POLICY_DROP_TO_KEY_FRAME = 1;
+
+    /**
+     * 低延时策略：缓冲超过阈值后临时加速播放，直到缓冲降到阈值的一半
+     */
+    public static final int LATENCY_POLICY_SPEED_UP = 2;
+
+    /**
+     * 低延时策略：缓冲超过阈值后先丢弃不被参考的帧（H.264中nal_ref_idc为0，H.265中最高时域层的子层非参考帧），
+     * 画面仍然连续；缓冲超过阈值的两倍时，再和{@link #LATENCY_POLICY_DROP_TO_KEY_FRAME}一样丢弃到下一个关键帧
+     */
+    public static final int LATENCY_POLICY_DROP_NON_REFERENCE = 3;
+
+    public static final long DEFAULT_MAX_BUFFERED_US = 500000;
+
+    /**
+     * 加速播放时的速度，百分比
+     */
+    private static final int SPEED_UP_PERCENT = 150;
+
     private static final String TAG = EasyPlayerClient.class.getSimpleName();
     /**
      * 表示视频的宽度
@@ -110,13 +142,24 @@ public class EasyPlayerClient implements Client.SourceCallBack {
      */
     public static final String EXTRA_VIDEO_HEIGHT = "extra-video-height";
 
-    private static final int NAL_VPS = 32;
-    private static final int NAL_SPS = 33;
-    private static final int NAL_PPS = 34;
 
     private Surface mSurface;
     private final TextureLifecycler lifecycler;
-    private volatile Thread mThread, mAudioThread;
+    private volatile Thread mThread, mAudioThread, mReplayThread;
+    private volatile AsyncCodecSession mAsyncSession;
+
+    /**
+     * 保护视频解码线程的切换：异步解码失败后改用同步线程时，不能和stop交错
+     */
+    private final Object mDecoderLock = new Object();
+
+    /**
+     * 异步解码改用同步线程时交接的帧（通常是带参数集的关键帧），由同步线程在从队列取帧之前取走。由mDecoderLock保护
+     */
+    private Client.FrameInfo mHandoffVideoFrame;
+    private volatile boolean mAsyncDecode;
+    private volatile YUVImageCallback mYUVImageCallback;
+    private volatile CaptureReplaySource mReplaySource;
     private final ResultReceiver mRR;
     private Client mClient;
     private boolean mAudioEnable = true;
@@ -131,7 +174,7 @@ public class EasyPlayerClient implements Client.SourceCallBack {
     private ByteBuffer mCSD0;
     private ByteBuffer mCSD1;
     private final I420DataCallback i420callback;
-    private SEIDataCallback mSEIDataCallback;
+    private final SeiDispatcher mSeiDispatcher = new SeiDispatcher();
     private boolean mMuxerWaitingKeyVideo;
 
     /**
@@ -147,152 +190,119 @@ public class EasyPlayerClient implements Client.SourceCallBack {
         return !TextUtils.isEmpty(mRecordingPath);
     }
 
-    private static class FrameInfoQueue extends PriorityQueue<Client.FrameInfo> {
+    /**
+     * 音视频分开的两个SPSC环形队列。每个轨道内的帧本身就是按时间戳顺序到达的，不需要再排序；
+     * 音视频解码线程各取各的，互不阻塞。
+     */
+    static class FrameInfoQueue {
         public static final int CAPACITY = 500;
-        public static final int INITIAL_CAPACITY = 300;
 
-        public FrameInfoQueue() {
-            super(INITIAL_CAPACITY, new Comparator<Client.FrameInfo>() {
-                @Override
-                public int compare(Client.FrameInfo frameInfo, Client.FrameInfo t1) {
-                    return (int) (frameInfo.stamp - t1.stamp);
-                }
-            });
-        }
-
-        final ReentrantLock lock = new ReentrantLock();
-        final Condition notFull = lock.newCondition();
-        final Condition notVideo = lock.newCondition();
-        final Condition notAudio = lock.newCondition();
+        final FrameRing<Client.FrameInfo> video = new FrameRing<>(CAPACITY);
+        final FrameRing<Client.FrameInfo> audio = new FrameRing<>(CAPACITY);
 
-        @Override
         public int size() {
-            lock.lock();
-            try {
-                return super.size();
-            } finally {
-                lock.unlock();
-            }
+            return video.size() + audio.size();
         }
 
-        @Override
+        /**
+         * 清空队列，被丢弃的帧归还到缓存池。
+         */
         public void clear() {
-            lock.lock();
-            try {
-                int size = super.size();
-                super.clear();
-                int k = size;
-
-                for (; k > 0 && lock.hasWaiters(notFull); k--) {
-                    notFull.signal();
-                }
-            } finally {
-                lock.unlock();
+            Client.FrameInfo x;
+            while ((x = video.poll()) != null) {
+                x.recycle();
+            }
+            while ((x = audio.poll()) != null) {
+                x.recycle();
             }
         }
 
         public void put(Client.FrameInfo x) throws InterruptedException {
-            lock.lockInterruptibly();
-
-            try {
-                int size;
-                while ((size = super.size()) == CAPACITY) {
-                    Log.v(TAG, "queue full:" + CAPACITY);
-                    notFull.await();
-                }
-
-                offer(x);
-//                Log.d(TAG, String.format("queue size : " + size));
-                // 这里是乱序的。并非只有空的queue才丢到首位。因此不能做限制 if (size == 0)
-                {
+            FrameRing<Client.FrameInfo> ring = x.audio ? audio : video;
+            if (!ring.offer(x)) {
+                Log.v(TAG, "queue full:" + ring.capacity());
+                ring.put(x);
+            }
+        }
 
-                    if (x.audio) {
-                        notAudio.signal();
-                    } else {
-                        notVideo.signal();
-                    }
-                }
-            } finally {
-                lock.unlock();
+        /**
+         * 丢弃所有未解码的视频帧，只能在生产者线程调用。
+         *
+         * @return 丢弃的帧数
+         */
+        public int flushVideo() {
+            int count = 0;
+            Client.FrameInfo x;
+            while ((x = video.poll()) != null) {
+                x.recycle();
+                count++;
             }
+            return count;
         }
 
         public Client.FrameInfo takeVideoFrame() throws InterruptedException {
-            lock.lockInterruptibly();
-
-            try {
-                while (true) {
-                    Client.FrameInfo x = peek();
-
-                    if (x == null) {
-                        notVideo.await();
-                    } else {
-                        if (!x.audio) {
-                            remove();
-                            notFull.signal();
-                            notAudio.signal();
-                            return x;
-                        } else {
-                            notVideo.await();
-                        }
-                    }
-                }
-            } finally {
-                lock.unlock();
-            }
+            return video.take();
         }
 
         public Client.FrameInfo takeVideoFrame(long ms) throws InterruptedException {
-            lock.lockInterruptibly();
+            return video.take(ms, TimeUnit.MILLISECONDS);
+        }
 
-            try {
-                while (true) {
-                    Client.FrameInfo x = peek();
-                    if (x == null) {
-                        if (!notVideo.await(ms, TimeUnit.MILLISECONDS)) return null;
-                    } else {
-                        if (!x.audio) {
-                            remove();
-                            notFull.signal();
-                            notAudio.signal();
-                            return x;
-                        } else {
-                            notVideo.await();
-                        }
-                    }
-                }
-            } finally {
-                lock.unlock();
-            }
+        public Client.FrameInfo pollVideoFrame() {
+            return video.poll();
         }
 
         public Client.FrameInfo takeAudioFrame() throws InterruptedException {
-            lock.lockInterruptibly();
-
-            try {
-                while (true) {
-                    Client.FrameInfo x = peek();
-                    if (x == null) {
-                        notAudio.await();
-                    } else {
-                        if (x.audio) {
-                            remove();
-                            notFull.signal();
-                            notVideo.signal();
-                            return x;
-                        } else {
-                            notAudio.await();
-                        }
-                    }
-                }
-            } finally {
-                lock.unlock();
-            }
+            return audio.take();
         }
     }
 
     private FrameInfoQueue mQueue = new FrameInfoQueue();
 
+    private final JitterBuffer mJitterBuffer = new JitterBuffer();
+
+    private final AvSyncClock mAvSync = new AvSyncClock();
+
+    /**
+     * 交给{@link I420DataCallback}的帧缓冲，仅解码线程使用
+     */
+    private final FrameBufferPool mFrameBuffers = new FrameBufferPool();
+
+    private final YuvConverter mYuvConverter = new YuvConverter();
+
+    /**
+     * 查找参数集，仅生产者线程使用
+     */
+    private final NalScanner mNalScanner = new NalScanner();
+
+    /**
+     * 已收到的参数集，用来区分重复发送的参数集和真正的变化，仅生产者线程使用
+     */
+    private final ParameterSetCache mParamSets = new ParameterSetCache();
+
+    /**
+     * 判断帧能否单独丢弃，仅生产者线程使用
+     */
+    private final SliceHeaderParser mSliceParser = new SliceHeaderParser();
+
+    /**
+     * 最近一次解析到的H.264 SPS，用于配置解码器
+     */
+    private volatile H264SpsParser.Sps mSps;
+
+    /**
+     * 最近一次解析到的H.265 SPS，用于配置解码器
+     */
+    private volatile H265ParameterSetParser.Sps mHevcSps;
+
+    private volatile int mLatencyPolicy = LATENCY_POLICY_NONE;
+    private volatile long mMaxBufferedUs = DEFAULT_MAX_BUFFERED_US;
+
+    /**
+     * 追帧丢帧后，等待下一个关键帧。仅生产者线程访问
+     */
+    private boolean mCatchUpWaitingKeyFrame;
+
     private final Context mContext;
 
     /**
@@ -325,7 +335,6 @@ public class EasyPlayerClient implements Client.SourceCallBack {
         mRR = receiver;
         i420callback = callback;
         lifecycler = null;
-        mSEIDataCallback = null;
     }
 
     public EasyPlayerClient(Context context, Surface surface, ResultReceiver receiver, I420DataCallback callback, SEIDataCallback seiDataCallback) {
@@ -334,7 +343,7 @@ public class EasyPlayerClient implements Client.SourceCallBack {
         mRR = receiver;
         i420callback = callback;
         lifecycler = null;
-        mSEIDataCallback = seiDataCallback;
+        mSeiDispatcher.setCallback(seiDataCallback);
     }
 
 
@@ -343,7 +352,7 @@ public class EasyPlayerClient implements Client.SourceCallBack {
         mContext = context;
         mRR = receiver;
         i420callback = callback;
-        mSEIDataCallback = seiDataCallback;
+        mSeiDispatcher.setCallback(seiDataCallback);
 
         LifecycleObserver observer1 = new LifecycleObserver() {
             @OnLifecycleEvent(value = Lifecycle.Event.ON_DESTROY)
@@ -433,20 +442,66 @@ public class EasyPlayerClient implements Client.SourceCallBack {
             throw new NullPointerException("url is null");
         }
         if (type == 0) type = TRANSTYPE_TCP;
+        prepare();
+        mClient = new Client(mContext);
+        int channel = mClient.registerCallback(this);
+        mRecordingPath = recordPath;
+        Log.i(TAG, String.format("playing url:\n%s\n", url));
+        return mClient.openStream(channel, url, type, sendOption, mediaType, user, pwd);
+    }
+
+    /**
+     * 回放{@link BuildConfig#MEDIA_DEBUG}打开时抓取的数据，不连接网络，用于在设备上复现现场问题。
+     *
+     * @param capturePath 抓包文件路径，默认是{@link CaptureReplaySource#DEFAULT_PATH}
+     * @param speed       回放速度，1为录制时的速度，{@link CaptureReplaySource#SPEED_UNLIMITED}为不等待
+     */
+    public void replay(final String capturePath, final float speed) throws IOException {
+        final CaptureReplaySource source = new CaptureReplaySource(new File(capturePath), this, 0);
+        source.setSpeed(speed);
+        prepare();
+        mReplaySource = source;
+
+        mReplayThread = new Thread("REPLAY_PRODUCER") {
+            @Override
+            public void run() {
+                try {
+                    int frames = source.replay();
+                    Log.i(TAG, String.format("replay finished, %d frames", frames));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    Log.i(TAG, "replay interrupted");
+                } finally {
+                    try {
+                        source.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
+        mReplayThread.start();
+    }
+
+    private void prepare() {
         mNewestStample = 0;
         mWaitingKeyFrame = PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean("waiting_i_frame", true);
         mWidth = mHeight = 0;
+        mSps = null;
+        mHevcSps = null;
+        mParamSets.clear();
         mQueue.clear();
-        startCodec();
+        mJitterBuffer.reset();
+        mAvSync.reset();
+        mCatchUpWaitingKeyFrame = false;
+        // 连接服务器的同时在后台建立解码器索引，收到第一帧时通常已经完成
+        DecoderCapabilityIndex.prefetch();
+        startVideoDecoder();
         startAudio();
         mTimeout = false;
         mNotSupportedVideoCB = mNotSupportedAudioCB = false;
         mReceivedDataLength = 0;
-        mClient = new Client(mContext);
-        int channel = mClient.registerCallback(this);
-        mRecordingPath = recordPath;
-        Log.i(TAG, String.format("playing url:\n%s\n", url));
-        return mClient.openStream(channel, url, type, sendOption, mediaType, user, pwd);
     }
 
     public boolean isAudioEnable() {
@@ -455,6 +510,8 @@ public class EasyPlayerClient implements Client.SourceCallBack {
 
     public void setAudioEnable(boolean enable) {
         mAudioEnable = enable;
+        // 关闭音频时视频退回墙上时钟
+        mAvSync.setAudioEnabled(enable);
         AudioTrack at = mAudioTrack;
         if (at != null) {
             Log.i(TAG, String.format("audio will be %s", enable ? "enabled" : "disabled"));
@@ -466,19 +523,150 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                     at.flush();
                     at.play();
                 }
+                mAvSync.onAudioFlushed();
             }
         }
     }
 
+    /**
+     * 设置视频抖动缓冲的目标延时范围，缓冲会根据网络抖动在该范围内自动调整。
+     *
+     * @param minUs 最小延时，微秒
+     * @param maxUs 最大延时，微秒
+     */
+    public void setJitterBufferDelay(long minUs, long maxUs) {
+        mJitterBuffer.setDelayRange(minUs, maxUs);
+    }
+
+    /**
+     * @return 抖动缓冲当前的目标延时，微秒
+     */
+    public long getJitterBufferTargetUs() {
+        return mJitterBuffer.getTargetDelayUs();
+    }
+
+    /**
+     * @return 抖动缓冲当前的深度（已收到但未显示的视频时长），微秒
+     */
+    public long getJitterBufferDepthUs() {
+        return mJitterBuffer.getDepthUs();
+    }
+
+    /**
+     * @return 估算的网络到达抖动，微秒
+     */
+    public long getJitterUs() {
+        return mJitterBuffer.getJitterUs();
+    }
+
+    /**
+     * 设置低延时策略。当已接收未显示的视频时长超过maxBufferedUs时，按照策略追赶直播的最新位置。
+     *
+     * @param policy        {@link #LATENCY_POLICY_NONE}、{@link #LATENCY_POLICY_DROP_TO_KEY_FRAME}、{@link #LATENCY_POLICY_SPEED_UP}
+     *                      或 {@link #LATENCY_POLICY_DROP_NON_REFERENCE}
+     * @param maxBufferedUs 允许的最大缓冲时长，微秒
+     */
+    public void setLatencyPolicy(int policy, long maxBufferedUs) {
+        if (policy != LATENCY_POLICY_NONE && policy != LATENCY_POLICY_DROP_TO_KEY_FRAME && policy != LATENCY_POLICY_SPEED_UP
+                && policy != LATENCY_POLICY_DROP_NON_REFERENCE) {
+            throw new IllegalArgumentException("unknown latency policy:" + policy);
+        }
+        if (maxBufferedUs <= 0) {
+            throw new IllegalArgumentException("maxBufferedUs should be positive:" + maxBufferedUs);
+        }
+
+        mMaxBufferedUs = maxBufferedUs;
+        mLatencyPolicy = policy;
+    }
+
+    public int getLatencyPolicy() {
+        return mLatencyPolicy;
+    }
+
+    /**
+     * 使用MediaCodec的异步模式解码，没有数据时解码线程休眠，不再轮询。下一次启动播放时生效。
+     * <p>
+     * 需要Android 6.0以上，并且只用于输出到Surface的硬解：设置了{@link I420DataCallback}、{@link YUVImageCallback}
+     * 或者使用软解时仍然是同步解码。
+     */
+    public void setAsyncDecodeEnabled(boolean enabled) {
+        mAsyncDecode = enabled;
+    }
+
+    public boolean isAsyncDecodeEnabled() {
+        return mAsyncDecode;
+    }
+
+    /**
+     * @return 交给{@link I420DataCallback}之后还没有归还的帧缓冲个数，用于检查泄漏，解码线程之外应该为0
+     */
+    public int getOutstandingFrameBuffers() {
+        return mFrameBuffers.outstanding();
+    }
+
+    /**
+     * 解码后的I420数据，在解码线程中回调。buffer在回调返回后会复用给下一帧，需要保留时自行复制。
+     */
     public static interface I420DataCallback {
         public void onI420Data(ByteBuffer buffer);
 
     }
 
+    /**
+     * 解码后的YUV_420_888图像，在"VIDEO_IMAGE"线程中回调。
+     * image的各个平面直接来自解码器，读取时按照getRowStride和getPixelStride，不要关闭它，回调返回后不能再访问。
+     * <p>
+     * 回调早于显示，image的时间戳是它的显示时刻（System.nanoTime）；迟到太多被丢弃的帧不会回调。
+     */
+    public static interface YUVImageCallback {
+        public void onYUVImage(Image image);
+    }
+
+    /**
+     * 设置后解码器输出到ImageReader，每一帧以{@link Image}回调，然后直接送到显示的Surface，不复制YUV数据，
+     * 也不需要第二个解码器来显示。下一次启动播放时生效。
+     * <p>
+     * 需要Android 10以上的硬解，并且没有设置{@link I420DataCallback}；使用软解时只显示，不回调。
+     *
+     * @param callback 为null时恢复直接输出到Surface
+     */
+    public void setYUVImageCallback(YUVImageCallback callback) {
+        mYUVImageCallback = callback;
+    }
+
+    /**
+     * 收到的SEI，在主线程中回调。回调频率受{@link #setSEIDataCallbackInterval}限制，间隔内的SEI只回调最新的一个。
+     */
     public static interface SEIDataCallback {
         public void onSEIData(byte[] sei);
     }
 
+    /**
+     * 按UUID接收SEI中的user_data_unregistered，在接收线程中回调。
+     * payload为data[offset, offset+length)，不含UUID，只在回调期间有效，需要保留时自行复制。
+     */
+    public static interface SEIUserDataHandler {
+        public void onSEIUserData(UUID uuid, byte[] data, int offset, int length);
+    }
+
+    /**
+     * 注册user_data_unregistered的处理者，同一个UUID可以有多个处理者。
+     */
+    public void addSEIUserDataHandler(UUID uuid, SEIUserDataHandler handler) {
+        mSeiDispatcher.addHandler(uuid, handler);
+    }
+
+    public void removeSEIUserDataHandler(SEIUserDataHandler handler) {
+        mSeiDispatcher.removeHandler(handler);
+    }
+
+    /**
+     * 设置{@link SEIDataCallback}两次回调之间的最小间隔，默认200毫秒，0表示每个SEI都回调。
+     */
+    public void setSEIDataCallbackInterval(long intervalMs) {
+        mSeiDispatcher.setCallbackInterval(intervalMs);
+    }
+
     public void pause() {
         mQueue.clear();
         if (mClient != null) {
@@ -497,8 +685,16 @@ public class EasyPlayerClient implements Client.SourceCallBack {
      * 终止播放
      */
     public void stop() {
-        Thread t = mThread;
-        mThread = null;
+        mSeiDispatcher.cancel();
+
+        CaptureReplaySource source = mReplaySource;
+        mReplaySource = null;
+        if (source != null) {
+            source.cancel();
+        }
+
+        Thread t = mReplayThread;
+        mReplayThread = null;
         if (t != null) {
             t.interrupt();
             try {
@@ -508,6 +704,29 @@ public class EasyPlayerClient implements Client.SourceCallBack {
             }
         }
 
+        AsyncCodecSession session;
+        synchronized (mDecoderLock) {
+            t = mThread;
+            mThread = null;
+            session = mAsyncSession;
+            mAsyncSession = null;
+        }
+        if (session != null) {
+            session.quit();
+        }
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        Client.FrameInfo handoff = takeHandoffVideoFrame();
+        if (handoff != null) {
+            handoff.recycle();
+        }
+
         t = mAudioThread;
         mAudioThread = null;
         if (t != null) {
@@ -560,6 +779,7 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                                     if (audioTrack.getPlayState() == AudioTrack.PLAYSTATE_PAUSED) {
                                         audioTrack.flush();
                                         audioTrack.play();
+                                        mAvSync.onAudioFlushed();
                                     }
                                 }
                             } else if (focusChange == AudioManager.AUDIOFOCUS_LOSS) {
@@ -585,6 +805,7 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                         do {
                             frameInfo = mQueue.takeAudioFrame();
                             if (mMediaInfo != null) break;
+                            frameInfo.recycle();
                         } while (true);
                         final Thread t = Thread.currentThread();
 
@@ -596,6 +817,29 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                             mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRateInHz, channelConfig, audioFormat, bfSize, AudioTrack.MODE_STREAM);
                         }
                         mAudioTrack.play();
+                        final AudioTrack track = mAudioTrack;
+                        final AudioTimestamp timestamp = new AudioTimestamp();
+                        // 视频线程通过它读取音频的播放位置
+                        mAvSync.onAudioStarted(new AvSyncClock.AudioSink() {
+                            @Override
+                            public boolean getPlaybackPosition(long[] out) {
+                                synchronized (track) {
+                                    if (mAudioTrack != track || track.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+                                        return false;
+                                    }
+                                    if (track.getTimestamp(timestamp)) {
+                                        out[0] = timestamp.framePosition;
+                                        out[1] = timestamp.nanoTime / 1000;
+                                    } else {
+                                        // 刚开始播放时还没有时间戳，用播放头位置，不含输出延时
+                                        out[0] = track.getPlaybackHeadPosition() & 0xffffffffL;
+                                        out[1] = JitterBuffer.nowUs();
+                                    }
+                                    return true;
+                                }
+                            }
+                        }, mMediaInfo.sample, track.getSampleRate());
+                        final int bytesPerFrame = mMediaInfo.channel == 1 ? 2 : 4;
                         handle = AudioCodec.create(frameInfo.codec, frameInfo.sample_rate, frameInfo.channels, frameInfo.bits_per_sample);
 
                         Log.w(TAG, String.format("POST VIDEO_DISPLAYED IN AUDIO THREAD!!!"));
@@ -621,19 +865,28 @@ public class EasyPlayerClient implements Client.SourceCallBack {
 //                                    save2path(mBufferReuse, 0, outLen[0],"/sdcard/111.pcm", true);
                                     pumpPCMSample(mBufferReuse, outLen[0], frameInfo.stamp);
                                 }
-                                if (mAudioEnable) if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                                    mAudioTrack.write(mBufferReuse, 0, outLen[0], AudioTrack.WRITE_NON_BLOCKING);
-                                } else {
-                                    mAudioTrack.write(mBufferReuse, 0, outLen[0]);
+                                if (mAudioEnable) {
+                                    int written;
+                                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                                        written = mAudioTrack.write(mBufferReuse, 0, outLen[0], AudioTrack.WRITE_NON_BLOCKING);
+                                    } else {
+                                        written = mAudioTrack.write(mBufferReuse, 0, outLen[0]);
+                                    }
+                                    // 缓冲满时只写入了一部分，其余的被丢弃，下一段按它自己的时间戳记录
+                                    if (written > 0) {
+                                        mAvSync.onAudioWritten(frameInfo.stamp, written / bytesPerFrame);
+                                    }
                                 }
 
                             }
+                            frameInfo.recycle();
                             frameInfo = null;
                         }
                     } catch (Exception ex) {
                         ex.printStackTrace();
                     } finally {
                         am.abandonAudioFocus(l);
+                        mAvSync.onAudioStopped();
                         if (handle != 0) {
                             AudioCodec.close(handle);
                         }
@@ -652,204 +905,207 @@ public class EasyPlayerClient implements Client.SourceCallBack {
         mAudioThread.start();
     }
 
-    private static void save2path(byte[] buffer, int offset, int length, String path, boolean append) {
-        FileOutputStream fos = null;
-        try {
-            fos = new FileOutputStream(path, append);
-            fos.write(buffer, offset, length);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-    }
-
-    private static int getXPS(byte[] data, int offset, int length, byte[] dataOut, int[] outLen, int type) {
-        int i;
-        int pos0;
-        int pos1;
-        pos0 = -1;
-        length = Math.min(length, data.length);
-        for (i = offset; i < length - 4; i++) {
-            if ((0 == data[i]) && (0 == data[i + 1]) && (1 == data[i + 2]) && (type == (0x0F & data[i + 3]))) {
-                pos0 = i;
-                break;
-            }
-        }
-        if (-1 == pos0) {
+    /**
+     * 查找第一个type类型的H.264 NAL，连同起始码拷贝到dataOut。
+     *
+     * @return NAL结束的位置；没有找到返回-1，NAL不完整返回-2，dataOut太小返回-3
+     */
+    static int getXPS(NalScanner scanner, byte[] data, int offset, int length, byte[] dataOut, int[] outLen, int type) {
+        scanner.scan(data, offset, length, false);
+        int i = scanner.indexOf(type);
+        if (i < 0) {
             return -1;
         }
-        if (pos0 > 0 && data[pos0 - 1] == 0) { // 0 0 0 1
-            pos0 = pos0 - 1;
-        }
-        pos1 = -1;
-        for (i = pos0 + 4; i < length - 4; i++) {
-            if ((0 == data[i]) && (0 == data[i + 1]) && (1 == data[i + 2])) {
-                pos1 = i;
-                break;
-            }
-        }
-        if (-1 == pos1 || pos1 == 0) {
+        if (i == scanner.count() - 1) {
+            // 后面没有起始码，NAL可能被截断了
             return -2;
         }
-        if (data[pos1 - 1] == 0) {
-            pos1 -= 1;
-        }
+        int pos0 = scanner.start(i);
+        int pos1 = scanner.end(i);
         if (pos1 - pos0 > outLen[0]) {
             return -3; // 输入缓冲区太小
         }
-        dataOut[0] = 0;
         System.arraycopy(data, pos0, dataOut, 0, pos1 - pos0);
-        // memcpy(pXPS+1, pES+pos0, pos1-pos0);
-        // *pMaxXPSLen = pos1-pos0+1;
         outLen[0] = pos1 - pos0;
         return pos1;
     }
 
-    private static byte[] getvps_sps_pps(byte[] data, int offset, int length) {
-        int i = 0;
-        int vps = -1, sps = -1, pps = -1;
-        length = Math.min(length, data.length);
-        do {
-            if (vps == -1) {
-                for (i = offset; i < length - 4; i++) {
-                    if ((0x00 == data[i]) && (0x00 == data[i + 1]) && (0x01 == data[i + 2])) {
-                        byte nal_spec = data[i + 3];
-                        int nal_type = (nal_spec >> 1) & 0x03f;
-                        if (nal_type == NAL_VPS) {
-                            // vps found.
-                            if (data[i - 1] == 0x00) {  // start with 00 00 00 01
-                                vps = i - 1;
-                            } else {                      // start with 00 00 01
-                                vps = i;
-                            }
-                            break;
-                        }
-                    }
-                }
-            }
-            if (sps == -1) {
-                for (i = vps; i < length - 4; i++) {
-                    if ((0x00 == data[i]) && (0x00 == data[i + 1]) && (0x01 == data[i + 2])) {
-                        byte nal_spec = data[i + 3];
-                        int nal_type = (nal_spec >> 1) & 0x03f;
-                        if (nal_type == NAL_SPS) {
-                            // vps found.
-                            if (data[i - 1] == 0x00) {  // start with 00 00 00 01
-                                sps = i - 1;
-                            } else {                      // start with 00 00 01
-                                sps = i;
-                            }
-                            break;
-                        }
-                    }
-                }
-            }
-            if (pps == -1) {
-                for (i = sps; i < length - 4; i++) {
-                    if ((0x00 == data[i]) && (0x00 == data[i + 1]) && (0x01 == data[i + 2])) {
-                        byte nal_spec = data[i + 3];
-                        int nal_type = (nal_spec >> 1) & 0x03f;
-                        if (nal_type == NAL_PPS) {
-                            // vps found.
-                            if (data[i - 1] == 0x00) {  // start with 00 00 00 01
-                                pps = i - 1;
-                            } else {                    // start with 00 00 01
-                                pps = i;
-                            }
-                            break;
-                        }
-                    }
-                }
-            }
-        } while (vps == -1 || sps == -1 || pps == -1);
-        if (vps == -1 || sps == -1 || pps == -1) {// 没有获取成功。
+    /**
+     * 拷贝H.265的VPS、SPS、PPS，即从VPS的起始码到PPS的结束这一段数据。
+     *
+     * @return 缺少任何一个参数集或者PPS不完整时返回null
+     */
+    static byte[] getvps_sps_pps(NalScanner scanner, byte[] data, int offset, int length) {
+        int count = scanner.scan(data, offset, length, true);
+        int vps = scanner.indexOf(NalScanner.H265_NAL_VPS);
+        int sps = vps < 0 ? -1 : scanner.indexOf(NalScanner.H265_NAL_SPS, vps);
+        int pps = sps < 0 ? -1 : scanner.indexOf(NalScanner.H265_NAL_PPS, sps);
+        if (pps < 0 || pps == count - 1) {// 没有获取成功。
             return null;
         }
         // 计算csd buffer的长度。即从vps的开始到pps的结束的一段数据
-        int begin = vps;
-        int end = -1;
-        for (i = pps + 4; i < length - 4; i++) {
-            if ((0x00 == data[i]) && (0x00 == data[i + 1]) && (0x01 == data[i + 2])) {
-                if (data[i - 1] == 0x00) {  // start with 00 00 00 01
-                    end = i - 1;
-                } else {                    // start with 00 00 01
-                    end = i;
-                }
-                break;
-            }
-        }
-        if (end == -1 || end < begin) {
-            return null;
-        }
+        int begin = scanner.start(vps);
+        int end = scanner.end(pps);
         // 拷贝并返回
         byte[] buf = new byte[end - begin];
         System.arraycopy(data, begin, buf, 0, buf.length);
         return buf;
     }
 
-    private static boolean codecMatch(String mimeType, MediaCodecInfo codecInfo) {
-        String[] types = codecInfo.getSupportedTypes();
-        for (String type : types) {
-            if (type.equalsIgnoreCase(mimeType)) {
-                return true;
-            }
+    /**
+     * 解码器输入缓冲的大小。H.264按SPS中的编码尺寸以最小压缩比2估算，没有SPS时按16对齐的尺寸估算，
+     * H.265按最小压缩比4估算。结果不小于当前帧的大小。
+     */
+    private static int getMaxInputSize(int codec, H264SpsParser.Sps sps, int width, int height, int frameLength) {
+        int size;
+        if (sps != null) {
+            size = sps.maxInputSize();
+        } else {
+            int pixels = ((width + 15) / 16) * ((height + 15) / 16) * 16 * 16;
+            size = codec == EASY_SDK_VIDEO_CODEC_H264 ? pixels * 3 / 4 : pixels * 3 / 8;
         }
-        return false;
+        return Math.max(size, frameLength);
     }
 
-    private static String codecName() {
-        ArrayList<String> array = new ArrayList<>();
-        int numCodecs = MediaCodecList.getCodecCount();
-        for (int i1 = 0; i1 < numCodecs; i1++) {
-            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i1);
-            if (codecInfo.isEncoder()) {
-                continue;
-            }
+    /**
+     * 视频帧的显示时刻：以抖动缓冲给出的墙上时钟为基准，有音频时逐渐向音频时钟靠拢
+     */
+    private long videoDeadlineUs(long stampUs, long nowUs) {
+        return mAvSync.deadlineUs(stampUs, mJitterBuffer.deadlineUs(stampUs), nowUs);
+    }
 
-            if (codecMatch("video/avc", codecInfo)) {
-                String name = codecInfo.getName();
-                Log.d("DECODER", String.format("decoder:%s", name));
-                array.add(name);
-            }
+    /**
+     * 距离视频帧显示还需要等待的时间，已经迟到时为负数，不超过抖动缓冲的最大延时
+     */
+    private long videoWaitUs(long stampUs) {
+        long nowUs = JitterBuffer.nowUs();
+        return Math.min(videoDeadlineUs(stampUs, nowUs) - nowUs, mJitterBuffer.getMaxDelayUs());
+    }
+
+    /**
+     * {@link #LATENCY_POLICY_SPEED_UP}：一帧显示之后调用，缓冲超过阈值时让抖动缓冲提前后续帧的显示时刻。
+     *
+     * @return 是否处于加速状态
+     */
+    private boolean speedUpIfBehind(long stampUs, long previousStampUs, boolean speedingUp) {
+        if (mLatencyPolicy != LATENCY_POLICY_SPEED_UP) {
+            return false;
         }
-//        if (array.remove("OMX.qcom.video.decoder.avc")) {
-//            array.add("OMX.qcom.video.decoder.avc");
-//        }
-//        if (array.remove("OMX.amlogic.avc.decoder.awesome")) {
-//            array.add("OMX.amlogic.avc.decoder.awesome");
-//        }
-        if (array.isEmpty()) {
-            return "";
+
+        long depth = mJitterBuffer.getDepthUs();
+        if (depth > mMaxBufferedUs) {
+            if (!speedingUp) {
+                Log.w(TAG, "catch up: speed up, buffered " + depth);
+                speedingUp = true;
+            }
+            if (previousStampUs != 0l) {
+                long interval = Math.max(0, Math.min(stampUs - previousStampUs, 100000));
+                mJitterBuffer.catchUp(interval * (SPEED_UP_PERCENT - 100) / 100);
+            }
+        } else if (speedingUp && depth < mMaxBufferedUs / 2) {
+            speedingUp = false;
+            mJitterBuffer.resync();
         }
-        return array.get(0);
+        return speedingUp;
     }
 
-    private static MediaCodecInfo selectCodec(String mimeType) {
-        int numCodecs = MediaCodecList.getCodecCount();
-        for (int i = 0; i < numCodecs; i++) {
-            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+    /**
+     * 按当前的参数集创建并启动硬解码器。
+     *
+     * @param surface     输出的Surface，为null时从输出缓冲中读取数据
+     * @param colorFormat 返回选中的输出颜色格式
+     * @param callback    不为null时使用异步模式，回调在handler所在的线程
+     */
+    private MediaCodec createVideoCodec(Client.FrameInfo frameInfo, Surface surface, int[] colorFormat, MediaCodec.Callback callback, Handler handler) throws IOException {
+        final String mime = frameInfo.codec == EASY_SDK_VIDEO_CODEC_H264 ? "video/avc" : "video/hevc";
+        // 优先使用SPS中裁剪后的尺寸，解码器不必在第一帧输出时再调整
+        final H264SpsParser.Sps sps = frameInfo.codec == EASY_SDK_VIDEO_CODEC_H264 ? mSps : null;
+        final H265ParameterSetParser.Sps hevcSps = frameInfo.codec == EASY_SDK_VIDEO_CODEC_H265 ? mHevcSps : null;
+        final int codecWidth = sps != null ? sps.width : hevcSps != null ? hevcSps.width : mWidth;
+        final int codecHeight = sps != null ? sps.height : hevcSps != null ? hevcSps.height : mHeight;
+        MediaFormat format = MediaFormat.createVideoFormat(mime, codecWidth, codecHeight);
+        int maxInputSize = hevcSps != null ? Math.max(hevcSps.maxInputSize(), frameInfo.length) : getMaxInputSize(frameInfo.codec, sps, codecWidth, codecHeight, frameInfo.length);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, maxInputSize);
+        if (sps != null && sps.frameRate() > 0) {
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, Math.round(sps.frameRate()));
+        }
+        format.setInteger(MediaFormat.KEY_PUSH_BLANK_BUFFERS_ON_STOP, 1);
+        // 指定解码后的帧格式
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, COLOR_FormatYUV420Flexible);
 
-            if (codecInfo.isEncoder()) {
-                continue;
-            }
+        if (mCSD0 != null) {
+            format.setByteBuffer("csd-0", mCSD0);
+        } else {
+            throw new InvalidParameterException("csd-0 is invalid.");
+        }
 
-            String[] types = codecInfo.getSupportedTypes();
-            for (int j = 0; j < types.length; j++) {
-                if (types[j].equalsIgnoreCase(mimeType)) {
-                    return codecInfo;
-                }
+        if (mCSD1 != null) {
+            format.setByteBuffer("csd-1", mCSD1);
+        } else {
+            if (frameInfo.codec == EASY_SDK_VIDEO_CODEC_H264) throw new InvalidParameterException("csd-1 is invalid.");
+        }
+
+        int[] profileLevel = sps != null ? DecoderCapabilityIndex.avcProfileLevel(sps)
+                : hevcSps != null ? DecoderCapabilityIndex.hevcProfileLevel(hevcSps) : new int[2];
+        DecoderCapabilityIndex.Decoder decoder = DecoderCapabilityIndex.select(mime, codecWidth, codecHeight, profileLevel[0], profileLevel[1], surface == null);
+        if (decoder == null) {
+            throw new IllegalStateException("no media codec support " + mime + " " + codecWidth + "*" + codecHeight);
+        }
+        Log.i(TAG, "media codec " + decoder + " selected for " + codecWidth + "*" + codecHeight);
+        // 档次级别不支持时configure往往要失败好几秒才返回，直接改用软解
+        if (hevcSps != null && !decoder.isProfileLevelSupported(profileLevel[0], profileLevel[1])) {
+            throw new IllegalStateException("media codec " + decoder.name + " not support " + hevcSps.profileTierLevel);
+        }
+        colorFormat[0] = decoder.colorFormat;
+
+        // 输出到Surface的同步解码器按分辨率档位配置，停止播放后可以放回DecoderPool给下一路视频复用
+        int[] resolutionClass = callback == null && surface != null && surface == mSurface && decoder.adaptivePlayback
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? DecoderPool.resolutionClass(codecWidth, codecHeight) : null;
+        String poolKey = null;
+        if (resolutionClass != null) {
+            poolKey = DecoderPool.key(decoder.name, mime, resolutionClass);
+            MediaCodec pooled = DecoderPool.get(mContext).acquire(poolKey, mSurface);
+            if (pooled != null) {
+                // 复用的解码器已经flush，第一帧之前先送入这一路的参数集
+                frameInfo.codecConfig = codecSpecificData();
+                return pooled;
             }
+
+            format.setInteger(MediaFormat.KEY_MAX_WIDTH, resolutionClass[0]);
+            format.setInteger(MediaFormat.KEY_MAX_HEIGHT, resolutionClass[1]);
+            format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, getMaxInputSize(frameInfo.codec, null, resolutionClass[0], resolutionClass[1], maxInputSize));
+        }
+
+        Log.i(TAG, String.format("config codec:%s", format));
+
+        MediaCodec codec = MediaCodec.createByCodecName(decoder.name);
+        if (callback != null) {
+            // 异步模式必须在configure之前设置回调
+            codec.setCallback(callback, handler);
         }
-        return null;
+        codec.configure(format, surface, null, 0);
+        codec.setVideoScalingMode(MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT);
+        codec.start();
+
+        if (poolKey != null) {
+            DecoderPool.get(mContext).register(codec, poolKey);
+        }
+        return codec;
+    }
+
+    /**
+     * csd-0和csd-1连在一起，作为BUFFER_FLAG_CODEC_CONFIG送入解码器
+     */
+    private ByteBuffer codecSpecificData() {
+        ByteBuffer csd0 = mCSD0.duplicate();
+        ByteBuffer csd1 = mCSD1 != null ? mCSD1.duplicate() : ByteBuffer.allocate(0);
+        csd0.clear();
+        csd1.clear();
+        ByteBuffer config = ByteBuffer.allocate(csd0.remaining() + csd1.remaining());
+        config.put(csd0);
+        config.put(csd1);
+        config.flip();
+        return config;
     }
 
     private void startCodec() {
@@ -862,9 +1118,12 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                 MediaCodec mCodec = null;
                 int mColorFormat = 0;
                 VideoCodec.VideoDecoderLite mDecoder = null, displayer = null;
+                ImageOutput imageOutput = null;
+                // 硬解输出到Surface（包括经过ImageReader）时按刷新对齐显示
+                PresentationScheduler scheduler = new PresentationScheduler(mContext);
 
                 try {
-                    boolean pushBlankBuffersOnStop = true;
+                    int[] colorFormatOut = new int[1];
 
                     int index = 0;
                     // previous
@@ -874,76 +1133,48 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                     int realWidth = mWidth;
                     int realHeight = mHeight;
                     int sliceHeight = realHeight;
+                    // 输出缓冲的行跨度和裁剪区域的左上角
+                    int stride = realWidth;
+                    int cropLeft = 0;
+                    int cropTop = 0;
 
                     int frameWidth = 0;
                     int frameHeight = 0;
+                    boolean speedingUp = false;
 //
 //                    long decodeBegin = 0;
 //                    long current = 0;
 
                     MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
 
-                    Client.FrameInfo initFrameInfo = null;
+                    int initCodec = 0;
                     Client.FrameInfo frameInfo = null;
 
                     while (mThread != null) {
                         if (mCodec == null && mDecoder == null) {
+                            if (frameInfo == null) {
+                                frameInfo = takeHandoffVideoFrame();
+                            }
                             if (frameInfo == null) {
                                 frameInfo = mQueue.takeVideoFrame();
                             }
 
-                            initFrameInfo = frameInfo;
+                            initCodec = frameInfo.codec;
 
                             try {
                                 if (PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean("use-sw-codec", false)) {
                                     throw new IllegalStateException("user set sw codec");
                                 }
 
-                                final String mime = frameInfo.codec == EASY_SDK_VIDEO_CODEC_H264 ? "video/avc" : "video/hevc";
-                                MediaFormat format = MediaFormat.createVideoFormat(mime, mWidth, mHeight);
-                                format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 0);
-                                format.setInteger(MediaFormat.KEY_PUSH_BLANK_BUFFERS_ON_STOP, pushBlankBuffersOnStop ? 1 : 0);
-                                // 指定解码后的帧格式
-                                format.setInteger(MediaFormat.KEY_COLOR_FORMAT, COLOR_FormatYUV420Flexible);
-
-                                if (mCSD0 != null) {
-                                    format.setByteBuffer("csd-0", mCSD0);
-                                } else {
-                                    throw new InvalidParameterException("csd-0 is invalid.");
-                                }
-
-                                if (mCSD1 != null) {
-                                    format.setByteBuffer("csd-1", mCSD1);
-                                } else {
-                                    if (frameInfo.codec == EASY_SDK_VIDEO_CODEC_H264) throw new InvalidParameterException("csd-1 is invalid.");
-                                }
-
-                                MediaCodecInfo ci = selectCodec(mime);
-                                mColorFormat = CodecSpecificDataUtil.selectColorFormat(ci, mime);
-
-                                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                                    MediaCodecInfo.CodecCapabilities capabilities = ci.getCapabilitiesForType(mime);
-                                    MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities.getVideoCapabilities();
-                                    boolean supported = videoCapabilities.isSizeSupported(mWidth, mHeight);
-                                    Log.i(TAG, "media codec " + ci.getName() + (supported ? "support" : "not support") + mWidth + "*" + mHeight);
-                                    if (!supported) {
-                                        boolean b1 = videoCapabilities.getSupportedWidths().contains(mWidth + 0);
-                                        boolean b2 = videoCapabilities.getSupportedHeights().contains(mHeight + 0);
-                                        supported |= b1 && b2;
-                                        if (supported) {
-                                            Log.w(TAG, ".......................................................................");
-                                        } else {
-                                            throw new IllegalStateException("media codec " + ci.getName() + (supported ? "support" : "not support") + mWidth + "*" + mHeight);
-                                        }
-                                    }
+                                Surface surface = i420callback != null ? null : mSurface;
+                                YUVImageCallback imageCallback = mYUVImageCallback;
+                                if (imageCallback != null && surface != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                                    imageOutput = new ImageOutput(Math.max(1, frameInfo.width != 0 ? frameInfo.width : mWidth),
+                                            Math.max(1, frameInfo.height != 0 ? frameInfo.height : mHeight), surface, imageCallback);
+                                    surface = imageOutput.getSurface();
                                 }
-                                Log.i(TAG, String.format("config codec:%s", format));
-
-                                MediaCodec codec = MediaCodec.createByCodecName(ci.getName());
-                                codec.configure(format, i420callback != null ? null : mSurface, null, 0);
-                                codec.setVideoScalingMode(MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT);
-                                codec.start();
-
+                                MediaCodec codec = createVideoCodec(frameInfo, surface, colorFormatOut, null, null);
+                                mColorFormat = colorFormatOut[0];
                                 mCodec = codec;
                                 if (i420callback != null) {
                                     final VideoCodec.VideoDecoderLite decoder = new VideoCodec.VideoDecoderLite();
@@ -955,6 +1186,10 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                                     mCodec.release();
                                 }
                                 mCodec = null;
+                                if (imageOutput != null) {
+                                    imageOutput.release();
+                                    imageOutput = null;
+                                }
 
                                 if (displayer != null) {
                                     displayer.close();
@@ -989,6 +1224,21 @@ public class EasyPlayerClient implements Client.SourceCallBack {
 
                         if (frameInfo != null) {
                             Log.d(TAG, "video " + frameInfo.stamp + " take[" + (frameInfo.stamp - lastFrameStampUs) + "]");
+                            if (frameInfo.formatChanged) {
+                                frameInfo.formatChanged = false;
+                                if (mCodec != null) {
+                                    frameHeight = frameInfo.height;
+                                    frameWidth = frameInfo.width;
+                                    stopRecord();
+                                    DecoderPool.get(mContext).recycle(mCodec);
+                                    mCodec = null;
+                                    if (imageOutput != null) {
+                                        imageOutput.release();
+                                        imageOutput = null;
+                                    }
+                                    continue;
+                                }
+                            }
                             if (frameHeight != 0 && frameWidth != 0) {
                                 if (frameInfo.width != 0 && frameInfo.height != 0) {
                                     if (frameInfo.width != frameWidth || frameInfo.height != frameHeight) {
@@ -996,8 +1246,12 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                                         frameWidth = frameInfo.width;
                                         stopRecord();
                                         if (mCodec != null) {
-                                            mCodec.release();
+                                            DecoderPool.get(mContext).recycle(mCodec);
                                             mCodec = null;
+                                            if (imageOutput != null) {
+                                                imageOutput.release();
+                                                imageOutput = null;
+                                            }
                                             continue;
                                         }
                                     }
@@ -1012,7 +1266,12 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                         do {
                             if (mDecoder != null) {
                                 if (frameInfo != null) {
-                                    long decodeBegin = SystemClock.elapsedRealtime();
+                                    // 按抖动缓冲给出的显示时刻等待，迟到的帧立即解码显示
+                                    long waitUs = videoWaitUs(frameInfo.stamp);
+                                    if (waitUs > 0) {
+                                        Thread.sleep(waitUs / 1000, (int) (waitUs % 1000) * 1000);
+                                    }
+
                                     int[] size = new int[2];
 
 //                                    mDecoder.decodeFrame(frameInfo, size);
@@ -1027,8 +1286,6 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                                         Log.i(TAG, "AAAA 1022 releaseBuffer ");
                                     }
 
-                                    long decodeSpend = SystemClock.elapsedRealtime() - decodeBegin;
-
                                     boolean firstFrame = previousStampUs == 0l;
                                     if (firstFrame) {
                                         Log.i(TAG, String.format("POST VIDEO_DISPLAYED!!!"));
@@ -1040,25 +1297,12 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                                         }
                                     }
 
-                                    //Log.d(TAG, String.format("timestamp=%d diff=%d",current, current - previousStampUs ));
+                                    mJitterBuffer.onPresented(frameInfo.stamp);
 
-                                    if (previousStampUs != 0l) {
-                                        long sleepTime = frameInfo.stamp - previousStampUs - decodeSpend * 1000;
-                                        if (sleepTime > 100000) {
-                                            Log.w(TAG, "sleep time.too long:" + sleepTime);
-                                            sleepTime = 100000;
-                                        }
-                                        if (sleepTime > 0) {
-                                            sleepTime %= 100000;
-                                            long cache = mNewestStample - frameInfo.stamp;
-                                            sleepTime = fixSleepTime(sleepTime, cache, 50000);
-                                            if (sleepTime > 0) {
-                                                Thread.sleep(sleepTime / 1000);
-                                            }
-                                            Log.d(TAG, "cache:" + cache);
-                                        }
-                                    }
+                                    speedingUp = speedUpIfBehind(frameInfo.stamp, previousStampUs, speedingUp);
                                     previousStampUs = frameInfo.stamp;
+                                    frameInfo.recycle();
+                                    frameInfo = null;
                                 }
                             } else {
                                 try {
@@ -1070,12 +1314,22 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                                             if (index >= 0) {
                                                 ByteBuffer buffer = mCodec.getInputBuffers()[index];
                                                 buffer.clear();
-                                                if (pBuf.length > buffer.remaining()) {
+                                                ByteBuffer config = frameInfo.codecConfig;
+                                                if (config != null) {
+                                                    // 只有PPS等变化，先送入新的参数集，不必重建解码器。帧本身下一轮再送
+                                                    frameInfo.codecConfig = null;
+                                                    config.clear();
+                                                    buffer.put(config);
+                                                    mCodec.queueInputBuffer(index, 0, buffer.position(), frameInfo.stamp + differ, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+                                                    continue;
+                                                }
+                                                if (frameInfo.length > buffer.remaining()) {
                                                     mCodec.queueInputBuffer(index, 0, 0, frameInfo.stamp, 0);
                                                 } else {
                                                     buffer.put(pBuf, frameInfo.offset, frameInfo.length);
                                                     mCodec.queueInputBuffer(index, 0, buffer.position(), frameInfo.stamp + differ, 0);
                                                 }
+                                                frameInfo.recycle();
                                                 frameInfo = null;
                                             }
                                         }
@@ -1088,23 +1342,37 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                                                 MediaFormat mf = mCodec.getOutputFormat();
                                                 Log.i(TAG, "INFO_OUTPUT_FORMAT_CHANGED ：" + mf);
 
-                                                int width = mf.getInteger(MediaFormat.KEY_WIDTH);
+                                                int bufferWidth = mf.getInteger(MediaFormat.KEY_WIDTH);
+                                                int bufferHeight = mf.getInteger(MediaFormat.KEY_HEIGHT);
+
+                                                int width = bufferWidth;
+                                                cropLeft = 0;
                                                 if (mf.containsKey("crop-left") && mf.containsKey("crop-right")) {
-                                                    width = mf.getInteger("crop-right") + 1 - mf.getInteger("crop-left");
+                                                    cropLeft = mf.getInteger("crop-left");
+                                                    width = mf.getInteger("crop-right") + 1 - cropLeft;
                                                 }
 
-                                                int height = mf.getInteger(MediaFormat.KEY_HEIGHT);
+                                                int height = bufferHeight;
+                                                cropTop = 0;
                                                 if (mf.containsKey("crop-top") && mf.containsKey("crop-bottom")) {
-                                                    height = mf.getInteger("crop-bottom") + 1 - mf.getInteger("crop-top");
+                                                    cropTop = mf.getInteger("crop-top");
+                                                    height = mf.getInteger("crop-bottom") + 1 - cropTop;
                                                 }
 
                                                 realWidth = width;
                                                 realHeight = height;
 
+                                                stride = mf.containsKey("stride") ? mf.getInteger("stride") : bufferWidth;
+                                                if (stride < cropLeft + width) {
+                                                    stride = bufferWidth;
+                                                }
                                                 if (mf.containsKey(MediaFormat.KEY_SLICE_HEIGHT)) {
                                                     sliceHeight = mf.getInteger(MediaFormat.KEY_SLICE_HEIGHT);
                                                 } else {
-                                                    sliceHeight = realHeight;
+                                                    sliceHeight = bufferHeight;
+                                                }
+                                                if (sliceHeight < cropTop + height) {
+                                                    sliceHeight = cropTop + height;
                                                 }
                                                 break;
                                             case MediaCodec.INFO_TRY_AGAIN_LATER:
@@ -1112,26 +1380,7 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                                                 break;
                                             default:
                                                 // 输出队列不为空
-                                                // -1表示为第一帧数据
-                                                long newSleepUs = -1;
                                                 boolean firstTime = previousStampUs == 0l;
-                                                if (!firstTime) {
-                                                    long sleepUs = (info.presentationTimeUs - previousStampUs);
-                                                    if (sleepUs > 100000) {
-                                                        // 时间戳异常，可能服务器丢帧了。
-                                                        Log.w(TAG, "sleep time.too long:" + sleepUs);
-                                                        sleepUs = 100000;
-                                                    } else if (sleepUs < 0) {
-                                                        Log.w(TAG, "sleep time.too short:" + sleepUs);
-                                                        sleepUs = 0;
-                                                    }
-
-                                                    {
-                                                        long cache = mNewestStample - lastFrameStampUs;
-                                                        newSleepUs = fixSleepTime(sleepUs, cache, 100000);
-                                                        // Log.d(TAG, String.format("sleepUs:%d,newSleepUs:%d,Cache:%d", sleepUs, newSleepUs, cache));
-                                                    }
-                                                }
 
                                                 //previousStampUs = info.presentationTimeUs;
                                                 ByteBuffer outputBuffer;
@@ -1142,61 +1391,43 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                                                 }
 
                                                 if (i420callback != null && outputBuffer != null) {
-                                                    if (sliceHeight != realHeight) {
-                                                        ByteBuffer tmp = ByteBuffer.allocateDirect(realWidth * realHeight * 3 / 2);
-                                                        outputBuffer.clear();
-                                                        outputBuffer.limit(realWidth * realHeight);
-                                                        tmp.put(outputBuffer);
-
-                                                        outputBuffer.clear();
-                                                        outputBuffer.position(realWidth * sliceHeight);
-                                                        outputBuffer.limit((realWidth * sliceHeight + realWidth * realHeight / 4));
-                                                        tmp.put(outputBuffer);
-
-                                                        outputBuffer.clear();
-                                                        outputBuffer.position(realWidth * sliceHeight + realWidth * realHeight / 4);
-                                                        outputBuffer.limit((realWidth * sliceHeight + realWidth * realHeight / 4 + realWidth * realHeight / 4));
-                                                        tmp.put(outputBuffer);
-
-                                                        tmp.clear();
-                                                        outputBuffer = tmp;
-                                                    }
-
                                                     if (mColorFormat == COLOR_FormatYUV420SemiPlanar || mColorFormat == COLOR_FormatYUV420PackedSemiPlanar || mColorFormat == COLOR_TI_FormatYUV420PackedSemiPlanar) {
-
-                                                        byte[] in = new byte[realWidth * realHeight * 3 / 2];
-                                                        outputBuffer.clear();
-                                                        outputBuffer.get(in);
-
-                                                        // yuvuv_to_yuv
-                                                        JNIUtil.yuvConvert(in, realWidth, realHeight, 4);
-//                                                        // 旋转90或180或270度
-//                                                        yuvRotate(in, 0, realWidth, realHeight, 90);
-
-                                                        ByteBuffer tmp = ByteBuffer.allocateDirect(realWidth * realHeight * 3 / 2);
-                                                        tmp.clear();
-                                                        tmp.put(in);
-
-                                                        i420callback.onI420Data(tmp);
-
-                                                        // 旋转90或270度，则宽高需要互换
-                                                        displayer.decoder_decodeBuffer(tmp, realWidth, realHeight);
+                                                        int frameSize = YuvConverter.i420Size(realWidth, realHeight);
+
+                                                        // 按行跨度和裁剪区域直接转换到交给回调的缓冲中，保持以前put之后position在末尾的状态
+                                                        ByteBuffer tmp = mFrameBuffers.acquire(frameSize);
+                                                        try {
+                                                            mYuvConverter.semiPlanarToI420(outputBuffer, false, stride, sliceHeight,
+                                                                    cropLeft, cropTop, realWidth, realHeight, tmp);
+                                                            tmp.position(frameSize);
+                                                            i420callback.onI420Data(tmp);
+
+                                                            // 旋转90或270度，则宽高需要互换
+                                                            displayer.decoder_decodeBuffer(tmp, realWidth, realHeight);
+                                                        } finally {
+                                                            mFrameBuffers.release(tmp);
+                                                        }
                                                     }
                                                 }
 
-                                                //previewStampUs = info.presentationTimeUs;
-                                                if (false && Build.VERSION.SDK_INT >= 21) {
-                                                    Log.d(TAG, String.format("releaseoutputbuffer:%d,stampUs:%d", index, previousStampUs));
-                                                    mCodec.releaseOutputBuffer(index, previousStampUs);
-                                                } else {
-                                                    if (newSleepUs < 0) {
-                                                        newSleepUs = 0;
+                                                boolean dropped = false;
+                                                if (i420callback == null) {
+                                                    // 交给系统在对齐到刷新的时刻显示，不在这里等待；迟到太多的帧丢弃
+                                                    long renderTimeNs = scheduler.schedule(videoDeadlineUs(info.presentationTimeUs, JitterBuffer.nowUs()) * 1000, System.nanoTime());
+                                                    dropped = renderTimeNs == PresentationScheduler.DROP;
+                                                    if (dropped) {
+                                                        mCodec.releaseOutputBuffer(index, false);
+                                                    } else {
+                                                        mCodec.releaseOutputBuffer(index, renderTimeNs);
                                                     }
-//                                            Log.d(TAG,String.format("sleep:%d", newSleepUs/1000));
-//                                                    Thread.sleep(newSleepUs / 1000);
+                                                } else {
                                                     mCodec.releaseOutputBuffer(index, i420callback == null);
                                                 }
 
+                                                mJitterBuffer.onPresented(info.presentationTimeUs);
+                                                if (dropped) {
+                                                    break;
+                                                }
                                                 if (firstTime) {
                                                     Log.i(TAG, String.format("POST VIDEO_DISPLAYED!!!"));
                                                     ResultReceiver rr = mRR;
@@ -1219,6 +1450,11 @@ public class EasyPlayerClient implements Client.SourceCallBack {
 
                                     if (mCodec != null) mCodec.release();
                                     mCodec = null;
+                                    if (imageOutput != null) {
+                                        imageOutput.release();
+                                        imageOutput = null;
+                                    }
+                                    scheduler.stop();
 
                                     if (displayer != null) {
                                         displayer.close();
@@ -1227,7 +1463,7 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                                     displayer = null;
 
                                     final VideoCodec.VideoDecoderLite decoder = new VideoCodec.VideoDecoderLite();
-                                    decoder.create(mSurface, initFrameInfo.codec == EASY_SDK_VIDEO_CODEC_H264);
+                                    decoder.create(mSurface, initCodec == EASY_SDK_VIDEO_CODEC_H264);
                                     mDecoder = decoder;
                                     continue;
                                 }
@@ -1241,7 +1477,22 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                 } finally {
                     if (mCodec != null) {
 //                        mCodec.stop();
-                        mCodec.release();
+                        DecoderPool.get(mContext).recycle(mCodec);
+                    }
+
+                    if (imageOutput != null) {
+                        imageOutput.release();
+                    }
+
+                    scheduler.stop();
+                    if (scheduler.getDroppedFrames() != 0) {
+                        Log.i(TAG, String.format("%d late frames dropped", scheduler.getDroppedFrames()));
+                    }
+
+                    mFrameBuffers.clear();
+                    int outstanding = mFrameBuffers.outstanding();
+                    if (outstanding != 0) {
+                        Log.w(TAG, String.format("%d frame buffers not released", outstanding));
                     }
 
                     if (mDecoder != null) {
@@ -1260,17 +1511,299 @@ public class EasyPlayerClient implements Client.SourceCallBack {
         mThread.start();
     }
 
-    private static final long fixSleepTime(long sleepTimeUs, long totalTimestampDifferUs, long delayUs) {
-        if (totalTimestampDifferUs < 0l) {
-            Log.w(TAG, String.format("totalTimestampDifferUs is:%d, this should not be happen.", totalTimestampDifferUs));
-            totalTimestampDifferUs = 0;
+    private Client.FrameInfo takeHandoffVideoFrame() {
+        synchronized (mDecoderLock) {
+            Client.FrameInfo frameInfo = mHandoffVideoFrame;
+            mHandoffVideoFrame = null;
+            return frameInfo;
         }
+    }
 
-        double dValue = ((double) (delayUs - totalTimestampDifferUs)) / 1000000d;
-        double radio = Math.exp(dValue);
-        double r = sleepTimeUs * radio + 0.5f;
-        Log.i(TAG, String.format("%d,%d,%d->%d", sleepTimeUs, totalTimestampDifferUs, delayUs, (int) r));
-        return (long) r;
+    /**
+     * 按设置选择视频解码方式：异步硬解或者{@link #startCodec()}的同步解码线程。
+     */
+    private void startVideoDecoder() {
+        if (mAsyncDecode && i420callback == null && mYUVImageCallback == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                && !PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean("use-sw-codec", false)) {
+            mAsyncSession = new AsyncCodecSession();
+        } else {
+            startCodec();
+        }
+    }
+
+    /**
+     * 异步硬解：MediaCodec的回调、新帧通知和显示定时都在同一个HandlerThread中处理，没有数据时线程休眠，
+     * 不再以10微秒的超时轮询。送入和显示的决策由{@link AsyncDecoder}完成。
+     * <p>
+     * 输出缓冲在显示时刻之前{@link #RENDER_AHEAD_US}释放，显示时刻和同步解码一样由{@link PresentationScheduler}对齐到屏幕刷新。
+     * <p>
+     * 解码器出错或者创建失败时，改为{@link #startCodec()}的同步解码线程，由它继续尝试硬解或软解。
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private final class AsyncCodecSession extends MediaCodec.Callback implements AsyncDecoder.Codec, AsyncDecoder.Host, Handler.Callback {
+        private static final int MSG_FRAME = 1;
+        private static final int MSG_TIMER = 2;
+        private static final int MSG_RECONFIGURE = 3;
+        private static final int MSG_RELEASE = 4;
+
+        /**
+         * 提前多久把输出缓冲交给系统，要大于对齐到刷新时可能提前的时间（约1.3个刷新周期）
+         */
+        private static final long RENDER_AHEAD_US = 50000;
+
+        private final HandlerThread mHandlerThread;
+        private final Handler mHandler;
+        private final PresentationScheduler mScheduler = new PresentationScheduler(mContext);
+
+        /**
+         * 已经发出还没有处理的MSG_FRAME，避免每一帧都发消息
+         */
+        private final AtomicBoolean mFrameNotified = new AtomicBoolean();
+
+        private MediaCodec mAsyncCodec;
+        private AsyncDecoder mDecoder;
+
+        /**
+         * 下一个要送入的帧，用来创建解码器，或者重新配置解码器之前取出的帧
+         */
+        private Client.FrameInfo mFirstFrame;
+        private int mFrameWidth;
+        private int mFrameHeight;
+        private long mPreviousStampUs;
+        private boolean mSpeedingUp;
+
+        AsyncCodecSession() {
+            mHandlerThread = new HandlerThread("VIDEO_DECODER", Process.THREAD_PRIORITY_AUDIO);
+            mHandlerThread.start();
+            mHandler = new Handler(mHandlerThread.getLooper(), this);
+            mHandler.sendEmptyMessage(MSG_FRAME);
+        }
+
+        /**
+         * 视频帧入队之后在生产者线程调用
+         */
+        void notifyFrame() {
+            if (mFrameNotified.compareAndSet(false, true)) {
+                mHandler.sendEmptyMessage(MSG_FRAME);
+            }
+        }
+
+        /**
+         * 释放解码器并结束线程，等待线程退出
+         */
+        void quit() {
+            mHandler.sendEmptyMessage(MSG_RELEASE);
+            mHandlerThread.quitSafely();
+            try {
+                mHandlerThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_FRAME:
+                    mFrameNotified.set(false);
+                    if (mAsyncCodec == null) {
+                        createCodec();
+                    } else {
+                        mDecoder.onFrameAvailable();
+                    }
+                    break;
+                case MSG_TIMER:
+                    if (mDecoder != null) {
+                        mDecoder.onTimer();
+                    }
+                    break;
+                case MSG_RECONFIGURE:
+                    releaseCodec();
+                    createCodec();
+                    break;
+                case MSG_RELEASE:
+                    releaseCodec();
+                    if (mFirstFrame != null) {
+                        mFirstFrame.recycle();
+                        mFirstFrame = null;
+                    }
+                    break;
+            }
+            return true;
+        }
+
+        private void createCodec() {
+            if (mFirstFrame == null) {
+                mFirstFrame = mQueue.pollVideoFrame();
+                if (mFirstFrame == null) {
+                    return;
+                }
+            }
+
+            try {
+                mAsyncCodec = createVideoCodec(mFirstFrame, mSurface, new int[1], this, mHandler);
+                mDecoder = new AsyncDecoder(this, this);
+            } catch (Throwable e) {
+                Log.e(TAG, String.format("init async codec error due to %s", e.getMessage()));
+                e.printStackTrace();
+                fallback();
+            }
+        }
+
+        private void releaseCodec() {
+            mHandler.removeMessages(MSG_TIMER);
+            mScheduler.stop();
+            if (mDecoder != null) {
+                mDecoder.halt();
+                mDecoder = null;
+            }
+            if (mAsyncCodec != null) {
+                mAsyncCodec.release();
+                mAsyncCodec = null;
+            }
+        }
+
+        /**
+         * 改用同步解码线程，这个线程随后退出。还没有送入的帧交给同步线程，它通常是带参数集的关键帧，
+         * 丢掉它的话要等到下一个关键帧才有画面。stop已经开始时什么也不做
+         */
+        private void fallback() {
+            releaseCodec();
+            Client.FrameInfo frameInfo = mFirstFrame;
+            mFirstFrame = null;
+
+            synchronized (mDecoderLock) {
+                if (mAsyncSession != this) {
+                    if (frameInfo != null) {
+                        frameInfo.recycle();
+                    }
+                    return;
+                }
+                mAsyncSession = null;
+                mHandoffVideoFrame = frameInfo;
+                startCodec();
+            }
+            mHandlerThread.quit();
+        }
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            if (codec == mAsyncCodec) {
+                mDecoder.onInputBufferAvailable(index);
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            if (codec == mAsyncCodec) {
+                mDecoder.onOutputBufferAvailable(index, info.presentationTimeUs, info.flags);
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            Log.i(TAG, "INFO_OUTPUT_FORMAT_CHANGED ：" + format);
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            if (codec != mAsyncCodec) {
+                return;
+            }
+            Log.e(TAG, String.format("async codec error due to %s", e.getMessage()));
+            e.printStackTrace();
+            fallback();
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return mAsyncCodec.getInputBuffer(index);
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+            mAsyncCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index, boolean render) {
+            mAsyncCodec.releaseOutputBuffer(index, render);
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index, long renderTimeNs) {
+            mAsyncCodec.releaseOutputBuffer(index, renderTimeNs);
+        }
+
+        @Override
+        public Client.FrameInfo pollFrame() {
+            Client.FrameInfo frameInfo = mFirstFrame;
+            if (frameInfo != null) {
+                mFirstFrame = null;
+                return frameInfo;
+            }
+            return mQueue.pollVideoFrame();
+        }
+
+        @Override
+        public boolean onFrame(Client.FrameInfo frameInfo) {
+            boolean reconfigure = frameInfo.formatChanged;
+            frameInfo.formatChanged = false;
+            if (mFrameWidth != 0 && mFrameHeight != 0 && frameInfo.width != 0 && frameInfo.height != 0
+                    && (frameInfo.width != mFrameWidth || frameInfo.height != mFrameHeight)) {
+                reconfigure = true;
+            }
+            mFrameWidth = frameInfo.width;
+            mFrameHeight = frameInfo.height;
+
+            if (reconfigure) {
+                // 不能在解码器的回调中释放它，换到下一个消息中重建
+                stopRecord();
+                mFirstFrame = frameInfo;
+                mHandler.sendEmptyMessage(MSG_RECONFIGURE);
+                return false;
+            }
+
+            pumpVideoSample(frameInfo);
+            return true;
+        }
+
+        @Override
+        public long waitUs(long presentationTimeUs) {
+            return videoWaitUs(presentationTimeUs) - RENDER_AHEAD_US;
+        }
+
+        @Override
+        public long renderTimeNs(long presentationTimeUs) {
+            long renderTimeNs = mScheduler.schedule(videoDeadlineUs(presentationTimeUs, JitterBuffer.nowUs()) * 1000, System.nanoTime());
+            if (renderTimeNs == PresentationScheduler.DROP) {
+                // 和同步解码一样，丢弃的帧也算已经显示过
+                mJitterBuffer.onPresented(presentationTimeUs);
+            }
+            return renderTimeNs;
+        }
+
+        @Override
+        public void scheduleTimer(long delayUs) {
+            mHandler.removeMessages(MSG_TIMER);
+            mHandler.sendEmptyMessageDelayed(MSG_TIMER, (delayUs + 999) / 1000);
+        }
+
+        @Override
+        public void onRendered(long presentationTimeUs) {
+            if (mPreviousStampUs == 0l) {
+                Log.i(TAG, String.format("POST VIDEO_DISPLAYED!!!"));
+                ResultReceiver rr = mRR;
+                if (rr != null) {
+                    Bundle data = new Bundle();
+                    data.putInt(KEY_VIDEO_DECODE_TYPE, 1);
+                    rr.send(RESULT_VIDEO_DISPLAYED, data);
+                }
+            }
+            mJitterBuffer.onPresented(presentationTimeUs);
+            mSpeedingUp = speedUpIfBehind(presentationTimeUs, mPreviousStampUs, mSpeedingUp);
+            mPreviousStampUs = presentationTimeUs;
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
@@ -1289,6 +1822,7 @@ public class EasyPlayerClient implements Client.SourceCallBack {
         csd1.clear();
         mCSD0.get(extra, 0, mCSD0.capacity());
         csd1.get(extra, mCSD0.capacity(), csd1.capacity());
+        // 视频帧按Annex-B写入，extradata也必须是Annex-B的参数集，muxer才会把帧转为长度前缀格式
 
         int r = muxer2.create(path, mMediaInfo.videoCodec == EASY_SDK_VIDEO_CODEC_H265 ? VIDEO_TYPE_H265 : VIDEO_TYPE_H264, mWidth, mHeight, extra, mMediaInfo.sample, mMediaInfo.channel);
         if (r != 0) {
@@ -1442,10 +1976,12 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                     mNotSupportedVideoCB = true;
                     rr.send(RESULT_UNSUPPORTED_VIDEO, null);
                 }
+                frameInfo.recycle();
                 return;
             }
 //            save2path(frameInfo.buffer, 0, frameInfo.length, "/sdcard/264.h264", true);
             if (frameInfo.width == 0 || frameInfo.height == 0) {
+                frameInfo.recycle();
                 return;
             }
 
@@ -1472,6 +2008,7 @@ public class EasyPlayerClient implements Client.SourceCallBack {
 
 //            boolean firstFrame = mNewestStample == 0;
             mNewestStample = frameInfo.stamp;
+            mJitterBuffer.onArrival(frameInfo.stamp);
             frameInfo.audio = false;
             if (mWaitingKeyFrame) {
 
@@ -1487,40 +2024,11 @@ public class EasyPlayerClient implements Client.SourceCallBack {
 
                 Log.i(TAG, String.format("width:%d,height:%d", mWidth, mHeight));
 
-                if (frameInfo.codec == EASY_SDK_VIDEO_CODEC_H264) {
-                    byte[] dataOut = new byte[128];
-                    int[] outLen = new int[]{128};
-                    int result = getXPS(frameInfo.buffer, 0, 256, dataOut, outLen, 7);
-                    if (result >= 0) {
-                        ByteBuffer csd0 = ByteBuffer.allocate(outLen[0]);
-                        csd0.put(dataOut, 0, outLen[0]);
-                        csd0.clear();
-                        mCSD0 = csd0;
-                        Log.i(TAG, String.format("CSD-0 searched"));
-                    }
-                    outLen[0] = 128;
-                    result = getXPS(frameInfo.buffer, 0, 256, dataOut, outLen, 8);
-                    if (result >= 0) {
-                        ByteBuffer csd1 = ByteBuffer.allocate(outLen[0]);
-                        csd1.put(dataOut, 0, outLen[0]);
-                        csd1.clear();
-                        mCSD1 = csd1;
-                        Log.i(TAG, String.format("CSD-1 searched"));
-                    }
-                    if (false) {
-                        int off = (result - frameInfo.offset);
-                        frameInfo.offset += off;
-                        frameInfo.length -= off;
-                    }
-                } else {
-                    byte[] spsPps = getvps_sps_pps(frameInfo.buffer, 0, 256);
-                    if (spsPps != null) {
-                        mCSD0 = ByteBuffer.wrap(spsPps);
-                    }
-                }
+                updateParameterSets(frameInfo);
 
                 if (frameInfo.type != 1) {
                     Log.w(TAG, String.format("discard p frame."));
+                    frameInfo.recycle();
                     return;
                 }
                 mWaitingKeyFrame = false;
@@ -1543,12 +2051,28 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                     Log.i(TAG, String.format("RESULT_VIDEO_SIZE:%d*%d", frameInfo.width, frameInfo.height));
                     if (rr != null) rr.send(RESULT_VIDEO_SIZE, bundle);
                 }
+
+                if (frameInfo.type == 1) {
+                    int change = updateParameterSets(frameInfo);
+                    if (change == ParameterSetCache.FORMAT_CHANGED) {
+                        Log.i(TAG, "parameter sets changed, reconfigure codec");
+                        frameInfo.formatChanged = true;
+                    } else if (change == ParameterSetCache.CONFIG_CHANGED) {
+                        byte[] config = ParameterSetCache.toAnnexB(frameInfo.buffer, mNalScanner, frameInfo.codec == EASY_SDK_VIDEO_CODEC_H265);
+                        if (config != null) {
+                            frameInfo.codecConfig = ByteBuffer.wrap(config);
+                        }
+                    }
+                }
             }
 //            Log.d(TAG, String.format("queue size :%d", mQueue.size()));
-            try {
-                mQueue.put(frameInfo);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            if (!putVideoFrame(frameInfo)) {
+                frameInfo.recycle();
+            } else {
+                AsyncCodecSession session = mAsyncSession;
+                if (session != null) {
+                    session.notifyFrame();
+                }
             }
         } else if (_frameType == Client.EASY_SDK_AUDIO_FRAME_FLAG) {
             mNewestStample = frameInfo.stamp;
@@ -1562,6 +2086,7 @@ public class EasyPlayerClient implements Client.SourceCallBack {
                             rr.send(RESULT_UNSUPPORTED_AUDIO, null);
                         }
                     }
+                    frameInfo.recycle();
                     return;
                 }
 
@@ -1570,6 +2095,7 @@ public class EasyPlayerClient implements Client.SourceCallBack {
             try {
                 mQueue.put(frameInfo);
             } catch (InterruptedException e) {
+                frameInfo.recycle();
                 e.printStackTrace();
             }
         } else if (_frameType == 0) {
@@ -1583,11 +2109,145 @@ public class EasyPlayerClient implements Client.SourceCallBack {
         } else if (_frameType == Client.EASY_SDK_EVENT_FRAME_FLAG) {
             ResultReceiver rr = mRR;
             Bundle resultData = new Bundle();
-            resultData.putString("event-msg", new String(frameInfo.buffer));
+            resultData.putString("event-msg", new String(frameInfo.buffer, frameInfo.offset, frameInfo.length));
+            frameInfo.recycle();
             if (rr != null) rr.send(RESULT_EVENT, null);
         }
     }
 
+    /**
+     * 从关键帧开头提取参数集。参数集有变化时更新csd和SPS，重复的参数集直接跳过。只能在生产者线程调用。
+     *
+     * @return {@link ParameterSetCache#UNCHANGED}、{@link ParameterSetCache#CONFIG_CHANGED}或{@link ParameterSetCache#FORMAT_CHANGED}
+     */
+    private int updateParameterSets(Client.FrameInfo frameInfo) {
+        final boolean hevc = frameInfo.codec == EASY_SDK_VIDEO_CODEC_H265;
+        final int end = frameInfo.offset + frameInfo.length;
+        int length = Math.min(256, end);
+        int count = mNalScanner.scan(frameInfo.buffer, 0, length, hevc);
+        // 窗口末尾的参数集看不到结尾，可能被截断，这时扫描整个访问单元，不能把不完整的参数集缓存或送给解码器
+        if (length < end && count > 0 && ParameterSetCache.isParameterSet(mNalScanner.type(count - 1), hevc)) {
+            length = end;
+            mNalScanner.scan(frameInfo.buffer, 0, length, hevc);
+        }
+        int change = mParamSets.update(frameInfo.buffer, mNalScanner, hevc);
+        if (change == ParameterSetCache.UNCHANGED && mCSD0 != null) {
+            return change;
+        }
+
+        if (frameInfo.codec == EASY_SDK_VIDEO_CODEC_H264) {
+            byte[] dataOut = new byte[128];
+            int[] outLen = new int[]{128};
+            int result = getXPS(mNalScanner, frameInfo.buffer, 0, length, dataOut, outLen, NalScanner.H264_NAL_SPS);
+            if (result >= 0) {
+                ByteBuffer csd0 = ByteBuffer.allocate(outLen[0]);
+                csd0.put(dataOut, 0, outLen[0]);
+                csd0.clear();
+                mCSD0 = csd0;
+                Log.i(TAG, String.format("CSD-0 searched"));
+
+                mSps = mParamSets.avcSps();
+                Log.i(TAG, String.format("SPS parsed:%s", mSps));
+            }
+            outLen[0] = 128;
+            result = getXPS(mNalScanner, frameInfo.buffer, 0, length, dataOut, outLen, NalScanner.H264_NAL_PPS);
+            if (result >= 0) {
+                ByteBuffer csd1 = ByteBuffer.allocate(outLen[0]);
+                csd1.put(dataOut, 0, outLen[0]);
+                csd1.clear();
+                mCSD1 = csd1;
+                Log.i(TAG, String.format("CSD-1 searched"));
+            }
+            if (false) {
+                int off = (result - frameInfo.offset);
+                frameInfo.offset += off;
+                frameInfo.length -= off;
+            }
+        } else {
+            byte[] spsPps = getvps_sps_pps(mNalScanner, frameInfo.buffer, 0, length);
+            if (spsPps != null) {
+                mCSD0 = ByteBuffer.wrap(spsPps);
+
+                H265ParameterSetParser.Sps sps = mParamSets.hevcSps();
+                Log.i(TAG, String.format("SPS parsed:%s", sps));
+                mHevcSps = sps;
+            }
+        }
+        return change;
+    }
+
+    /**
+     * 视频帧入队，并按低延时策略处理积压。只能在生产者线程调用。
+     *
+     * @return 帧是否已经入队，返回false时由调用者回收。
+     */
+    private boolean putVideoFrame(Client.FrameInfo frameInfo) {
+        boolean keyFrame = frameInfo.type == 1;
+        int policy = mLatencyPolicy;
+        boolean dropPolicy = policy == LATENCY_POLICY_DROP_TO_KEY_FRAME || policy == LATENCY_POLICY_DROP_NON_REFERENCE;
+        long keyFrameDropUs = mMaxBufferedUs;
+
+        if (policy == LATENCY_POLICY_DROP_NON_REFERENCE) {
+            if (!keyFrame && !mCatchUpWaitingKeyFrame && mJitterBuffer.getDepthUs() > mMaxBufferedUs && isDisposable(frameInfo)) {
+                return false;
+            }
+            // 只丢不参考的帧仍然追不上时，才丢弃整组
+            keyFrameDropUs = mMaxBufferedUs * 2;
+        }
+
+        if (dropPolicy) {
+            if (mCatchUpWaitingKeyFrame) {
+                if (!keyFrame) {
+                    return false;
+                }
+                mCatchUpWaitingKeyFrame = false;
+            } else if (keyFrame && mJitterBuffer.getDepthUs() > keyFrameDropUs) {
+                int dropped = mQueue.flushVideo();
+                Log.w(TAG, "catch up: drop " + dropped + " frames before key frame");
+            }
+
+            if (!mQueue.video.offer(frameInfo)) {
+                // 缓冲已满，不再阻塞native线程，清空后等待下一个关键帧
+                int dropped = mQueue.flushVideo();
+                Log.w(TAG, "catch up: queue full, drop " + dropped + " frames");
+                if (!keyFrame) {
+                    mCatchUpWaitingKeyFrame = true;
+                    return false;
+                }
+                return mQueue.video.offer(frameInfo);
+            }
+            return true;
+        }
+
+        try {
+            mQueue.put(frameInfo);
+            return true;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * 帧是否不被其他帧参考，丢弃后不影响后续帧的解码。只能在生产者线程调用。
+     */
+    private boolean isDisposable(Client.FrameInfo frameInfo) {
+        final boolean hevc = frameInfo.codec == EASY_SDK_VIDEO_CODEC_H265;
+        SliceHeaderParser.SliceHeader header = mSliceParser.parse(frameInfo.buffer, frameInfo.offset, frameInfo.length, hevc, mParamSets);
+        // 读不到slice类型时头可能没有解析对，不冒险丢帧
+        if (header == null || header.reference || header.sliceType == SliceHeaderParser.SLICE_TYPE_UNKNOWN) {
+            return false;
+        }
+        if (!hevc) {
+            return true;
+        }
+
+        // 子层非参考帧仍可能被更高的时域层参考，只丢最高层的
+        H265ParameterSetParser.Sps sps = mHevcSps;
+        int maxSubLayers = sps != null ? sps.maxSubLayers : 1;
+        return header.temporalId >= maxSubLayers - 1;
+    }
+
     @Override
     public void onMediaInfoCallBack(int _channelId, Client.MediaInfo mi) {
         mMediaInfo = mi;
@@ -1641,8 +2301,8 @@ public class EasyPlayerClient implements Client.SourceCallBack {
 
     @Override
     public void sendSeiData(byte[] sei) {
-        if (mSEIDataCallback == null) return;
-        mSEIDataCallback.onSEIData(sei);
+        Client.MediaInfo mi = mMediaInfo;
+        mSeiDispatcher.dispatch(sei, mi != null && mi.videoCodec == EASY_SDK_VIDEO_CODEC_H265);
     }
 
     /**
@@ -0,0 +1,69 @@
+package org.easydarwin.video;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 解码输出帧使用的direct ByteBuffer池。
+ * <p>
+ * 同一路视频的每一帧大小相同，池中只保留当前大小的缓冲，分辨率变化时丢弃旧的，之后按新大小分配。
+ * direct buffer只能等Cleaner回收，每帧分配会让native内存不断上涨，复用后稳定在几个缓冲。
+ * <p>
+ * {@link #outstanding()}是已经取出还没有归还的个数，播放结束时不为0说明有缓冲没有归还。
+ */
+final class FrameBufferPool {
+
+    /**
+     * 最多保留的空闲缓冲个数
+     */
+    private static final int MAX_FREE = 4;
+
+    private final ArrayDeque<ByteBuffer> mFree = new ArrayDeque<>(MAX_FREE);
+    private final AtomicInteger mOutstanding = new AtomicInteger();
+    private int mSize;
+
+    /**
+     * 取得一个容量为size的缓冲，position为0，limit为size。用完后调用{@link #release(ByteBuffer)}。
+     */
+    ByteBuffer acquire(int size) {
+        ByteBuffer buffer;
+        synchronized (this) {
+            if (size != mSize) {
+                mFree.clear();
+                mSize = size;
+            }
+            buffer = mFree.poll();
+        }
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(size);
+        }
+        buffer.clear();
+        mOutstanding.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * 归还缓冲，之后不能再访问它。大小已经不是当前大小的直接丢弃。
+     */
+    void release(ByteBuffer buffer) {
+        mOutstanding.decrementAndGet();
+        synchronized (this) {
+            if (buffer.capacity() == mSize && mFree.size() < MAX_FREE) {
+                mFree.push(buffer);
+            }
+        }
+    }
+
+    int outstanding() {
+        return mOutstanding.get();
+    }
+
+    /**
+     * 丢弃所有空闲缓冲，不影响已经取出的
+     */
+    synchronized void clear() {
+        mFree.clear();
+        mSize = 0;
+    }
+}
@@ -0,0 +1,60 @@
+package org.easydarwin.video;
+
+import static org.easydarwin.video.Client.EASY_SDK_MEDIA_INFO_FLAG;
+import static org.easydarwin.video.Client.EASY_SDK_SEI_FRAME_FLAG;
+
+/**
+ * 把native层回调上来的一帧数据解析后派发给{@link Client.SourceCallBack}。
+ * <p>
+ * 从{@link Client}中独立出来，{@link CaptureReplaySource}回放抓包文件时走的是同一条路径。
+ * 这里不访问Client本身，因此不会触发native库的加载。
+ */
+final class FrameDispatcher {
+
+    /**
+     * 没有帧数据时共用的空数组
+     */
+    static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+    private FrameDispatcher() {
+    }
+
+    static void dispatch(Client.SourceCallBack callBack, int _channelId, int _channelPtr, int _frameType, byte[] pBuf, byte[] frameBuffer) {
+        if (callBack == null) {
+            return;
+        }
+
+        if (_frameType == EASY_SDK_SEI_FRAME_FLAG) {
+            callBack.sendSeiData(pBuf);
+            return;
+        }
+
+        if (_frameType == 0) {
+            callBack.onSourceCallBack(_channelId, _channelPtr, _frameType, null);
+            return;
+        }
+
+        if (_frameType == EASY_SDK_MEDIA_INFO_FLAG) {
+            callBack.onMediaInfoCallBack(_channelId, Client.MediaInfo.parse(pBuf));
+            return;
+        }
+
+        Client.FrameInfo fi = Client.FrameInfo.obtain();
+        fi.readHeader(frameBuffer);
+
+        // JNI给的数组只在本次回调中使用，入队的帧数据放到池化的buffer里，解码/录像后由消费线程归还。
+        // 稳定播放时池中总有合适的数组，这里不再分配。
+        int length = pBuf == null ? 0 : pBuf.length;
+        if (length == 0) {
+            fi.buffer = EMPTY_PAYLOAD;
+        } else if (length > BufferPool.MAX_SIZE) {
+            // 超出池的范围，池也只能new一个同样大小的数组，不如直接使用JNI的数组，省掉分配和复制
+            fi.buffer = pBuf;
+        } else {
+            fi.allocBuffer(length);
+            System.arraycopy(pBuf, 0, fi.buffer, 0, length);
+        }
+
+        callBack.onSourceCallBack(_channelId, _channelPtr, _frameType, fi);
+    }
+}
@@ -0,0 +1,140 @@
+package org.easydarwin.video;
+
+/**
+ * native层帧头（RTSP_FRAME_INFO）的只读视图，直接从byte[]按小端读取字段，不做拷贝，不创建ByteBuffer。
+ * <p>
+ * 每个{@link Client.FrameInfo}持有一个实例，随FrameInfo一起复用。
+ *
+ * <pre>
+ *  offset  size  field
+ *  0       4     codec
+ *  4       4     type
+ *  8       1     fps
+ *  9       1     reserved
+ *  10      2     width
+ *  12      2     height
+ *  14      4     reserved1
+ *  18      4     reserved2
+ *  22      2     reserved
+ *  24      4     sample_rate
+ *  28      4     channels
+ *  32      4     bits_per_sample
+ *  36      4     length
+ *  40      4     timestamp_usec (unsigned)
+ *  44      4     timestamp_sec  (unsigned)
+ * </pre>
+ */
+final class FrameHeaderView {
+
+    static final int OFFSET_CODEC = 0;
+    static final int OFFSET_TYPE = 4;
+    static final int OFFSET_FPS = 8;
+    static final int OFFSET_WIDTH = 10;
+    static final int OFFSET_HEIGHT = 12;
+    static final int OFFSET_SAMPLE_RATE = 24;
+    static final int OFFSET_CHANNELS = 28;
+    static final int OFFSET_BITS_PER_SAMPLE = 32;
+    static final int OFFSET_LENGTH = 36;
+    static final int OFFSET_TIMESTAMP_USEC = 40;
+    static final int OFFSET_TIMESTAMP_SEC = 44;
+
+    /**
+     * 帧头的最小长度
+     */
+    static final int SIZE = 48;
+
+    private byte[] data;
+    private int offset;
+    private long stamp;
+
+    /**
+     * 绑定到新的帧头上，并计算微秒时间戳。
+     */
+    FrameHeaderView wrap(byte[] data, int offset) {
+        if (data.length - offset < SIZE) {
+            throw new IllegalArgumentException("frame header too short:" + (data.length - offset));
+        }
+
+        this.data = data;
+        this.offset = offset;
+        stamp = timestampSec() * 1000000L + timestampUsec();
+        return this;
+    }
+
+    FrameHeaderView wrap(byte[] data) {
+        return wrap(data, 0);
+    }
+
+    void clear() {
+        data = null;
+        offset = 0;
+        stamp = 0;
+    }
+
+    private int int32(int pos) {
+        final byte[] d = data;
+        final int p = offset + pos;
+        return (d[p] & 0xFF) | (d[p + 1] & 0xFF) << 8 | (d[p + 2] & 0xFF) << 16 | d[p + 3] << 24;
+    }
+
+    private long uint32(int pos) {
+        return int32(pos) & 0xFFFFFFFFL;
+    }
+
+    private short int16(int pos) {
+        final byte[] d = data;
+        final int p = offset + pos;
+        return (short) ((d[p] & 0xFF) | d[p + 1] << 8);
+    }
+
+    int codec() {
+        return int32(OFFSET_CODEC);
+    }
+
+    int type() {
+        return int32(OFFSET_TYPE);
+    }
+
+    byte fps() {
+        return data[offset + OFFSET_FPS];
+    }
+
+    short width() {
+        return int16(OFFSET_WIDTH);
+    }
+
+    short height() {
+        return int16(OFFSET_HEIGHT);
+    }
+
+    int sampleRate() {
+        return int32(OFFSET_SAMPLE_RATE);
+    }
+
+    int channels() {
+        return int32(OFFSET_CHANNELS);
+    }
+
+    int bitsPerSample() {
+        return int32(OFFSET_BITS_PER_SAMPLE);
+    }
+
+    int length() {
+        return int32(OFFSET_LENGTH);
+    }
+
+    long timestampUsec() {
+        return uint32(OFFSET_TIMESTAMP_USEC);
+    }
+
+    long timestampSec() {
+        return uint32(OFFSET_TIMESTAMP_SEC);
+    }
+
+    /**
+     * 以微秒为单位的64位时间戳，在{@link #wrap(byte[], int)}时计算一次。
+     */
+    long stamp() {
+        return stamp;
+    }
+}
@@ -0,0 +1,231 @@
+package org.easydarwin.video;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单生产者/单消费者的有界环形队列，每个轨道（音频、视频）各用一个。
+ * <p>
+ * 生产者是native的RTSP回调线程，消费者是对应的解码线程。队列为空时消费者park，
+ * 队列满时生产者park，由对端在出队/入队后unpark，不使用任何锁。
+ * <p>
+ * {@link #poll()} 使用CAS推进head，因此{@link #clear()}可以在其它线程（例如主线程）调用。
+ */
+final class FrameRing<E> {
+
+    private final AtomicReferenceArray<E> mSlots;
+    private final int mMask;
+
+    /**
+     * 下一个要读的位置，只增不减。
+     */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * 下一个要写的位置，只有生产者线程会修改。
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    private volatile Thread mConsumerWaiter;
+    private volatile Thread mProducerWaiter;
+
+    /**
+     * @param capacity 容量，会向上取整到2的幂。
+     */
+    FrameRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity should be positive:" + capacity);
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        mSlots = new AtomicReferenceArray<>(size);
+        mMask = size - 1;
+    }
+
+    public int capacity() {
+        return mSlots.length();
+    }
+
+    public int size() {
+        long head = mHead.get();
+        long tail = mTail.get();
+        return (int) Math.max(0, tail - head);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * 非阻塞入队，只能在生产者线程调用。
+     *
+     * @return 队列已满时返回false。
+     */
+    public boolean offer(E x) {
+        if (x == null) {
+            throw new NullPointerException();
+        }
+
+        long tail = mTail.get();
+        if (tail - mHead.get() >= mSlots.length()) {
+            return false;
+        }
+
+        mSlots.lazySet((int) tail & mMask, x);
+        // volatile写，保证消费者在看到新的tail之前能看到slot的内容；同时与下面读waiter构成StoreLoad屏障。
+        mTail.set(tail + 1);
+
+        Thread waiter = mConsumerWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+
+        return true;
+    }
+
+    /**
+     * 入队，队列满时阻塞等待消费者出队。只能在生产者线程调用。
+     */
+    public void put(E x) throws InterruptedException {
+        while (!offer(x)) {
+            Thread current = Thread.currentThread();
+            mProducerWaiter = current;
+            try {
+                if (mTail.get() - mHead.get() >= mSlots.length()) {
+                    LockSupport.park(this);
+                }
+            } finally {
+                mProducerWaiter = null;
+            }
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * 非阻塞出队。
+     *
+     * @return 队列为空时返回null。
+     */
+    public E poll() {
+        while (true) {
+            long head = mHead.get();
+            if (head >= mTail.get()) {
+                return null;
+            }
+
+            // 先读slot再CAS，CAS成功后生产者才可能覆盖这个slot。
+            int index = (int) head & mMask;
+            E x = mSlots.get(index);
+            if (mHead.compareAndSet(head, head + 1)) {
+                // 释放引用，避免已出队的帧一直挂在环上；若生产者已经写入了新元素则CAS失败，不影响。
+                mSlots.compareAndSet(index, x, null);
+                Thread waiter = mProducerWaiter;
+                if (waiter != null) {
+                    LockSupport.unpark(waiter);
+                }
+
+                return x;
+            }
+        }
+    }
+
+    /**
+     * 返回队首元素但不出队。仅供消费者线程使用。
+     */
+    public E peek() {
+        long head = mHead.get();
+        if (head >= mTail.get()) {
+            return null;
+        }
+
+        return mSlots.get((int) head & mMask);
+    }
+
+    /**
+     * 出队，队列为空时阻塞等待。
+     */
+    public E take() throws InterruptedException {
+        while (true) {
+            E x = poll();
+            if (x != null) {
+                return x;
+            }
+
+            mConsumerWaiter = Thread.currentThread();
+            try {
+                x = poll();
+                if (x != null) {
+                    return x;
+                }
+
+                LockSupport.park(this);
+            } finally {
+                mConsumerWaiter = null;
+            }
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * 出队，队列为空时最多等待指定时间。
+     *
+     * @return 超时返回null。
+     */
+    public E take(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (true) {
+            E x = poll();
+            if (x != null) {
+                return x;
+            }
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+
+            mConsumerWaiter = Thread.currentThread();
+            try {
+                x = poll();
+                if (x != null) {
+                    return x;
+                }
+
+                LockSupport.parkNanos(this, remaining);
+            } finally {
+                mConsumerWaiter = null;
+            }
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * 清空队列并唤醒可能阻塞在{@link #put(Object)}的生产者。
+     *
+     * @return 被清除的元素个数。
+     */
+    public int clear() {
+        int count = 0;
+        while (poll() != null) {
+            count++;
+        }
+
+        return count;
+    }
+}
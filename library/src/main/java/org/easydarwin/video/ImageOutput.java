@@ -0,0 +1,107 @@
+package org.easydarwin.video;
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.hardware.HardwareBuffer;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.ImageWriter;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * 解码器输出到ImageReader：每一帧先以{@link Image}交给{@link EasyPlayerClient.YUVImageCallback}，
+ * 再通过ImageWriter把同一个缓冲送到显示的Surface。
+ * <p>
+ * 整个过程不复制YUV数据，也不需要第二个解码器来显示。回调和送显在单独的"VIDEO_IMAGE"线程中进行。
+ * <p>
+ * 同一个缓冲既要CPU读取又要送去合成显示，ImageReader的缓冲需要同时声明两种用途，否则有的设备上ImageWriter会拒绝或者显示花屏。
+ * 解码器按{@link PresentationScheduler}给出的时刻释放输出，图像的时间戳就是显示时刻，ImageWriter送显时沿用它；迟到丢弃的帧不会回调。
+ */
+@TargetApi(Build.VERSION_CODES.Q)
+final class ImageOutput implements ImageReader.OnImageAvailableListener {
+
+    private static final String TAG = "ImageOutput";
+
+    /**
+     * 解码器、回调、显示三方同时持有的帧数
+     */
+    private static final int MAX_IMAGES = 4;
+
+    private final HandlerThread mThread;
+    private final ImageReader mReader;
+    private final ImageWriter mWriter;
+    private final EasyPlayerClient.YUVImageCallback mCallback;
+    private boolean mDisplayFailed;
+
+    /**
+     * @param display 显示用的Surface，为null时只回调不显示
+     */
+    ImageOutput(int width, int height, Surface display, EasyPlayerClient.YUVImageCallback callback) {
+        mCallback = callback;
+        mThread = new HandlerThread("VIDEO_IMAGE");
+        mThread.start();
+        mReader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, MAX_IMAGES,
+                HardwareBuffer.USAGE_CPU_READ_OFTEN | HardwareBuffer.USAGE_GPU_SAMPLED_IMAGE);
+        mReader.setOnImageAvailableListener(this, new Handler(mThread.getLooper()));
+        mWriter = display != null ? ImageWriter.newInstance(display, MAX_IMAGES, ImageFormat.YUV_420_888) : null;
+    }
+
+    /**
+     * 配置给解码器的输出Surface
+     */
+    Surface getSurface() {
+        return mReader.getSurface();
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image;
+        try {
+            image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "acquire image error", e);
+            return;
+        }
+        if (image == null) {
+            return;
+        }
+
+        try {
+            mCallback.onYUVImage(image);
+        } finally {
+            if (mWriter != null && !mDisplayFailed) {
+                try {
+                    // 缓冲直接转给ImageWriter，image随之关闭
+                    mWriter.queueInputImage(image);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "display image error, display disabled", e);
+                    mDisplayFailed = true;
+                    image.close();
+                }
+            } else {
+                image.close();
+            }
+        }
+    }
+
+    /**
+     * 解码器释放之后调用，等待正在进行的回调结束
+     */
+    void release() {
+        mReader.setOnImageAvailableListener(null, null);
+        mThread.quitSafely();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        if (mWriter != null) {
+            mWriter.close();
+        }
+        mReader.close();
+    }
+}
@@ -0,0 +1,218 @@
+package org.easydarwin.video;
+
+/**
+ * 自适应的视频抖动缓冲。
+ * <p>
+ * 生产者线程在每一帧到达时调用{@link #onArrival(long, long)}，按RFC 3550的方法用帧时间戳和本地单调时钟估算到达抖动，
+ * 并据此在[min, max]之间调整目标延时。消费者线程通过{@link #waitUs(long, long)}得到某一帧应该在多久之后显示，
+ * 显示后调用{@link #onPresented(long)}。
+ * <p>
+ * 帧时间戳到本地时钟的映射是 {@code stamp + baseTransit + targetDelay}，baseTransit 跟踪最小的传输时间，
+ * 并缓慢上浮以适应两端时钟的漂移。整个过程只有整数运算，没有日志。
+ */
+final class JitterBuffer {
+
+    public static final long DEFAULT_MIN_DELAY_US = 20000;
+    public static final long DEFAULT_MAX_DELAY_US = 300000;
+
+    /**
+     * 目标延时相对于抖动的倍数
+     */
+    private static final int JITTER_FACTOR = 3;
+
+    /**
+     * 时间戳跳变超过该值时重新建立映射
+     */
+    private static final long RESYNC_THRESHOLD_US = 2000000;
+
+    private volatile long mMinDelayUs = DEFAULT_MIN_DELAY_US;
+    private volatile long mMaxDelayUs = DEFAULT_MAX_DELAY_US;
+
+    // 以下仅生产者线程访问
+    private boolean mStarted;
+    private long mLastArrivalUs;
+    private long mLastStampUs;
+    /**
+     * 抖动估计，定点数，低4位为小数
+     */
+    private volatile long mJitterQ4;
+
+    private volatile long mBaseTransitUs;
+    private volatile long mTargetDelayUs = DEFAULT_MIN_DELAY_US;
+    private volatile long mNewestStampUs;
+    private volatile long mPresentedStampUs;
+
+    /**
+     * 追帧时累计提前的时间，由消费者线程增加
+     */
+    private volatile long mCatchUpUs;
+    private volatile boolean mResync;
+
+    static long nowUs() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * 设置目标延时的范围。
+     */
+    public void setDelayRange(long minUs, long maxUs) {
+        if (minUs < 0 || maxUs < minUs) {
+            throw new IllegalArgumentException("invalid delay range:" + minUs + "," + maxUs);
+        }
+
+        mMinDelayUs = minUs;
+        mMaxDelayUs = maxUs;
+        mTargetDelayUs = clamp(mTargetDelayUs, minUs, maxUs);
+    }
+
+    public long getMinDelayUs() {
+        return mMinDelayUs;
+    }
+
+    public long getMaxDelayUs() {
+        return mMaxDelayUs;
+    }
+
+    /**
+     * 重新开始，在每次开始播放时调用。
+     */
+    public void reset() {
+        mStarted = false;
+        mResync = false;
+        mCatchUpUs = 0;
+        mJitterQ4 = 0;
+        mTargetDelayUs = mMinDelayUs;
+        mNewestStampUs = 0;
+        mPresentedStampUs = 0;
+    }
+
+    public void onArrival(long stampUs) {
+        onArrival(stampUs, nowUs());
+    }
+
+    /**
+     * 帧到达。只能在生产者线程调用。
+     *
+     * @param stampUs 帧时间戳
+     * @param nowUs   本地单调时钟
+     */
+    public void onArrival(long stampUs, long nowUs) {
+        final long transit = nowUs - stampUs;
+        final long min = mMinDelayUs;
+        final long max = mMaxDelayUs;
+
+        if (!mStarted || Math.abs(stampUs - mLastStampUs) > RESYNC_THRESHOLD_US) {
+            mStarted = true;
+            mResync = false;
+            mJitterQ4 = 0;
+            mCatchUpUs = 0;
+            mBaseTransitUs = transit;
+            mTargetDelayUs = min;
+        } else if (mResync) {
+            // 追帧结束，以当前的传输时间重新建立映射，保留抖动估计
+            mResync = false;
+            mCatchUpUs = 0;
+            mBaseTransitUs = transit;
+        } else {
+            long d = (nowUs - mLastArrivalUs) - (stampUs - mLastStampUs);
+            if (d < 0) {
+                d = -d;
+            }
+
+            // J += (|D| - J) / 16
+            mJitterQ4 += d - ((mJitterQ4 + 8) >> 4);
+
+            long base = mBaseTransitUs;
+            if (transit < base) {
+                mBaseTransitUs = transit;
+            } else {
+                mBaseTransitUs = base + ((transit - base) >> 8);
+            }
+
+            long desired = clamp(JITTER_FACTOR * (mJitterQ4 >> 4), min, max);
+            long target = mTargetDelayUs;
+            if (desired > target) {
+                // 抖动变大时立即加大缓冲，变小时缓慢回落
+                target = desired;
+            } else {
+                target -= (target - desired) >> 6;
+            }
+            mTargetDelayUs = clamp(target, min, max);
+        }
+
+        mLastArrivalUs = nowUs;
+        mLastStampUs = stampUs;
+        mNewestStampUs = stampUs;
+    }
+
+    /**
+     * 返回stampUs这一帧的显示时刻（本地单调时钟，微秒）。
+     */
+    public long deadlineUs(long stampUs) {
+        return stampUs + mBaseTransitUs + mTargetDelayUs - mCatchUpUs;
+    }
+
+    /**
+     * 返回距离该帧显示还需要等待的时间，已经迟到时为负数。结果不超过最大延时。
+     */
+    public long waitUs(long stampUs, long nowUs) {
+        return Math.min(deadlineUs(stampUs) - nowUs, mMaxDelayUs);
+    }
+
+    public long waitUs(long stampUs) {
+        return waitUs(stampUs, nowUs());
+    }
+
+    /**
+     * 帧已显示。只能在消费者线程调用。
+     */
+    public void onPresented(long stampUs) {
+        mPresentedStampUs = stampUs;
+    }
+
+    /**
+     * 把后续帧的显示时刻整体提前，用于加速播放以追上直播的最新位置。只能在消费者线程调用。
+     */
+    public void catchUp(long us) {
+        if (us > 0) {
+            mCatchUpUs += us;
+        }
+    }
+
+    /**
+     * 追帧结束后调用，下一帧到达时按当前的传输时间重新建立映射。
+     */
+    public void resync() {
+        mResync = true;
+    }
+
+    /**
+     * 当前的目标延时
+     */
+    public long getTargetDelayUs() {
+        return mTargetDelayUs;
+    }
+
+    /**
+     * 当前估算的到达抖动
+     */
+    public long getJitterUs() {
+        return mJitterQ4 >> 4;
+    }
+
+    /**
+     * 当前缓冲的深度，即最新到达的帧与最近显示的帧之间的时间戳差。
+     */
+    public long getDepthUs() {
+        long presented = mPresentedStampUs;
+        if (presented == 0) {
+            return 0;
+        }
+
+        return Math.max(0, mNewestStampUs - presented);
+    }
+
+    private static long clamp(long v, long min, long max) {
+        return v < min ? min : (v > max ? max : v);
+    }
+}
@@ -0,0 +1,232 @@
+package org.easydarwin.video;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.Display;
+import android.view.WindowManager;
+
+/**
+ * 硬解同步模式的显示调度：给每一帧算出对齐到屏幕刷新的显示时刻，解码线程用releaseOutputBuffer(index, renderTimeNs)
+ * 把帧交给系统，由系统在该时刻显示，解码线程不需要睡眠等待。
+ * <p>
+ * 帧的显示时刻由调用者给出（{@link JitterBuffer#deadlineUs(long)}把帧时间戳映射到System.nanoTime，映射的基准随传输时间缓慢调整），
+ * 这里把它对齐到最接近的一次垂直同步，再提前该刷新周期的80%送出，保证那次垂直同步时缓冲已经就绪。
+ * <p>
+ * 迟到超过{@link #MAX_LATE_NS}的帧丢弃不显示，网络恢复后积压的帧不会一起闪过；连续丢弃{@link #MAX_CONSECUTIVE_DROPS}帧后
+ * 显示一帧，解码跟不上时画面也不会停住。实例只能在解码线程中使用。
+ * <p>
+ * 垂直同步的时刻通过{@link VsyncSource}读取，可以在JVM上用假的来源测试。
+ */
+final class PresentationScheduler {
+
+    /**
+     * 最近一次垂直同步的时刻和刷新周期
+     */
+    interface VsyncSource {
+        void subscribe();
+
+        void unsubscribe();
+
+        /**
+         * @return System.nanoTime，还没有采样到时为0
+         */
+        long sampledVsyncNs();
+
+        /**
+         * @return 刷新周期，纳秒，未知时为0
+         */
+        long periodNs();
+    }
+
+    private static final String TAG = "PresentationScheduler";
+
+    /**
+     * {@link #schedule(long, long)}的返回值，表示丢弃这一帧
+     */
+    static final long DROP = -1;
+
+    static final long MAX_LATE_NS = 30000000L;
+    static final int MAX_CONSECUTIVE_DROPS = 5;
+
+    /**
+     * 系统只接受一秒以内的显示时刻，更早的说明时间戳不连续，立即显示
+     */
+    private static final long MAX_EARLY_NS = 1000000000L;
+
+    private final VsyncSource mSampler;
+    private boolean mSampling;
+    private int mConsecutiveDrops;
+    private long mDroppedFrames;
+
+    PresentationScheduler(Context context) {
+        this(VsyncSampler.get(context));
+    }
+
+    PresentationScheduler(VsyncSource source) {
+        mSampler = source;
+    }
+
+    /**
+     * 计算一帧的显示时刻。第一次调用时开始采样垂直同步。
+     *
+     * @param deadlineNs 这一帧应该显示的时刻，System.nanoTime
+     * @param nowNs      当前的System.nanoTime
+     * @return 传给releaseOutputBuffer的显示时刻，或者{@link #DROP}
+     */
+    long schedule(long deadlineNs, long nowNs) {
+        if (!mSampling) {
+            mSampling = true;
+            mSampler.subscribe();
+        }
+
+        long earlyNs = deadlineNs - nowNs;
+        if (earlyNs < -MAX_LATE_NS && mConsecutiveDrops < MAX_CONSECUTIVE_DROPS) {
+            mConsecutiveDrops++;
+            mDroppedFrames++;
+            return DROP;
+        }
+        mConsecutiveDrops = 0;
+        if (earlyNs <= 0 || earlyNs > MAX_EARLY_NS) {
+            return nowNs;
+        }
+
+        long vsyncNs = mSampler.sampledVsyncNs();
+        long periodNs = mSampler.periodNs();
+        if (vsyncNs == 0 || periodNs == 0) {
+            return deadlineNs;
+        }
+        long renderNs = closestVsync(deadlineNs, vsyncNs, periodNs) - periodNs * 80 / 100;
+        return Math.max(renderNs, nowNs);
+    }
+
+    /**
+     * 因迟到丢弃的帧数
+     */
+    long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * 停止采样垂直同步，之后再调用{@link #schedule(long, long)}会重新开始
+     */
+    void stop() {
+        if (mSampling) {
+            mSampling = false;
+            mSampler.unsubscribe();
+        }
+        mConsecutiveDrops = 0;
+    }
+
+    static long closestVsync(long timeNs, long sampledVsyncNs, long periodNs) {
+        long count = (timeNs - sampledVsyncNs) / periodNs;
+        if (timeNs < sampledVsyncNs) {
+            count--;
+        }
+        long before = sampledVsyncNs + periodNs * count;
+        long after = before + periodNs;
+        return after - timeNs < timeNs - before ? after : before;
+    }
+
+    /**
+     * 进程内共享的垂直同步采样。有订阅者时在"VSYNC_SAMPLER"线程中通过Choreographer持续记录最近一次垂直同步的时刻，
+     * 刷新周期在每次开始采样时从默认显示器读取。
+     */
+    private static final class VsyncSampler implements VsyncSource, Choreographer.FrameCallback, Handler.Callback {
+
+        private static final int MSG_SUBSCRIBE = 1;
+        private static final int MSG_UNSUBSCRIBE = 2;
+
+        private static VsyncSampler sInstance;
+
+        private final Context mContext;
+        private final Handler mHandler;
+        private Choreographer mChoreographer;
+        private int mSubscribers;
+
+        private volatile long mSampledVsyncNs;
+        private volatile long mPeriodNs;
+
+        private VsyncSampler(Context context) {
+            mContext = context;
+            HandlerThread thread = new HandlerThread("VSYNC_SAMPLER");
+            thread.start();
+            mHandler = new Handler(thread.getLooper(), this);
+        }
+
+        static synchronized VsyncSampler get(Context context) {
+            if (sInstance == null) {
+                sInstance = new VsyncSampler(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+
+        @Override
+        public void subscribe() {
+            mHandler.sendEmptyMessage(MSG_SUBSCRIBE);
+        }
+
+        @Override
+        public void unsubscribe() {
+            mHandler.sendEmptyMessage(MSG_UNSUBSCRIBE);
+        }
+
+        @Override
+        public long sampledVsyncNs() {
+            return mSampledVsyncNs;
+        }
+
+        @Override
+        public long periodNs() {
+            return mPeriodNs;
+        }
+
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_SUBSCRIBE:
+                    if (mChoreographer == null) {
+                        mChoreographer = Choreographer.getInstance();
+                    }
+                    if (mSubscribers++ == 0) {
+                        mPeriodNs = refreshPeriodNs();
+                        mChoreographer.postFrameCallback(this);
+                    }
+                    return true;
+                case MSG_UNSUBSCRIBE:
+                    if (--mSubscribers == 0) {
+                        mChoreographer.removeFrameCallback(this);
+                        mSampledVsyncNs = 0;
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mSampledVsyncNs = frameTimeNanos;
+            if (mSubscribers > 0) {
+                mChoreographer.postFrameCallback(this);
+            }
+        }
+
+        private long refreshPeriodNs() {
+            try {
+                WindowManager wm = (WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE);
+                Display display = wm != null ? wm.getDefaultDisplay() : null;
+                float rate = display != null ? display.getRefreshRate() : 0;
+                if (rate >= 1) {
+                    return (long) (1000000000L / rate);
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "query refresh rate error", e);
+            }
+            return 0;
+        }
+    }
+}
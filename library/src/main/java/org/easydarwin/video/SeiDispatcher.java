@@ -0,0 +1,176 @@
+package org.easydarwin.video;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.easydarwin.util.SeiParser;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 派发收到的SEI。
+ * <p>
+ * user_data_unregistered按UUID交给注册的{@link EasyPlayerClient.SEIUserDataHandler}，在接收线程中同步回调，
+ * payload是原数组上的偏移和长度，不复制。
+ * <p>
+ * {@link EasyPlayerClient.SEIDataCallback}面向界面，在主线程中回调，并且限制频率：
+ * 两次回调至少间隔{@link #setCallbackInterval}，其间收到的SEI只保留最新的一个。
+ */
+final class SeiDispatcher implements SeiParser.Listener {
+
+    static final long DEFAULT_CALLBACK_INTERVAL_MS = 200;
+
+    private static final class Registration {
+        final UUID uuid;
+        final long msb;
+        final long lsb;
+        final EasyPlayerClient.SEIUserDataHandler handler;
+
+        Registration(UUID uuid, EasyPlayerClient.SEIUserDataHandler handler) {
+            this.uuid = uuid;
+            this.msb = uuid.getMostSignificantBits();
+            this.lsb = uuid.getLeastSignificantBits();
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * 写时复制，派发时不加锁
+     */
+    private volatile Registration[] mRegistrations = new Registration[0];
+
+    /**
+     * 仅接收线程使用
+     */
+    private final SeiParser mParser = new SeiParser();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile EasyPlayerClient.SEIDataCallback mCallback;
+    private volatile long mCallbackIntervalMs = DEFAULT_CALLBACK_INTERVAL_MS;
+    private volatile long mLastCallbackMs;
+
+    /**
+     * 等待投递到主线程的最新SEI，不为null时已经post过
+     */
+    private final AtomicReference<byte[]> mPending = new AtomicReference<>();
+
+    private final Runnable mDeliver = new Runnable() {
+        @Override
+        public void run() {
+            mLastCallbackMs = SystemClock.uptimeMillis();
+            byte[] sei = mPending.getAndSet(null);
+            EasyPlayerClient.SEIDataCallback callback = mCallback;
+            if (sei != null && callback != null) {
+                callback.onSEIData(sei);
+            }
+        }
+    };
+
+    void setCallback(EasyPlayerClient.SEIDataCallback callback) {
+        mCallback = callback;
+    }
+
+    void setCallbackInterval(long intervalMs) {
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException("intervalMs should not be negative:" + intervalMs);
+        }
+        mCallbackIntervalMs = intervalMs;
+    }
+
+    synchronized void addHandler(UUID uuid, EasyPlayerClient.SEIUserDataHandler handler) {
+        if (uuid == null || handler == null) {
+            throw new NullPointerException();
+        }
+
+        Registration[] registrations = mRegistrations;
+        Registration[] copy = new Registration[registrations.length + 1];
+        System.arraycopy(registrations, 0, copy, 0, registrations.length);
+        copy[registrations.length] = new Registration(uuid, handler);
+        mRegistrations = copy;
+    }
+
+    /**
+     * 移除handler的所有注册
+     */
+    synchronized void removeHandler(EasyPlayerClient.SEIUserDataHandler handler) {
+        Registration[] registrations = mRegistrations;
+        int count = 0;
+        for (Registration r : registrations) {
+            if (r.handler != handler) {
+                count++;
+            }
+        }
+        if (count == registrations.length) {
+            return;
+        }
+
+        Registration[] copy = new Registration[count];
+        int i = 0;
+        for (Registration r : registrations) {
+            if (r.handler != handler) {
+                copy[i++] = r;
+            }
+        }
+        mRegistrations = copy;
+    }
+
+    /**
+     * 收到一个SEI。只在接收线程调用。
+     * <p>
+     * 以起始码开头的是完整的SEI NAL，NAL头的长度按视频编码确定；否则是sei_rbsp。
+     *
+     * @param hevc 视频是否为H.265
+     */
+    void dispatch(byte[] sei, boolean hevc) {
+        if (sei == null) {
+            return;
+        }
+
+        if (mRegistrations.length > 0) {
+            int nalHeader = SeiParser.NAL_HEADER_NONE;
+            if (SeiParser.hasStartCode(sei, 0, sei.length)) {
+                nalHeader = hevc ? SeiParser.NAL_HEADER_H265 : SeiParser.NAL_HEADER_H264;
+            }
+            mParser.parse(sei, 0, sei.length, nalHeader, this);
+        }
+
+        if (mCallback != null && mPending.getAndSet(sei) == null) {
+            // 之前的SEI已经投递，post一次；否则只替换等待中的SEI
+            long delay = mLastCallbackMs + mCallbackIntervalMs - SystemClock.uptimeMillis();
+            mMainHandler.postDelayed(mDeliver, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * 丢弃还没有投递到主线程的SEI
+     */
+    void cancel() {
+        mMainHandler.removeCallbacks(mDeliver);
+        mPending.set(null);
+    }
+
+    @Override
+    public void onSeiMessage(int payloadType, byte[] data, int offset, int length) {
+        if (payloadType != SeiParser.PAYLOAD_TYPE_USER_DATA_UNREGISTERED || length < SeiParser.UUID_LENGTH) {
+            return;
+        }
+
+        long msb = readLong(data, offset);
+        long lsb = readLong(data, offset + 8);
+        for (Registration r : mRegistrations) {
+            if (r.msb == msb && r.lsb == lsb) {
+                r.handler.onSEIUserData(r.uuid, data, offset + SeiParser.UUID_LENGTH, length - SeiParser.UUID_LENGTH);
+            }
+        }
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,251 @@
+package org.easydarwin.video;
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用假的解码器和时钟验证{@link AsyncDecoder}的送入和显示决策。
+ */
+public class AsyncDecoderTest {
+
+    private static final class FakeCodec implements AsyncDecoder.Codec {
+        final ByteBuffer[] inputs = new ByteBuffer[8];
+        final List<long[]> queued = new ArrayList<>();
+        final List<Integer> rendered = new ArrayList<>();
+        final List<Integer> discarded = new ArrayList<>();
+
+        FakeCodec(int inputSize) {
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = ByteBuffer.allocate(inputSize);
+            }
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return inputs[index];
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+            queued.add(new long[]{index, size, presentationTimeUs, flags});
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index, boolean render) {
+            (render ? rendered : discarded).add(index);
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index, long renderTimeNs) {
+            rendered.add(index);
+        }
+    }
+
+    private static final class FakeHost implements AsyncDecoder.Host {
+        final ArrayDeque<Client.FrameInfo> frames = new ArrayDeque<>();
+        final List<Long> rendered = new ArrayList<>();
+        long nowUs;
+        long timerUs = -1;
+        boolean drop;
+        boolean reconfigure;
+        Client.FrameInfo reconfigureFrame;
+
+        @Override
+        public Client.FrameInfo pollFrame() {
+            return frames.poll();
+        }
+
+        @Override
+        public boolean onFrame(Client.FrameInfo frameInfo) {
+            if (reconfigure) {
+                reconfigureFrame = frameInfo;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public long waitUs(long presentationTimeUs) {
+            return presentationTimeUs - nowUs;
+        }
+
+        @Override
+        public long renderTimeNs(long presentationTimeUs) {
+            return drop ? PresentationScheduler.DROP : presentationTimeUs * 1000;
+        }
+
+        @Override
+        public void scheduleTimer(long delayUs) {
+            timerUs = delayUs;
+        }
+
+        @Override
+        public void onRendered(long presentationTimeUs) {
+            rendered.add(presentationTimeUs);
+        }
+    }
+
+    private FakeCodec mCodec;
+    private FakeHost mHost;
+    private AsyncDecoder mDecoder;
+
+    @Before
+    public void setUp() {
+        mCodec = new FakeCodec(64);
+        mHost = new FakeHost();
+        mDecoder = new AsyncDecoder(mCodec, mHost);
+    }
+
+    private static Client.FrameInfo frame(long stamp, int length) {
+        Client.FrameInfo frameInfo = Client.FrameInfo.obtain();
+        frameInfo.buffer = new byte[length];
+        frameInfo.length = length;
+        frameInfo.stamp = stamp;
+        return frameInfo;
+    }
+
+    @Test
+    public void inputWaitsForFrame() {
+        mDecoder.onInputBufferAvailable(0);
+        mDecoder.onInputBufferAvailable(1);
+        assertTrue(mCodec.queued.isEmpty());
+        assertEquals(2, mDecoder.pendingInputCount());
+
+        mHost.frames.add(frame(1000, 10));
+        mDecoder.onFrameAvailable();
+        assertEquals(1, mCodec.queued.size());
+        assertEquals(0, mCodec.queued.get(0)[0]);
+        assertEquals(10, mCodec.queued.get(0)[1]);
+        assertEquals(1000, mCodec.queued.get(0)[2]);
+        assertEquals(1, mDecoder.pendingInputCount());
+    }
+
+    @Test
+    public void frameWaitsForInput() {
+        mHost.frames.add(frame(1000, 10));
+        mHost.frames.add(frame(2000, 20));
+        mDecoder.onFrameAvailable();
+        assertTrue(mCodec.queued.isEmpty());
+
+        mDecoder.onInputBufferAvailable(3);
+        assertEquals(1, mCodec.queued.size());
+        assertEquals(3, mCodec.queued.get(0)[0]);
+        assertEquals(1, mHost.frames.size());
+
+        mDecoder.onInputBufferAvailable(5);
+        assertEquals(2, mCodec.queued.size());
+        assertEquals(2000, mCodec.queued.get(1)[2]);
+    }
+
+    @Test
+    public void codecConfigTakesItsOwnBuffer() {
+        Client.FrameInfo frameInfo = frame(1000, 10);
+        frameInfo.codecConfig = ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x68, 1, 2});
+        mHost.frames.add(frameInfo);
+        mDecoder.onInputBufferAvailable(0);
+        assertEquals(1, mCodec.queued.size());
+        assertEquals(MediaCodec.BUFFER_FLAG_CODEC_CONFIG, mCodec.queued.get(0)[3]);
+        assertEquals(7, mCodec.queued.get(0)[1]);
+
+        // 帧本身等到下一个输入缓冲，不会再从Host取
+        mHost.frames.add(frame(2000, 10));
+        mDecoder.onInputBufferAvailable(1);
+        assertEquals(2, mCodec.queued.size());
+        assertEquals(1000, mCodec.queued.get(1)[2]);
+        assertEquals(0, mCodec.queued.get(1)[3]);
+        assertEquals(1, mHost.frames.size());
+    }
+
+    @Test
+    public void oversizedFrameQueuesEmptyBuffer() {
+        mHost.frames.add(frame(1000, 100));
+        mDecoder.onInputBufferAvailable(0);
+        assertEquals(0, mCodec.queued.get(0)[1]);
+    }
+
+    @Test
+    public void outputReleasedOnSchedule() {
+        mHost.nowUs = 0;
+        mDecoder.onOutputBufferAvailable(0, 0, 0);
+        mDecoder.onOutputBufferAvailable(1, 40000, 0);
+        mDecoder.onOutputBufferAvailable(2, 80000, 0);
+        assertEquals(1, mCodec.rendered.size());
+        assertEquals(40000, mHost.timerUs);
+        assertEquals(2, mDecoder.pendingOutputCount());
+
+        // 定时提前触发时继续等待
+        mHost.nowUs = 30000;
+        mDecoder.onTimer();
+        assertEquals(1, mCodec.rendered.size());
+        assertEquals(10000, mHost.timerUs);
+
+        mHost.nowUs = 90000;
+        mDecoder.onTimer();
+        assertEquals(3, mCodec.rendered.size());
+        assertEquals(Long.valueOf(80000), mHost.rendered.get(2));
+        assertEquals(0, mDecoder.pendingOutputCount());
+    }
+
+    @Test
+    public void codecConfigOutputNotRendered() {
+        mDecoder.onOutputBufferAvailable(4, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+        assertTrue(mCodec.rendered.isEmpty());
+        assertEquals(1, mCodec.discarded.size());
+        assertTrue(mHost.rendered.isEmpty());
+    }
+
+    @Test
+    public void outputQueueGrows() {
+        mHost.nowUs = -1;
+        for (int i = 0; i < 40; i++) {
+            mDecoder.onOutputBufferAvailable(i, i, 0);
+        }
+        assertEquals(40, mDecoder.pendingOutputCount());
+
+        mHost.nowUs = 100;
+        mDecoder.onTimer();
+        assertEquals(40, mCodec.rendered.size());
+        for (int i = 0; i < 40; i++) {
+            assertEquals(Integer.valueOf(i), mCodec.rendered.get(i));
+        }
+    }
+
+    @Test
+    public void droppedOutputNotRendered() {
+        mHost.drop = true;
+        mDecoder.onOutputBufferAvailable(0, 0, 0);
+        mDecoder.onOutputBufferAvailable(1, 0, 0);
+        assertTrue(mCodec.rendered.isEmpty());
+        assertEquals(2, mCodec.discarded.size());
+        assertTrue(mHost.rendered.isEmpty());
+        assertEquals(0, mDecoder.pendingOutputCount());
+    }
+
+    @Test
+    public void reconfigureHaltsInput() {
+        mHost.reconfigure = true;
+        Client.FrameInfo frameInfo = frame(1000, 10);
+        mHost.frames.add(frameInfo);
+        mHost.frames.add(frame(2000, 10));
+        mDecoder.onInputBufferAvailable(0);
+        mDecoder.onInputBufferAvailable(1);
+        assertTrue(mCodec.queued.isEmpty());
+        assertEquals(frameInfo, mHost.reconfigureFrame);
+        assertEquals(1, mHost.frames.size());
+
+        mDecoder.onOutputBufferAvailable(0, 0, 0);
+        assertTrue(mCodec.rendered.isEmpty());
+        assertFalse(mHost.rendered.contains(0L));
+    }
+}
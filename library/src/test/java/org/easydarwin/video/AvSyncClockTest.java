@@ -0,0 +1,170 @@
+package org.easydarwin.video;
+
+import org.easydarwin.util.C;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 用模拟的音频输出验证{@link AvSyncClock}的同步和修正。
+ */
+public class AvSyncClockTest {
+
+    private static final int SAMPLE_RATE = 8000;
+
+    /**
+     * 从startUs开始按采样率匀速播放的音频输出
+     */
+    private static final class SimulatedSink implements AvSyncClock.AudioSink {
+        long startUs;
+        long nowUs;
+        boolean available = true;
+
+        @Override
+        public boolean getPlaybackPosition(long[] out) {
+            if (!available) {
+                return false;
+            }
+            out[0] = Math.max(0, nowUs - startUs) * SAMPLE_RATE / 1000000;
+            out[1] = nowUs;
+            return true;
+        }
+    }
+
+    private SimulatedSink mSink;
+    private AvSyncClock mClock;
+
+    @Before
+    public void setUp() {
+        mSink = new SimulatedSink();
+        mClock = new AvSyncClock();
+        mClock.onAudioStarted(mSink, SAMPLE_RATE, SAMPLE_RATE);
+    }
+
+    /**
+     * 写入count段100ms的音频，时间戳从firstStampUs开始
+     */
+    private void write(long firstStampUs, int count) {
+        for (int i = 0; i < count; i++) {
+            mClock.onAudioWritten(firstStampUs + i * 100000L, SAMPLE_RATE / 10);
+        }
+    }
+
+    private long deadline(long stampUs, long wallDeadlineUs, long nowUs) {
+        mSink.nowUs = nowUs;
+        return mClock.deadlineUs(stampUs, wallDeadlineUs, nowUs);
+    }
+
+    @Test
+    public void wallClockWithoutAudio() {
+        mClock.onAudioStopped();
+        assertEquals(5000000, deadline(1000000, 5000000, 4000000));
+        assertEquals(0, mClock.getCorrectionUs());
+    }
+
+    @Test
+    public void audioTimeFollowsPlayback() {
+        mSink.startUs = 1000000;
+        write(40000000, 10);
+        mSink.nowUs = 1250000;
+        assertEquals(40250000, mClock.audioTimeUs(1250000));
+
+        // 音频时间戳跳过的部分按各段自己的时间戳计算
+        mClock.onAudioWritten(50000000, SAMPLE_RATE / 10);
+        mSink.nowUs = 2050000;
+        assertEquals(50050000, mClock.audioTimeUs(2050000));
+    }
+
+    @Test
+    public void locksToAudioClock() {
+        mSink.startUs = 0;
+        write(40000000, 10);
+        // 音频播放到40.2s，时间戳40.3s的视频帧应在100ms后显示，墙上时钟给出的是150ms后
+        long deadline = deadline(40300000, 350000, 200000);
+        assertEquals(300000, deadline);
+        assertEquals(-50000, mClock.getCorrectionUs());
+    }
+
+    @Test
+    public void driftCorrectionIsBounded() {
+        mSink.startUs = 0;
+        write(40000000, 20);
+        deadline(40100000, 100000, 0);
+        assertEquals(0, mClock.getCorrectionUs());
+
+        // 音频比墙上时钟慢了10ms，每次最多修正MAX_STEP_US
+        mSink.startUs = 10000;
+        long nowUs = 100000;
+        for (int i = 1; i <= 5; i++) {
+            long deadline = deadline(40100000 + nowUs, 100000 + nowUs, nowUs);
+            assertEquals(Math.min(i * AvSyncClock.MAX_STEP_US, 10000), mClock.getCorrectionUs());
+            assertEquals(100000 + nowUs + mClock.getCorrectionUs(), deadline);
+            nowUs += 40000;
+        }
+        deadline(40100000 + nowUs, 100000 + nowUs, nowUs);
+        assertEquals(10000, mClock.getCorrectionUs());
+    }
+
+    @Test
+    public void largeJumpResyncs() {
+        mSink.startUs = 0;
+        write(40000000, 20);
+        deadline(40100000, 100000, 0);
+
+        mSink.startUs = -AvSyncClock.RESYNC_US - 100000;
+        deadline(40100000, 100000, 0);
+        assertEquals(-AvSyncClock.RESYNC_US - 100000, mClock.getCorrectionUs());
+    }
+
+    @Test
+    public void underrunStopsAtWrittenEnd() {
+        mSink.startUs = 0;
+        write(40000000, 2);
+        mSink.nowUs = 1000000;
+        assertEquals(40200000, mClock.audioTimeUs(1000000));
+    }
+
+    @Test
+    public void unavailablePositionHoldsCorrection() {
+        mSink.startUs = 0;
+        write(40000000, 10);
+        deadline(40300000, 350000, 200000);
+        assertEquals(-50000, mClock.getCorrectionUs());
+
+        mSink.available = false;
+        assertEquals(400000 - 50000, deadline(40400000, 400000, 250000));
+        assertEquals(-50000, mClock.getCorrectionUs());
+    }
+
+    @Test
+    public void disabledAudioFallsBackToWallClock() {
+        mSink.startUs = 0;
+        write(40000000, 10);
+        deadline(40300000, 350000, 200000);
+        assertEquals(-50000, mClock.getCorrectionUs());
+
+        mClock.setAudioEnabled(false);
+        deadline(40400000, 400000, 250000);
+        assertEquals(-50000 + AvSyncClock.MAX_STEP_US, mClock.getCorrectionUs());
+        for (int i = 0; i < 30; i++) {
+            deadline(40400000, 400000, 250000);
+        }
+        assertEquals(0, mClock.getCorrectionUs());
+    }
+
+    @Test
+    public void flushRestartsPositions() {
+        mSink.startUs = 0;
+        write(40000000, 10);
+
+        mClock.onAudioFlushed();
+        mSink.nowUs = 0;
+        assertEquals(C.TIME_UNSET, mClock.audioTimeUs(0));
+
+        mSink.startUs = 5000000;
+        write(60000000, 1);
+        mSink.nowUs = 5050000;
+        assertEquals(60050000, mClock.audioTimeUs(5050000));
+    }
+}
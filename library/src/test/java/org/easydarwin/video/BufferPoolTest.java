@@ -0,0 +1,56 @@
+package org.easydarwin.video;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * 验证{@link BufferPool}的分级和复用。
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void classOf() {
+        assertEquals(0, BufferPool.classOf(0));
+        assertEquals(0, BufferPool.classOf(BufferPool.MIN_SIZE));
+        assertEquals(1, BufferPool.classOf(BufferPool.MIN_SIZE + 1));
+        assertEquals(BufferPool.MAX_SHIFT - BufferPool.MIN_SHIFT, BufferPool.classOf(BufferPool.MAX_SIZE));
+        assertEquals(-1, BufferPool.classOf(BufferPool.MAX_SIZE + 1));
+    }
+
+    @Test
+    public void releasedBufferIsReused() {
+        BufferPool pool = new BufferPool();
+        byte[] first = pool.acquire(1000);
+        assertEquals(1024, first.length);
+        pool.release(first);
+
+        // 同一级内的请求拿到的是归还的数组，不再分配
+        assertSame(first, pool.acquire(600));
+        assertNotSame(first, pool.acquire(600));
+    }
+
+    @Test
+    public void foreignBufferNotPooled() {
+        BufferPool pool = new BufferPool();
+        byte[] odd = new byte[1000];
+        pool.release(odd);
+        assertNotSame(odd, pool.acquire(1000));
+
+        byte[] huge = pool.acquire(BufferPool.MAX_SIZE + 1);
+        assertEquals(BufferPool.MAX_SIZE + 1, huge.length);
+        pool.release(huge);
+        assertNotSame(huge, pool.acquire(BufferPool.MAX_SIZE + 1));
+    }
+
+    @Test
+    public void trimDropsCachedBuffers() {
+        BufferPool pool = new BufferPool();
+        byte[] buf = pool.acquire(300);
+        pool.release(buf);
+        pool.trim();
+        assertNotSame(buf, pool.acquire(300));
+    }
+}
@@ -0,0 +1,162 @@
+package org.easydarwin.video;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用内存中构造的抓包数据和假的{@link Client.SourceCallBack}验证{@link CaptureReplaySource}的解析和派发。
+ */
+public class CaptureReplaySourceTest {
+
+    private static final class FakeCallBack implements Client.SourceCallBack {
+        final List<int[]> frames = new ArrayList<>();
+        final List<Long> stamps = new ArrayList<>();
+        final List<byte[]> payloads = new ArrayList<>();
+        final List<byte[]> seis = new ArrayList<>();
+        Client.MediaInfo mediaInfo;
+
+        @Override
+        public void onSourceCallBack(int _channelId, int _channelPtr, int _frameType, Client.FrameInfo frameInfo) {
+            frames.add(new int[]{_channelId, _frameType, frameInfo.codec, frameInfo.type, frameInfo.width, frameInfo.height, frameInfo.length});
+            stamps.add(frameInfo.stamp);
+            byte[] payload = new byte[frameInfo.length];
+            System.arraycopy(frameInfo.buffer, frameInfo.offset, payload, 0, Math.min(payload.length, frameInfo.buffer.length));
+            payloads.add(payload);
+            frameInfo.recycle();
+        }
+
+        @Override
+        public void onMediaInfoCallBack(int _channelId, Client.MediaInfo mi) {
+            mediaInfo = mi;
+        }
+
+        @Override
+        public void onEvent(int _channelId, int err, int info) {
+        }
+
+        @Override
+        public void sendSeiData(byte[] sei) {
+            seis.add(sei);
+        }
+    }
+
+    private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mOut = new DataOutputStream(mBytes);
+
+    private void record(int type, byte[] data) throws IOException {
+        mOut.write(type);
+        mOut.writeInt(data.length);
+        mOut.write(data);
+    }
+
+    private static byte[] mediaInfo(int videoCodec, int fps) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 4 + 128 + 36).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(videoCodec);
+        buffer.putInt(fps);
+        return buffer.array();
+    }
+
+    private static byte[] header(int codec, int type, int width, int height, int length, long stampUs) {
+        ByteBuffer buffer = ByteBuffer.allocate(FrameHeaderView.SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(FrameHeaderView.OFFSET_CODEC, codec);
+        buffer.putInt(FrameHeaderView.OFFSET_TYPE, type);
+        buffer.putShort(FrameHeaderView.OFFSET_WIDTH, (short) width);
+        buffer.putShort(FrameHeaderView.OFFSET_HEIGHT, (short) height);
+        buffer.putInt(FrameHeaderView.OFFSET_LENGTH, length);
+        buffer.putInt(FrameHeaderView.OFFSET_TIMESTAMP_USEC, (int) (stampUs % 1000000));
+        buffer.putInt(FrameHeaderView.OFFSET_TIMESTAMP_SEC, (int) (stampUs / 1000000));
+        return buffer.array();
+    }
+
+    private FakeCallBack replay(float speed) throws IOException, InterruptedException {
+        FakeCallBack callBack = new FakeCallBack();
+        CaptureReplaySource source = new CaptureReplaySource(new ByteArrayInputStream(mBytes.toByteArray()), callBack, 3);
+        source.setSpeed(speed);
+        try {
+            source.replay();
+        } finally {
+            source.close();
+        }
+        return callBack;
+    }
+
+    @Test
+    public void dispatchesRecords() throws Exception {
+        byte[] key = {0, 0, 0, 1, 0x65, 1, 2, 3};
+        byte[] sei = {0, 0, 0, 1, 6, 5, 1, 0, (byte) 0x80};
+        record(Client.EASY_SDK_MEDIA_INFO_FLAG, mediaInfo(EasyPlayerClient.EASY_SDK_VIDEO_CODEC_H264, 25));
+        record(Client.EASY_SDK_VIDEO_FRAME_FLAG, header(EasyPlayerClient.EASY_SDK_VIDEO_CODEC_H264, 1, 1280, 720, key.length, 5000000));
+        record(CaptureReplaySource.RECORD_PAYLOAD, key);
+        // SEI的类型在文件中被截断成了0
+        record(0, sei);
+        // 较早的抓包文件没有帧数据记录
+        record(Client.EASY_SDK_AUDIO_FRAME_FLAG, header(EasyPlayerClient.EASY_SDK_AUDIO_CODEC_AAC, 0, 0, 0, 0, 5020000));
+
+        FakeCallBack callBack = replay(CaptureReplaySource.SPEED_UNLIMITED);
+
+        assertNotNull(callBack.mediaInfo);
+        assertEquals(EasyPlayerClient.EASY_SDK_VIDEO_CODEC_H264, callBack.mediaInfo.videoCodec);
+        assertEquals(25, callBack.mediaInfo.fps);
+
+        assertEquals(2, callBack.frames.size());
+        int[] video = callBack.frames.get(0);
+        assertEquals(3, video[0]);
+        assertEquals(Client.EASY_SDK_VIDEO_FRAME_FLAG, video[1]);
+        assertEquals(EasyPlayerClient.EASY_SDK_VIDEO_CODEC_H264, video[2]);
+        assertEquals(1, video[3]);
+        assertEquals(1280, video[4]);
+        assertEquals(720, video[5]);
+        assertEquals(Long.valueOf(5000000), callBack.stamps.get(0));
+        assertArrayEquals(key, callBack.payloads.get(0));
+
+        int[] audio = callBack.frames.get(1);
+        assertEquals(Client.EASY_SDK_AUDIO_FRAME_FLAG, audio[1]);
+        assertEquals(0, audio[6]);
+        assertEquals(Long.valueOf(5020000), callBack.stamps.get(1));
+
+        assertEquals(1, callBack.seis.size());
+        assertArrayEquals(sei, callBack.seis.get(0));
+    }
+
+    @Test
+    public void skipsOrphanPayloadAndShortHeader() throws Exception {
+        record(CaptureReplaySource.RECORD_PAYLOAD, new byte[]{1, 2, 3});
+        record(Client.EASY_SDK_VIDEO_FRAME_FLAG, new byte[FrameHeaderView.SIZE - 1]);
+        record(Client.EASY_SDK_VIDEO_FRAME_FLAG, header(EasyPlayerClient.EASY_SDK_VIDEO_CODEC_H264, 2, 0, 0, 0, 0));
+        // 最后一条记录不完整
+        mOut.write(Client.EASY_SDK_VIDEO_FRAME_FLAG);
+        mOut.writeInt(100);
+        mOut.write(new byte[10]);
+
+        FakeCallBack callBack = replay(CaptureReplaySource.SPEED_UNLIMITED);
+        assertEquals(1, callBack.frames.size());
+        assertEquals(2, callBack.frames.get(0)[3]);
+    }
+
+    @Test
+    public void pacesByTimestamp() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            record(Client.EASY_SDK_VIDEO_FRAME_FLAG, header(EasyPlayerClient.EASY_SDK_VIDEO_CODEC_H264, 2, 0, 0, 0, 1000000 + i * 100000));
+        }
+
+        long begin = System.nanoTime();
+        FakeCallBack callBack = replay(4);
+        long elapsedMs = (System.nanoTime() - begin) / 1000000;
+        assertEquals(3, callBack.frames.size());
+        // 200ms的时间戳按4倍速至少要50ms
+        assertTrue(elapsedMs >= 49);
+    }
+}
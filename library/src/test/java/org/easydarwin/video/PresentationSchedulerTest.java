@@ -0,0 +1,111 @@
+package org.easydarwin.video;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用固定的垂直同步验证{@link PresentationScheduler}的丢帧和对齐。
+ */
+public class PresentationSchedulerTest {
+
+    private static final long PERIOD_NS = 16000000L;
+    private static final long VSYNC_NS = 1000000000L;
+
+    private static final class FakeVsync implements PresentationScheduler.VsyncSource {
+        long vsyncNs = VSYNC_NS;
+        long periodNs = PERIOD_NS;
+        int subscribers;
+
+        @Override
+        public void subscribe() {
+            subscribers++;
+        }
+
+        @Override
+        public void unsubscribe() {
+            subscribers--;
+        }
+
+        @Override
+        public long sampledVsyncNs() {
+            return vsyncNs;
+        }
+
+        @Override
+        public long periodNs() {
+            return periodNs;
+        }
+    }
+
+    private FakeVsync mVsync;
+    private PresentationScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mVsync = new FakeVsync();
+        mScheduler = new PresentationScheduler(mVsync);
+    }
+
+    @Test
+    public void closestVsync() {
+        assertEquals(VSYNC_NS, PresentationScheduler.closestVsync(VSYNC_NS + 7000000, VSYNC_NS, PERIOD_NS));
+        assertEquals(VSYNC_NS + PERIOD_NS, PresentationScheduler.closestVsync(VSYNC_NS + 9000000, VSYNC_NS, PERIOD_NS));
+        assertEquals(VSYNC_NS + 10 * PERIOD_NS, PresentationScheduler.closestVsync(VSYNC_NS + 10 * PERIOD_NS, VSYNC_NS, PERIOD_NS));
+        // 采样之前的时刻
+        assertEquals(VSYNC_NS - PERIOD_NS, PresentationScheduler.closestVsync(VSYNC_NS - 12000000, VSYNC_NS, PERIOD_NS));
+        assertEquals(VSYNC_NS, PresentationScheduler.closestVsync(VSYNC_NS - 3000000, VSYNC_NS, PERIOD_NS));
+    }
+
+    @Test
+    public void onTimeSnapsToVsync() {
+        long nowNs = VSYNC_NS;
+        // 最接近的垂直同步是第3个，提前80%的刷新周期送出
+        long deadlineNs = VSYNC_NS + 3 * PERIOD_NS + 2000000;
+        long expected = VSYNC_NS + 3 * PERIOD_NS - PERIOD_NS * 80 / 100;
+        assertEquals(expected, mScheduler.schedule(deadlineNs, nowNs));
+        assertEquals(1, mVsync.subscribers);
+
+        mScheduler.stop();
+        assertEquals(0, mVsync.subscribers);
+    }
+
+    @Test
+    public void snapNeverBeforeNow() {
+        long nowNs = VSYNC_NS + 1000000;
+        assertEquals(nowNs, mScheduler.schedule(nowNs + 2000000, nowNs));
+    }
+
+    @Test
+    public void withoutVsyncUsesDeadline() {
+        mVsync.vsyncNs = 0;
+        long nowNs = VSYNC_NS;
+        assertEquals(nowNs + 20000000, mScheduler.schedule(nowNs + 20000000, nowNs));
+    }
+
+    @Test
+    public void dueOrFarFutureShowsNow() {
+        long nowNs = VSYNC_NS;
+        assertEquals(nowNs, mScheduler.schedule(nowNs - 10000000, nowNs));
+        assertEquals(nowNs, mScheduler.schedule(nowNs + 2000000000L, nowNs));
+        assertEquals(0, mScheduler.getDroppedFrames());
+    }
+
+    @Test
+    public void lateFramesDropped() {
+        long nowNs = VSYNC_NS;
+        long lateNs = nowNs - PresentationScheduler.MAX_LATE_NS - 1;
+        for (int i = 0; i < PresentationScheduler.MAX_CONSECUTIVE_DROPS; i++) {
+            assertEquals(PresentationScheduler.DROP, mScheduler.schedule(lateNs, nowNs));
+        }
+        // 连续丢弃之后显示一帧
+        assertEquals(nowNs, mScheduler.schedule(lateNs, nowNs));
+        assertEquals(PresentationScheduler.DROP, mScheduler.schedule(lateNs, nowNs));
+        assertEquals(PresentationScheduler.MAX_CONSECUTIVE_DROPS + 1, mScheduler.getDroppedFrames());
+
+        // 刚好在门限内的帧不丢
+        assertTrue(mScheduler.schedule(nowNs - PresentationScheduler.MAX_LATE_NS, nowNs) != PresentationScheduler.DROP);
+    }
+}